@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Encodes the same synthetic screen content in each bitrate mode the default AVC encoder
+ * supports, and with or without intra refresh, logs file size and bitrate variance of them.
+ */
+public class BitrateModeBenchmark {
+    private static final String TAG = "BitrateModeBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FRAMERATE = 30;
+    private static final int BITRATE = 4_000_000;
+    private static final int SECONDS = 10;
+    private static final int[] MODES = {
+            -1,
+            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR,
+            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+    };
+
+    @Test
+    public void compareBitrateModes() throws Exception {
+        // Surface.lockHardwareCanvas() is API 23
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+        MediaCodecInfo[] codecs = Utils.findEncodersByType(ScreenRecorder.VIDEO_AVC);
+        assumeTrue(codecs.length > 0);
+        MediaCodecInfo codec = codecs[0];
+        MediaCodecInfo.EncoderCapabilities capabilities =
+                codec.getCapabilitiesForType(ScreenRecorder.VIDEO_AVC).getEncoderCapabilities();
+        VideoEncodeConfig config = new VideoEncodeConfig(WIDTH, HEIGHT, BITRATE, FRAMERATE, 1,
+                codec.getName(), ScreenRecorder.VIDEO_AVC, null);
+        for (int mode : MODES) {
+            if (mode >= 0 && !capabilities.isBitrateModeSupported(mode)) {
+                Log.i(TAG, codec.getName() + " " + Utils.bitrateModeToString(mode) + ": unsupported");
+                continue;
+            }
+            BitrateStats stats = encode(config.withBitrateMode(mode, -1));
+            Log.i(TAG, codec.getName() + " " + Utils.bitrateModeToString(mode) + ": " + stats);
+            assertTrue(stats.getFrames() > 0);
+        }
+    }
+
+    @Test
+    public void compareIntraRefresh() throws Exception {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        MediaCodecInfo[] codecs = Utils.findEncodersByType(ScreenRecorder.VIDEO_AVC);
+        assumeTrue(codecs.length > 0);
+        MediaCodecInfo codec = codecs[0];
+        assumeTrue(codec.getCapabilitiesForType(ScreenRecorder.VIDEO_AVC)
+                .isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh));
+        VideoEncodeConfig config = new VideoEncodeConfig(WIDTH, HEIGHT, BITRATE, FRAMERATE, 1,
+                codec.getName(), ScreenRecorder.VIDEO_AVC, null);
+        BitrateStats gop = encode(config);
+        BitrateStats intraRefresh = encode(config.withIntraRefresh(FRAMERATE));
+        Log.i(TAG, codec.getName() + " GOP: " + gop);
+        Log.i(TAG, codec.getName() + " intra refresh: " + intraRefresh);
+        assertTrue(gop.getFrames() > 0 && intraRefresh.getFrames() > 0);
+    }
+
+    private static BitrateStats encode(VideoEncodeConfig config) throws Exception {
+        final BitrateStats stats = new BitrateStats();
+        final CountDownLatch eos = new CountDownLatch(1);
+        final VideoEncoder encoder = new VideoEncoder(config);
+        encoder.setCallback(new VideoEncoder.Callback() {
+            long startUs = -1;
+
+            @Override
+            void onOutputBufferAvailable(BaseEncoder codec, int index, MediaCodec.BufferInfo info) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    if (startUs < 0) startUs = info.presentationTimeUs;
+                    stats.add(info.size, info.presentationTimeUs - startUs);
+                }
+                codec.releaseOutputBuffer(index);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    eos.countDown();
+                }
+            }
+
+            @Override
+            void onOutputFormatChanged(BaseEncoder codec, MediaFormat format) {
+            }
+
+            @Override
+            public void onError(Encoder codec, Exception e) {
+                Log.e(TAG, "Encoder error", e);
+                eos.countDown();
+            }
+        });
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        try {
+            CountDownLatch prepared = new CountDownLatch(1);
+            Exception[] error = new Exception[1];
+            new Handler(thread.getLooper()).post(() -> {
+                try {
+                    encoder.prepare();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+                prepared.countDown();
+            });
+            prepared.await();
+            if (error[0] != null) throw error[0];
+
+            Surface surface = encoder.getInputSurface();
+            SyntheticScreen screen = new SyntheticScreen(config.width, config.height);
+            long frameMs = 1000 / config.framerate;
+            for (int i = 0; i < SECONDS * config.framerate; i++) {
+                long begin = System.currentTimeMillis();
+                Canvas canvas = surface.lockHardwareCanvas();
+                screen.draw(canvas, i, config.framerate);
+                surface.unlockCanvasAndPost(canvas);
+                Thread.sleep(Math.max(0, frameMs - (System.currentTimeMillis() - begin)));
+            }
+            encoder.signalEndOfInputStream();
+            assertTrue("EOS timeout", eos.await(5, TimeUnit.SECONDS));
+            encoder.stop();
+        } finally {
+            encoder.release();
+            thread.quitSafely();
+        }
+        return stats;
+    }
+
+    /**
+     * Deterministic content in phases typical of screen recording:
+     * static, scrolling, scene changes, then static again.
+     */
+    static final class SyntheticScreen {
+        private final int mWidth;
+        private final int mHeight;
+        private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        SyntheticScreen(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mPaint.setTextSize(height / 24f);
+        }
+
+        void draw(Canvas canvas, int frame, int framerate) {
+            int second = frame / framerate;
+            int scroll = 0;
+            int background = Color.WHITE;
+            if (second >= 3 && second < 6) {
+                // scrolling
+                scroll = (frame - 3 * framerate) * mHeight / (2 * framerate);
+            } else if (second == 6) {
+                // scene change every half second
+                background = Color.HSVToColor(new float[]{(frame * 2 / framerate) * 90 % 360, 0.6f, 0.9f});
+            }
+            canvas.drawColor(background);
+            mPaint.setColor(Color.DKGRAY);
+            float lineHeight = mPaint.getTextSize() * 1.5f;
+            for (int line = 0; line * lineHeight < mHeight + lineHeight; line++) {
+                int row = line + (int) (scroll / lineHeight);
+                float y = (line + 1) * lineHeight - scroll % lineHeight;
+                canvas.drawText("Line " + row + ": the quick brown fox jumps over the lazy dog "
+                        + Integer.toHexString(row * 0x9E3779B1), 16, y, mPaint);
+            }
+            // a blinking cursor
+            if ((frame / (framerate / 2)) % 2 == 0) {
+                mPaint.setColor(Color.BLACK);
+                canvas.drawRect(mWidth - 40, mHeight - 60, mWidth - 30, mHeight - 20, mPaint);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import static android.os.Build.VERSION_CODES.N;
+
+/**
+ * {@link AudioSource} of the mic.
+ */
+final class AndroidAudioSource implements AudioSource {
+    private static final String TAG = "AndroidAudioSource";
+    private static final boolean VERBOSE = false;
+
+    private final AudioRecord mRecord;
+
+    private AndroidAudioSource(AudioRecord record) {
+        mRecord = record;
+    }
+
+    /**
+     * @return Returns null if the mic doesn't take the config
+     */
+    static AndroidAudioSource create(AudioEncodeConfig config) {
+        int channelConfig = config.channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        AudioRecord record = createAudioRecord(config.sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        return record == null ? null : new AndroidAudioSource(record);
+    }
+
+    @Override
+    public void startRecording() {
+        mRecord.startRecording();
+    }
+
+    @Override
+    public void stop() {
+        mRecord.stop();
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        return mRecord.read(buffer, size);
+    }
+
+    @Override
+    public void release() {
+        mRecord.release();
+    }
+
+    private static AudioRecord createAudioRecord(int sampleRateInHz, int channelConfig, int audioFormat) {
+        int minBytes = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
+        if (minBytes <= 0) {
+            Log.e(TAG, String.format(Locale.US, "Bad arguments: getMinBufferSize(%d, %d, %d)",
+                    sampleRateInHz, channelConfig, audioFormat));
+            return null;
+        }
+        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC,
+                sampleRateInHz,
+                channelConfig,
+                audioFormat,
+                minBytes * 2);
+
+        if (record.getState() == AudioRecord.STATE_UNINITIALIZED) {
+            Log.e(TAG, String.format(Locale.US, "Bad arguments to new AudioRecord %d, %d, %d",
+                    sampleRateInHz, channelConfig, audioFormat));
+            return null;
+        }
+        if (VERBOSE) {
+            Log.i(TAG, "created AudioRecord " + record + ", MinBufferSize= " + minBytes);
+            if (Build.VERSION.SDK_INT >= N) {
+                Log.d(TAG, " size in frame " + record.getBufferSizeInFrames());
+            }
+        }
+        return record;
+    }
+}
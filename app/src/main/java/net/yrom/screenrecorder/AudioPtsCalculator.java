@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+/**
+ * Presentation time of PCM frames read from mic, counted by samples from the first frame so
+ * they are evenly spaced, and reset to the clock if reading fell behind for more than two
+ * frames, i.e. samples were lost.
+ * <p>
+ * Not thread safe.
+ */
+final class AudioPtsCalculator {
+    private final int mChannelsSampleRate;
+    // duration of the last seen frame size
+    private int mCachedSamples = -1;
+    private long mCachedFrameUs;
+    private long mNextFrameUs = -1;
+    private PipelineMetrics.Counter mOverruns;
+
+    /**
+     * @param channelsSampleRate sample rate times channel count
+     */
+    AudioPtsCalculator(int channelsSampleRate) {
+        mChannelsSampleRate = channelsSampleRate;
+    }
+
+    /**
+     * Counts resets into {@code overruns}, may be null.
+     */
+    void setOverrunCounter(PipelineMetrics.Counter overruns) {
+        mOverruns = overruns;
+    }
+
+    /**
+     * Forgets the last frame, so the next one is timed by the clock again,
+     * e.g. after the mic was stopped for a while. Not counted as an overrun.
+     */
+    void reset() {
+        mNextFrameUs = -1;
+    }
+
+    /**
+     * 1 sample = 16 bit
+     *
+     * @param totalBits size of the frame just read
+     * @param nowUs     current time of the audio clock
+     * @return Returns presentation time (us) of the frame
+     */
+    long calculate(int totalBits, long nowUs) {
+        int samples = totalBits >> 4;
+        long frameUs;
+        if (samples == mCachedSamples) {
+            frameUs = mCachedFrameUs;
+        } else {
+            frameUs = samples * 1000_000L / mChannelsSampleRate;
+            mCachedSamples = samples;
+            mCachedFrameUs = frameUs;
+        }
+        // accounts the delay of polling the audio sample data
+        long timeUs = nowUs - frameUs;
+        long currentUs = mNextFrameUs == -1 ? timeUs : mNextFrameUs;
+        // maybe too late to acquire sample data
+        if (timeUs - currentUs >= (frameUs << 1)) {
+            // reset, samples between were lost
+            currentUs = timeUs;
+            if (mOverruns != null) mOverruns.increment();
+        }
+        mNextFrameUs = currentUs + frameUs;
+        return currentUs;
+    }
+}
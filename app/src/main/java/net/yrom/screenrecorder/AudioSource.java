@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PCM 16-bit input of {@link MicRecorder}, what it needs of {@link android.media.AudioRecord}.
+ *
+ * @see AndroidAudioSource
+ */
+interface AudioSource {
+    void startRecording();
+
+    /**
+     * Stops reading, {@link #isRecording()} returns false then.
+     */
+    void stop();
+
+    boolean isRecording();
+
+    /**
+     * Reads into {@code buffer} from its position, blocks until {@code size} bytes read.
+     *
+     * @return Returns bytes read, or a negative error code
+     * @see android.media.AudioRecord#read(ByteBuffer, int)
+     */
+    int read(ByteBuffer buffer, int size);
+
+    void release();
+}
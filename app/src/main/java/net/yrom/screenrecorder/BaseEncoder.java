@@ -17,6 +17,7 @@
 package net.yrom.screenrecorder;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Looper;
 import android.util.Log;
@@ -74,25 +75,68 @@ abstract class BaseEncoder implements Encoder {
             throw new IllegalStateException("prepared!");
         }
         MediaFormat format = createMediaFormat();
-        Log.d("Encoder", "Create media format: " + format);
-
         String mimeType = format.getString(MediaFormat.KEY_MIME);
         final MediaCodec encoder = createEncoder(mimeType);
         try {
-            if (this.mCallback != null) {
-                // NOTE: MediaCodec maybe crash on some devices due to null callback
-                encoder.setCallback(mCodecCallback);
+            format = adjustMediaFormat(encoder.getCodecInfo().getCapabilitiesForType(mimeType), format);
+        } catch (IllegalArgumentException e) {
+            Log.w("Encoder", "No capabilities of " + mimeType + " in " + encoder.getName(), e);
+        }
+        Log.d("Encoder", "Create media format: " + format);
+        try {
+            configure(encoder, format);
+        } catch (MediaCodec.CodecException | IllegalArgumentException e) {
+            MediaFormat fallback = createFallbackMediaFormat();
+            if (fallback == null) {
+                Log.e("Encoder", "Configure codec failure!\n  with format" + format, e);
+                encoder.release();
+                throw e;
+            }
+            Log.w("Encoder", "Configure codec failure, fall back to " + fallback + "\n  from " + format, e);
+            // back to Uninitialized state
+            encoder.reset();
+            try {
+                configure(encoder, fallback);
+            } catch (MediaCodec.CodecException | IllegalArgumentException e2) {
+                Log.e("Encoder", "Configure codec failure!\n  with format" + fallback, e2);
+                encoder.release();
+                throw e2;
             }
-            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            onEncoderConfigured(encoder);
-            encoder.start();
-        } catch (MediaCodec.CodecException e) {
-            Log.e("Encoder", "Configure codec failure!\n  with format" + format, e);
-            throw e;
         }
         mEncoder = encoder;
     }
 
+    private void configure(MediaCodec encoder, MediaFormat format) {
+        if (this.mCallback != null) {
+            // NOTE: MediaCodec maybe crash on some devices due to null callback
+            encoder.setCallback(mCodecCallback);
+        }
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        onEncoderConfigured(encoder);
+        encoder.start();
+    }
+
+    /**
+     * Gives a chance to drop the keys of {@code format} which are not supported by the codec,
+     * called before configure.
+     *
+     * @param capabilities capabilities of the codec created for {@code format}
+     * @return Returns the format to configure, {@code format} by default.
+     */
+    protected MediaFormat adjustMediaFormat(MediaCodecInfo.CodecCapabilities capabilities, MediaFormat format) {
+        return format;
+    }
+
+    /**
+     * Called if the codec rejected the format created by {@link #createMediaFormat()},
+     * e.g. some devices reject optional keys instead of ignoring them.
+     *
+     * @return Returns a more conservative format to retry with, or null to give up.
+     */
+    protected MediaFormat createFallbackMediaFormat() {
+        return null;
+    }
+
     /**
      * call immediately after {@link #getEncoder() MediaCodec}
      * configure with {@link #createMediaFormat() MediaFormat} success
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.util.Arrays;
+
+/**
+ * Bytes of encoded frames bucketed per second of presentation time,
+ * for the file size and bitrate variance of a recording.
+ * <p>
+ * Not thread safe.
+ */
+final class BitrateStats {
+    private long[] mBytesPerSecond = new long[64];
+    private int mSeconds;
+    private long mTotalBytes;
+    private int mFrames;
+    // shifts timestamps of a new timeline after the previous one
+    private long mOffsetUs;
+    private long mFirstUs = -1;
+    private long mLastUs = -1;
+
+    /**
+     * @param size  bytes of the encoded frame
+     * @param ptsUs  presentation time of the frame
+     */
+    void add(int size, long ptsUs) {
+        long t = ptsUs + mOffsetUs;
+        if (t < 0) return;
+        int second = (int) (t / 1_000_000);
+        if (second >= mBytesPerSecond.length) {
+            mBytesPerSecond = Arrays.copyOf(mBytesPerSecond,
+                    Math.max(second + 1, mBytesPerSecond.length * 2));
+        }
+        mBytesPerSecond[second] += size;
+        mSeconds = Math.max(mSeconds, second + 1);
+        mTotalBytes += size;
+        mFrames++;
+        if (mFirstUs < 0 || t < mFirstUs) mFirstUs = t;
+        mLastUs = Math.max(mLastUs, t);
+    }
+
+    /**
+     * Timestamps start from 0 again, e.g. in a new segment, append them after the previous ones.
+     */
+    void newTimeline() {
+        if (mLastUs >= 0) mOffsetUs = mLastUs + 1;
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    int getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return Returns frames per second of presentation time, 0 if less than 2 frames.
+     */
+    float getFramerate() {
+        long duration = mLastUs - mFirstUs;
+        return mFrames < 2 || duration <= 0 ? 0 : (mFrames - 1) * 1_000_000f / duration;
+    }
+
+    /**
+     * @return Returns seconds with statistics, the last partial second is excluded
+     * unless it is the only one.
+     */
+    int getSeconds() {
+        return mSeconds > 1 ? mSeconds - 1 : mSeconds;
+    }
+
+    /**
+     * @return Returns bits of the {@code second}
+     */
+    long getBitrate(int second) {
+        return mBytesPerSecond[second] * 8;
+    }
+
+    /**
+     * @return Returns mean of the per second bitrates (bps)
+     */
+    long getMeanBitrate() {
+        int seconds = getSeconds();
+        if (seconds == 0) return 0;
+        long sum = 0;
+        for (int i = 0; i < seconds; i++) {
+            sum += getBitrate(i);
+        }
+        return sum / seconds;
+    }
+
+    /**
+     * @return Returns standard deviation of the per second bitrates (bps)
+     */
+    long getBitrateStdDev() {
+        int seconds = getSeconds();
+        if (seconds == 0) return 0;
+        double mean = getMeanBitrate();
+        double sum = 0;
+        for (int i = 0; i < seconds; i++) {
+            double d = getBitrate(i) - mean;
+            sum += d * d;
+        }
+        return Math.round(Math.sqrt(sum / seconds));
+    }
+
+    /**
+     * @return Returns the max of per second bitrates (bps)
+     */
+    long getPeakBitrate() {
+        long peak = 0;
+        for (int i = 0, seconds = getSeconds(); i < seconds; i++) {
+            peak = Math.max(peak, getBitrate(i));
+        }
+        return peak;
+    }
+
+    /**
+     * @return Returns peak / mean of the per second bitrates, 0 if no statistics.
+     */
+    float getPeakToAverageRatio() {
+        long mean = getMeanBitrate();
+        return mean == 0 ? 0 : (float) getPeakBitrate() / mean;
+    }
+
+    /**
+     * @param bucketBps width of each bucket
+     * @return Returns counts of seconds whose bitrate falls in
+     * {@code [i * bucketBps, (i + 1) * bucketBps)}, up to the peak.
+     */
+    int[] getHistogram(long bucketBps) {
+        if (bucketBps <= 0) throw new IllegalArgumentException("bucketBps " + bucketBps);
+        int seconds = getSeconds();
+        int[] counts = new int[(int) (getPeakBitrate() / bucketBps) + 1];
+        for (int i = 0; i < seconds; i++) {
+            counts[(int) (getBitrate(i) / bucketBps)]++;
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "BitrateStats{" +
+                "totalBytes=" + mTotalBytes +
+                ", frames=" + mFrames +
+                ", framerate=" + getFramerate() +
+                ", seconds=" + getSeconds() +
+                ", meanBitrate=" + getMeanBitrate() +
+                ", stdDev=" + getBitrateStdDev() +
+                ", peakBitrate=" + getPeakBitrate() +
+                ", peakToAverage=" + getPeakToAverageRatio() +
+                '}';
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.util.Arrays;
+
+/**
+ * Checks presentation timestamps of one video track in decode order, where B-frames make them
+ * go back and forth, and derives decode timestamps and composition offsets for a writer
+ * which needs them.
+ * <p>
+ * With at most {@code maxReorder} frames presented before an earlier decoded one, every frame
+ * must be presented after all frames decoded more than {@code maxReorder} frames earlier.
+ * Frames breaking that are rejected, duplicated timestamps are repaired to be unique.
+ * <p>
+ * Not thread safe.
+ */
+final class DecodeTimeline {
+    static final int ACCEPTED = 0;
+    static final int REPAIRED = 1;
+    static final int REJECTED = 2;
+
+    private final int mMaxReorder;
+    // timestamps of the last (maxReorder + 1) accepted frames, ring buffer
+    private final long[] mRecent;
+    private int mRecentCount;
+    private int mRecentHead;
+    // max timestamp of frames decoded before the recent ones
+    private long mFloorUs = Long.MIN_VALUE;
+    private long mLastPtsUs;
+    private int mRepaired;
+    private int mRejected;
+    // accepted timestamps in decode order, null if not kept
+    private long[] mTimestamps;
+    private int mCount;
+
+    /**
+     * @param maxReorder     max B-frames between two reference frames, 0 means no reordering
+     * @param keepTimestamps whether to keep timestamps for {@link #getDecodeTimes()}
+     */
+    DecodeTimeline(int maxReorder, boolean keepTimestamps) {
+        if (maxReorder < 0) throw new IllegalArgumentException("maxReorder " + maxReorder);
+        mMaxReorder = maxReorder;
+        mRecent = new long[maxReorder + 1];
+        mTimestamps = keepTimestamps ? new long[256] : null;
+    }
+
+    /**
+     * @param ptsUs presentation time of next frame in decode order
+     * @return Returns {@link #ACCEPTED}, {@link #REPAIRED} with the new timestamp in
+     * {@link #getLastPtsUs()}, or {@link #REJECTED} if the frame should be dropped.
+     */
+    int push(long ptsUs) {
+        boolean full = mRecentCount == mRecent.length;
+        // the oldest recent frame leaves the reorder window, it must be presented earlier
+        long floorUs = full ? Math.max(mFloorUs, mRecent[mRecentHead]) : mFloorUs;
+        if (ptsUs <= floorUs) {
+            mRejected++;
+            return REJECTED;
+        }
+        int status = ACCEPTED;
+        while (isRecent(ptsUs)) {
+            ptsUs++;
+            status = REPAIRED;
+        }
+        if (status == REPAIRED) mRepaired++;
+        if (full) {
+            mFloorUs = floorUs;
+            mRecent[mRecentHead] = ptsUs;
+            mRecentHead = (mRecentHead + 1) % mRecent.length;
+        } else {
+            mRecent[(mRecentHead + mRecentCount) % mRecent.length] = ptsUs;
+            mRecentCount++;
+        }
+        mLastPtsUs = ptsUs;
+        if (mTimestamps != null) {
+            if (mCount == mTimestamps.length) {
+                mTimestamps = Arrays.copyOf(mTimestamps, mCount * 2);
+            }
+            mTimestamps[mCount++] = ptsUs;
+        }
+        return status;
+    }
+
+    private boolean isRecent(long ptsUs) {
+        for (int i = 0; i < mRecentCount; i++) {
+            if (mRecent[(mRecentHead + i) % mRecent.length] == ptsUs) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Returns timestamp of the last accepted or repaired frame
+     */
+    long getLastPtsUs() {
+        return mLastPtsUs;
+    }
+
+    int getRepairedCount() {
+        return mRepaired;
+    }
+
+    int getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * @return Returns accepted presentation timestamps in decode order
+     * @throws IllegalStateException if timestamps are not kept
+     */
+    long[] getPresentationTimes() {
+        if (mTimestamps == null) throw new IllegalStateException("timestamps not kept");
+        return Arrays.copyOf(mTimestamps, mCount);
+    }
+
+    /**
+     * @return Returns decode timestamps of accepted frames, in decode order
+     * @throws IllegalStateException if timestamps are not kept
+     */
+    long[] getDecodeTimes() {
+        return toDecodeTimes(getPresentationTimes());
+    }
+
+    /**
+     * Decode timestamps are the sorted presentation timestamps, shifted back just enough that
+     * no frame is decoded after it is presented. They increase strictly if presentation
+     * timestamps are unique.
+     *
+     * @param pts presentation timestamps in decode order
+     */
+    static long[] toDecodeTimes(long[] pts) {
+        long[] dts = pts.clone();
+        Arrays.sort(dts);
+        long shift = 0;
+        for (int i = 0; i < pts.length; i++) {
+            shift = Math.max(shift, dts[i] - pts[i]);
+        }
+        for (int i = 0; i < dts.length; i++) {
+            dts[i] -= shift;
+        }
+        return dts;
+    }
+
+    /**
+     * @return Returns {@code pts[i] - dts[i]}, the composition offsets of an MP4 'ctts' box,
+     * never negative for the result of {@link #toDecodeTimes(long[])}.
+     */
+    static long[] toCompositionOffsets(long[] pts, long[] dts) {
+        if (pts.length != dts.length) throw new IllegalArgumentException();
+        long[] offsets = new long[pts.length];
+        for (int i = 0; i < pts.length; i++) {
+            offsets[i] = pts[i] - dts[i];
+        }
+        return offsets;
+    }
+}
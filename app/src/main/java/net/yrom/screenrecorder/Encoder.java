@@ -17,6 +17,7 @@
 package net.yrom.screenrecorder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author yrom
@@ -31,6 +32,17 @@ interface Encoder {
 
     void setCallback(Callback callback);
 
+    /**
+     * @return Returns the encoded data of an output buffer, valid until it's
+     * {@link #releaseOutputBuffer(int) released}
+     */
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Gives an output buffer back to the encoder once it's muxed.
+     */
+    void releaseOutputBuffer(int index);
+
     interface Callback {
         void onError(Encoder encoder, Exception exception);
     }
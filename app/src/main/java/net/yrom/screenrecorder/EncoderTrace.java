@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary trace of what the encoders output, for replaying the muxing path off the device
+ * with {@link TraceReplayer}.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * header: "SRTR" | version: int | flags: int (bit 0: has audio)
+ * format: 'F' | track: byte | timeUs: long | entries: short | (key: UTF | type: byte | value)*
+ * sample: 'S' | track: byte | timeUs: long | ptsUs: long | flags: int | size: int | payload
+ * segment: 'G' | op: byte | timeUs: long
+ * </pre>
+ * {@code timeUs} is when the event came to the muxer, of a monotonic clock. Values of a format
+ * are int ('I'), string ('T') or bytes ('B', length: int and data). Samples of a retiring video
+ * encoder are of {@link #TRACK_RETIRING_VIDEO}, and the segment ops (SEGMENT_*) are what
+ * {@link SegmentMuxer} was asked to do when switching or recovering encoders.
+ */
+final class EncoderTrace {
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+    static final int TRACK_RETIRING_VIDEO = 2;
+
+    // SegmentMuxer#beginVideoSwitch()
+    static final int SEGMENT_SWITCH_VIDEO = 0;
+    // SegmentMuxer#endVideoSwitch()
+    static final int SEGMENT_CUT = 1;
+    // SegmentMuxer#recoverVideo()
+    static final int SEGMENT_RECOVER_VIDEO = 2;
+    // SegmentMuxer#recoverAudio()
+    static final int SEGMENT_RECOVER_AUDIO = 3;
+
+    static final byte TYPE_FORMAT = 'F';
+    static final byte TYPE_SAMPLE = 'S';
+    static final byte TYPE_SEGMENT = 'G';
+
+    private static final int MAGIC = ('S' << 24) | ('R' << 16) | ('T' << 8) | 'R';
+    private static final int VERSION = 2;
+    private static final int FLAG_HAS_AUDIO = 1;
+
+    // MediaFormat can't list its keys before API 29, these are what the muxer reads
+    private static final String[] INT_KEYS = {
+            MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+            MediaFormat.KEY_AAC_PROFILE, MediaFormat.KEY_PROFILE, MediaFormat.KEY_LEVEL,
+            MediaFormat.KEY_ROTATION, MediaFormat.KEY_MAX_INPUT_SIZE,
+    };
+    private static final String[] BUFFER_KEYS = {"csd-0", "csd-1", "csd-2"};
+
+    private EncoderTrace() {
+    }
+
+    /**
+     * Not thread safe, events should be written in the order they come to the muxer.
+     */
+    static final class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private byte[] mCopyBuffer = new byte[0];
+
+        Writer(OutputStream out, boolean hasAudio) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeInt(hasAudio ? FLAG_HAS_AUDIO : 0);
+        }
+
+        void writeFormat(int track, long timeUs, MediaFormat format) throws IOException {
+            DataOutputStream out = mOut;
+            out.writeByte(TYPE_FORMAT);
+            out.writeByte(track);
+            out.writeLong(timeUs);
+            int entries = 1;
+            for (String key : INT_KEYS) {
+                if (format.containsKey(key)) entries++;
+            }
+            for (String key : BUFFER_KEYS) {
+                if (format.containsKey(key)) entries++;
+            }
+            out.writeShort(entries);
+            out.writeUTF(MediaFormat.KEY_MIME);
+            out.writeByte('T');
+            out.writeUTF(format.getString(MediaFormat.KEY_MIME));
+            for (String key : INT_KEYS) {
+                if (!format.containsKey(key)) continue;
+                out.writeUTF(key);
+                out.writeByte('I');
+                out.writeInt(format.getInteger(key));
+            }
+            for (String key : BUFFER_KEYS) {
+                if (!format.containsKey(key)) continue;
+                ByteBuffer csd = format.getByteBuffer(key).duplicate();
+                out.writeUTF(key);
+                out.writeByte('B');
+                writeBytes(csd, csd.position(), csd.remaining());
+            }
+        }
+
+        /**
+         * @param data output buffer of the encoder, its position and limit are left untouched
+         */
+        void writeSample(int track, long timeUs, MediaCodec.BufferInfo info, ByteBuffer data) throws IOException {
+            DataOutputStream out = mOut;
+            out.writeByte(TYPE_SAMPLE);
+            out.writeByte(track);
+            out.writeLong(timeUs);
+            out.writeLong(info.presentationTimeUs);
+            out.writeInt(info.flags);
+            if (data == null || info.size == 0) {
+                out.writeInt(0);
+                return;
+            }
+            writeBytes(data, info.offset, info.size);
+        }
+
+        /**
+         * @param op one of SEGMENT_*
+         */
+        void writeSegment(int op, long timeUs) throws IOException {
+            DataOutputStream out = mOut;
+            out.writeByte(TYPE_SEGMENT);
+            out.writeByte(op);
+            out.writeLong(timeUs);
+        }
+
+        private void writeBytes(ByteBuffer data, int offset, int size) throws IOException {
+            mOut.writeInt(size);
+            if (data.hasArray()) {
+                mOut.write(data.array(), data.arrayOffset() + offset, size);
+                return;
+            }
+            // direct buffers of the codec
+            if (mCopyBuffer.length < size) mCopyBuffer = new byte[size];
+            ByteBuffer src = data.duplicate();
+            src.limit(offset + size).position(offset);
+            src.get(mCopyBuffer, 0, size);
+            mOut.write(mCopyBuffer, 0, size);
+        }
+
+        void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * An event read from the trace, reused by the next one.
+     */
+    static final class Event {
+        byte type;
+        // of TYPE_FORMAT and TYPE_SAMPLE
+        int track;
+        // of TYPE_SEGMENT
+        int op;
+        long timeUs;
+        // of TYPE_FORMAT
+        MediaFormat format;
+        // of TYPE_SAMPLE, data is from 0 to info.size
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer data;
+    }
+
+    static final class Reader implements Closeable {
+        private final DataInputStream mIn;
+        private final boolean mHasAudio;
+        private final Event mEvent = new Event();
+
+        Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+            if (mIn.readInt() != MAGIC) throw new IOException("Not a trace");
+            int version = mIn.readInt();
+            if (version != VERSION) throw new IOException("Unsupported trace version " + version);
+            mHasAudio = (mIn.readInt() & FLAG_HAS_AUDIO) != 0;
+        }
+
+        boolean hasAudio() {
+            return mHasAudio;
+        }
+
+        /**
+         * @return Returns the next event, or null at the end of trace
+         */
+        Event next() throws IOException {
+            int type;
+            try {
+                type = mIn.readByte();
+            } catch (EOFException e) {
+                return null;
+            }
+            Event event = mEvent;
+            event.type = (byte) type;
+            if (type == TYPE_SEGMENT) {
+                event.op = mIn.readByte();
+                event.timeUs = mIn.readLong();
+                event.format = null;
+                event.data = null;
+                return event;
+            }
+            event.track = mIn.readByte();
+            event.timeUs = mIn.readLong();
+            if (type == TYPE_FORMAT) {
+                event.format = readFormat();
+                event.data = null;
+            } else if (type == TYPE_SAMPLE) {
+                long ptsUs = mIn.readLong();
+                int flags = mIn.readInt();
+                int size = mIn.readInt();
+                // owned by the muxer until released, a new one for each
+                byte[] payload = new byte[size];
+                mIn.readFully(payload);
+                event.info.set(0, size, ptsUs, flags);
+                event.data = ByteBuffer.wrap(payload);
+                event.format = null;
+            } else {
+                throw new IOException("Unknown event type " + type);
+            }
+            return event;
+        }
+
+        private MediaFormat readFormat() throws IOException {
+            MediaFormat format = new MediaFormat();
+            int entries = mIn.readShort();
+            for (int i = 0; i < entries; i++) {
+                String key = mIn.readUTF();
+                int type = mIn.readByte();
+                switch (type) {
+                    case 'I':
+                        format.setInteger(key, mIn.readInt());
+                        break;
+                    case 'T':
+                        format.setString(key, mIn.readUTF());
+                        break;
+                    case 'B':
+                        byte[] bytes = new byte[mIn.readInt()];
+                        mIn.readFully(bytes);
+                        format.setByteBuffer(key, ByteBuffer.wrap(bytes));
+                        break;
+                    default:
+                        throw new IOException("Unknown value type " + type + " of " + key);
+                }
+            }
+            return format;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
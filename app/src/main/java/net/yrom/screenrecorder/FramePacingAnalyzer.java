@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pacing of video frames against the configured framerate, from their presentation timestamps:
+ * distribution of frame intervals, jitter, duplicated and dropped frames, and the longest stall.
+ * Timestamps may come in decode order, they are put in presentation order within a window of
+ * as many frames as H.264 can reorder. Memory is constant however long the video is.
+ * <p>
+ * A virtual display only composes frames when the screen changes, so an idle screen
+ * counts as dropped frames and stalls too.
+ * <p>
+ * Not thread safe.
+ */
+final class FramePacingAnalyzer {
+    private static final int REORDER_WINDOW = 16;
+    // of the nominal frame interval
+    private static final float HISTOGRAM_BUCKET = 0.25f;
+    // up to 8 frame intervals, longer ones in the last bucket
+    private static final int HISTOGRAM_BUCKETS = 33;
+
+    private float mFramerate;
+    private double mNominalIntervalUs;
+    // ascending, the smallest goes out once full
+    private final long[] mWindow = new long[REORDER_WINDOW + 1];
+    private int mWindowSize;
+    // shifts timestamps of a new timeline after the previous one
+    private long mOffsetUs;
+    private long mLastUs = -1;
+
+    private long mFrames;
+    private long mIntervals;
+    private double mMeanIntervalUs;
+    // sum of squared differences from the mean, Welford's
+    private double mM2;
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+    private long mDuplicates;
+    private long mDropped;
+    private long mLongestStallUs;
+    private long mLongestStallAtUs = -1;
+
+    FramePacingAnalyzer(float framerate) {
+        setFramerate(framerate);
+    }
+
+    /**
+     * Frames from now on are expected at {@code framerate}.
+     */
+    void setFramerate(float framerate) {
+        if (framerate <= 0) throw new IllegalArgumentException("framerate " + framerate);
+        flush();
+        mFramerate = framerate;
+        mNominalIntervalUs = 1_000_000d / framerate;
+    }
+
+    float getFramerate() {
+        return mFramerate;
+    }
+
+    /**
+     * @param ptsUs presentation time of a frame, in decode order or presentation order
+     */
+    void add(long ptsUs) {
+        long[] window = mWindow;
+        int i = mWindowSize;
+        while (i > 0 && window[i - 1] > ptsUs) {
+            window[i] = window[i - 1];
+            i--;
+        }
+        window[i] = ptsUs;
+        if (++mWindowSize > REORDER_WINDOW) {
+            onFrame(window[0]);
+            System.arraycopy(window, 1, window, 0, REORDER_WINDOW);
+            mWindowSize = REORDER_WINDOW;
+        }
+    }
+
+    /**
+     * Timestamps start from 0 again, e.g. in a new segment, append them after the previous ones.
+     * The gap between the timelines is not an interval.
+     */
+    void newTimeline() {
+        flush();
+        if (mLastUs >= 0) {
+            mOffsetUs = mLastUs + Math.round(mNominalIntervalUs);
+            mLastUs = -1;
+        }
+    }
+
+    /**
+     * Takes the frames held for reordering, e.g. at the end of the video before reporting.
+     */
+    void flush() {
+        for (int i = 0; i < mWindowSize; i++) {
+            onFrame(mWindow[i]);
+        }
+        mWindowSize = 0;
+    }
+
+    private void onFrame(long ptsUs) {
+        long t = ptsUs + mOffsetUs;
+        mFrames++;
+        long last = mLastUs;
+        mLastUs = t;
+        if (last < 0) return;
+        long interval = t - last;
+        double frames = interval / mNominalIntervalUs;
+        if (frames < 0.5) {
+            // shown less than half a frame, as good as not shown
+            mDuplicates++;
+        } else if (frames > 1.5) {
+            mDropped += Math.round(frames) - 1;
+        }
+        if (interval > mLongestStallUs) {
+            mLongestStallUs = interval;
+            mLongestStallAtUs = last;
+        }
+        // nearest, a microsecond off the nominal interval is still on it
+        int bucket = (int) Math.round(frames / HISTOGRAM_BUCKET);
+        mHistogram[Math.max(0, Math.min(bucket, HISTOGRAM_BUCKETS - 1))]++;
+        mIntervals++;
+        double delta = interval - mMeanIntervalUs;
+        mMeanIntervalUs += delta / mIntervals;
+        mM2 += delta * (interval - mMeanIntervalUs);
+    }
+
+    long getFrames() {
+        return mFrames;
+    }
+
+    long getDuplicates() {
+        return mDuplicates;
+    }
+
+    long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return Returns the longest interval between two frames
+     */
+    long getLongestStallUs() {
+        return mLongestStallUs;
+    }
+
+    /**
+     * @return Returns when the longest stall began, on the timeline of all segments; -1 if none
+     */
+    long getLongestStallAtUs() {
+        return mLongestStallAtUs;
+    }
+
+    double getMeanIntervalUs() {
+        return mMeanIntervalUs;
+    }
+
+    /**
+     * @return Returns standard deviation of frame intervals
+     */
+    double getJitterUs() {
+        return mIntervals < 2 ? 0 : Math.sqrt(mM2 / mIntervals);
+    }
+
+    /**
+     * @param p in [0, 1]
+     * @return Returns the {@code p} quantile of frame intervals in nominal frame intervals,
+     * to the nearest {@link #HISTOGRAM_BUCKET}; 0 if no intervals.
+     */
+    float getIntervalQuantile(float p) {
+        if (mIntervals == 0) return 0;
+        long rank = Math.max((long) Math.ceil(p * mIntervals), 1);
+        long count = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            count += mHistogram[i];
+            if (count >= rank) return i * HISTOGRAM_BUCKET;
+        }
+        return (HISTOGRAM_BUCKETS - 1) * HISTOGRAM_BUCKET;
+    }
+
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("framerate", mFramerate);
+            json.put("frames", mFrames);
+            json.put("meanIntervalUs", Math.round(mMeanIntervalUs));
+            json.put("jitterUs", Math.round(getJitterUs()));
+            json.put("p50Intervals", getIntervalQuantile(0.5f));
+            json.put("p95Intervals", getIntervalQuantile(0.95f));
+            json.put("p99Intervals", getIntervalQuantile(0.99f));
+            json.put("duplicates", mDuplicates);
+            json.put("dropped", mDropped);
+            json.put("longestStallUs", mLongestStallUs);
+            json.put("longestStallAtUs", mLongestStallAtUs);
+            // counts of intervals nearest to i * bucket nominal intervals, up to the last non-zero
+            int last = HISTOGRAM_BUCKETS - 1;
+            while (last > 0 && mHistogram[last] == 0) last--;
+            json.put("histogramBucket", HISTOGRAM_BUCKET);
+            json.put("histogram", new JSONArray(Arrays.copyOf(mHistogram, last + 1)));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return json;
+    }
+
+    /**
+     * Analyzes the video track of a finished file.
+     *
+     * @param framerate expected framerate, or 0 to take the one in the file
+     * @throws IOException if no video track or framerate
+     */
+    static FramePacingAnalyzer analyze(String path, float framerate) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            int track = -1;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/")) {
+                    track = i;
+                    break;
+                }
+            }
+            if (track < 0) throw new IOException("No video track in " + path);
+            MediaFormat format = extractor.getTrackFormat(track);
+            if (framerate <= 0) {
+                if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                    throw new IOException("Unknown framerate of " + path);
+                }
+                framerate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+            }
+            FramePacingAnalyzer analyzer = new FramePacingAnalyzer(framerate);
+            extractor.selectTrack(track);
+            long ptsUs;
+            while ((ptsUs = extractor.getSampleTime()) >= 0) {
+                analyzer.add(ptsUs);
+                extractor.advance();
+            }
+            analyzer.flush();
+            return analyzer;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FramePacing{" +
+                "framerate=" + mFramerate +
+                ", frames=" + mFrames +
+                ", meanIntervalUs=" + Math.round(mMeanIntervalUs) +
+                ", jitterUs=" + Math.round(getJitterUs()) +
+                ", p95Intervals=" + getIntervalQuantile(0.95f) +
+                ", duplicates=" + mDuplicates +
+                ", dropped=" + mDropped +
+                ", longestStallUs=" + mLongestStallUs +
+                '}';
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Key frames of a segment, for seeking a long recording without walking its sample table.
+ * Timestamps and sizes are taken while muxing, byte offsets from the finished file, then saved
+ * as a sidecar {@link #pathOf(String) next to it}, which a {@link Reader} maps for random access.
+ * <p>
+ * The sidecar, all big-endian:
+ * <pre>
+ * "SRKI", version (byte), count (int), checkpoint interval (int)
+ * checkpoints: one per interval entries, ptsUs (long), offset (long), position in entries (int)
+ * entries: ptsUs delta, offset delta (zigzag), size, each a varint
+ * </pre>
+ * Deltas are from the entry before, checkpoints hold the absolute values of their entry
+ * so a lookup is a binary search in them and a scan of at most one interval.
+ * <p>
+ * Not thread safe.
+ */
+final class KeyFrameIndex {
+    static final String EXTENSION = ".keyframes";
+    private static final byte[] MAGIC = {'S', 'R', 'K', 'I'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+    private static final int CHECKPOINT_SIZE = 8 + 8 + 4;
+    private static final int CHECKPOINT_INTERVAL = 32;
+
+    private long[] mPtsUs = new long[64];
+    private int[] mSizes = new int[64];
+    private int mCount;
+
+    /**
+     * @param ptsUs presentation time written into the segment
+     * @param size  bytes of the key frame
+     */
+    void add(long ptsUs, int size) {
+        if (mCount == mPtsUs.length) {
+            mPtsUs = Arrays.copyOf(mPtsUs, mCount * 2);
+            mSizes = Arrays.copyOf(mSizes, mCount * 2);
+        }
+        mPtsUs[mCount] = ptsUs;
+        mSizes[mCount] = size;
+        mCount++;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @return Returns path of the sidecar of the video {@code path}
+     */
+    static String pathOf(String path) {
+        int dot = path.lastIndexOf('.');
+        return (dot < 0 ? path : path.substring(0, dot)) + EXTENSION;
+    }
+
+    /**
+     * Takes offsets of the key frames from the finished {@code mp4}, and saves the sidecar of it.
+     *
+     * @throws IOException if the sync samples of the file don't match the key frames added
+     */
+    void save(String mp4) throws IOException {
+        Mp4SampleTable table = Mp4SampleTable.readVideoSyncSamples(new File(mp4));
+        if (table.syncOffsets.length != mCount) {
+            throw new IOException(mCount + " key frames muxed, " + table.syncOffsets.length + " in " + mp4);
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (table.syncSizes[i] != mSizes[i]) {
+                throw new IOException("Key frame " + i + " of " + mSizes[i] + " bytes, "
+                        + table.syncSizes[i] + " in " + mp4);
+            }
+        }
+        write(new File(pathOf(mp4)), mPtsUs, table.syncOffsets, mSizes, mCount);
+    }
+
+    static void write(File file, long[] ptsUs, long[] offsets, int[] sizes, int count) throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(count * 6);
+        int checkpoints = (count + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+        ByteBuffer table = ByteBuffer.allocate(checkpoints * CHECKPOINT_SIZE);
+        long lastPts = 0, lastOffset = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = ptsUs[i] - lastPts;
+            // key frames come in presentation order, B-frames never cross them
+            if (i > 0 && delta <= 0) throw new IllegalArgumentException("ptsUs of key frame " + i + " not increasing");
+            if (i % CHECKPOINT_INTERVAL == 0) {
+                table.putLong(ptsUs[i]).putLong(offsets[i]).putInt(entries.size());
+            }
+            writeVarint(entries, delta);
+            long offsetDelta = offsets[i] - lastOffset;
+            writeVarint(entries, (offsetDelta << 1) ^ (offsetDelta >> 63));
+            writeVarint(entries, sizes[i]);
+            lastPts = ptsUs[i];
+            lastOffset = offsets[i];
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(count);
+            out.writeInt(CHECKPOINT_INTERVAL);
+            out.write(table.array());
+            entries.writeTo(out);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static final class Entry {
+        final long ptsUs;
+        // in the video file
+        final long offset;
+        final int size;
+
+        Entry(long ptsUs, long offset, int size) {
+            this.ptsUs = ptsUs;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return "KeyFrame{ptsUs=" + ptsUs + ", offset=" + offset + ", size=" + size + '}';
+        }
+    }
+
+    /**
+     * Looks up key frames of a sidecar, mapped into memory. Thread safe.
+     */
+    static final class Reader implements Closeable {
+        private final RandomAccessFile mFile;
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private final int mInterval;
+        private final int mEntriesStart;
+
+        private Reader(RandomAccessFile file, ByteBuffer buffer) throws IOException {
+            mFile = file;
+            mBuffer = buffer;
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) throw new IOException("Not a key frame index");
+            }
+            if (buffer.get(4) != VERSION) throw new IOException("Unsupported version " + buffer.get(4));
+            mCount = buffer.getInt(5);
+            mInterval = buffer.getInt(9);
+            if (mCount < 0 || mInterval <= 0) throw new IOException("Malformed key frame index");
+            int checkpoints = (mCount + mInterval - 1) / mInterval;
+            mEntriesStart = HEADER_SIZE + checkpoints * CHECKPOINT_SIZE;
+            if (mEntriesStart > buffer.limit()) throw new IOException("Truncated key frame index");
+        }
+
+        static Reader open(File file) throws IOException {
+            RandomAccessFile f = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = f.getChannel();
+                return new Reader(f, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException | RuntimeException e) {
+                f.close();
+                throw e;
+            }
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        Entry get(int index) {
+            if (index < 0 || index >= mCount) throw new IndexOutOfBoundsException("index " + index);
+            int checkpoint = index / mInterval;
+            int base = HEADER_SIZE + checkpoint * CHECKPOINT_SIZE;
+            long ptsUs = mBuffer.getLong(base);
+            long offset = mBuffer.getLong(base + 8);
+            ByteBuffer entries = entriesOf(base);
+            // deltas of the checkpoint entry itself are replaced by its absolute values
+            readVarint(entries);
+            readVarint(entries);
+            int size = (int) readVarint(entries);
+            for (int i = checkpoint * mInterval; i < index; i++) {
+                ptsUs += readVarint(entries);
+                long zigzag = readVarint(entries);
+                offset += (zigzag >>> 1) ^ -(zigzag & 1);
+                size = (int) readVarint(entries);
+            }
+            return new Entry(ptsUs, offset, size);
+        }
+
+        /**
+         * @return Returns index of the last key frame at or before {@code ptsUs}, -1 if none
+         */
+        int floorIndex(long ptsUs) {
+            // the last checkpoint at or before
+            int low = 0, high = (mCount + mInterval - 1) / mInterval - 1;
+            int checkpoint = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mBuffer.getLong(HEADER_SIZE + mid * CHECKPOINT_SIZE) <= ptsUs) {
+                    checkpoint = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (checkpoint < 0) return -1;
+            int base = HEADER_SIZE + checkpoint * CHECKPOINT_SIZE;
+            long pts = mBuffer.getLong(base);
+            ByteBuffer entries = entriesOf(base);
+            int index = checkpoint * mInterval;
+            readVarint(entries);
+            readVarint(entries);
+            readVarint(entries);
+            int end = Math.min(index + mInterval, mCount);
+            while (index + 1 < end) {
+                pts += readVarint(entries);
+                if (pts > ptsUs) break;
+                readVarint(entries);
+                readVarint(entries);
+                index++;
+            }
+            return index;
+        }
+
+        /**
+         * @return Returns the last key frame at or before {@code ptsUs}, where decoding can start
+         * to show it; null if none
+         */
+        Entry floor(long ptsUs) {
+            int index = floorIndex(ptsUs);
+            return index < 0 ? null : get(index);
+        }
+
+        /**
+         * @return Returns the key frame closest to {@code ptsUs}; null if no key frames
+         */
+        Entry nearest(long ptsUs) {
+            if (mCount == 0) return null;
+            int index = floorIndex(ptsUs);
+            if (index < 0) return get(0);
+            Entry floor = get(index);
+            if (index + 1 >= mCount) return floor;
+            Entry next = get(index + 1);
+            return next.ptsUs - ptsUs < ptsUs - floor.ptsUs ? next : floor;
+        }
+
+        /**
+         * @return Returns entries from the one of the checkpoint at {@code base}, with a position of
+         * their own, so lookups run concurrently
+         */
+        private ByteBuffer entriesOf(int base) {
+            ByteBuffer entries = mBuffer.duplicate();
+            entries.position(mEntriesStart + mBuffer.getInt(base + 16));
+            return entries;
+        }
+
+        private static long readVarint(ByteBuffer buffer) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -41,8 +41,10 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.Range;
+import android.view.Display;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -69,6 +71,30 @@ import static net.yrom.screenrecorder.ScreenRecorder.VIDEO_AVC;
 public class MainActivity extends Activity {
     private static final int REQUEST_MEDIA_PROJECTION = 1;
     private static final int REQUEST_PERMISSIONS = 2;
+    // values of R.array.bitrate_modes
+    private static final int[] BITRATE_MODES = {
+            -1,
+            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR,
+            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+    };
+    // values of R.array.cq_qualities, in proportion of the codec's quality range
+    private static final float[] CQ_QUALITIES = {0.25f, 0.5f, 0.9f};
+    // values of R.array.intra_refresh_periods, 0 means off
+    private static final float[] INTRA_REFRESH_SECONDS = {0, 0.5f, 1, 2};
+    // values of R.array.timelapse_capture_rates, 0 means off
+    private static final float[] TIMELAPSE_CAPTURE_RATES = {0, 1, 0.5f, 0.2f};
+    // short side, bitrate and max framerate of the proxy video
+    private static final int PROXY_SIZE = 480;
+    private static final int PROXY_BITRATE = 800_000;
+    private static final int PROXY_MAX_FRAMERATE = 15;
+    // positions of R.array.encoder_modes
+    private static final int ENCODER_MODE_DEFAULT = 0;
+    private static final int ENCODER_MODE_LOW_LATENCY = 1;
+    private static final int ENCODER_MODE_BEST_EFFORT = 2;
+    private static final int ENCODER_MODE_B_FRAMES = 3;
+    // B-frames of ENCODER_MODE_B_FRAMES
+    private static final int MAX_B_FRAMES = 2;
     // members below will be initialized in onCreate()
     private MediaProjectionManager mMediaProjectionManager;
     private Button mButton;
@@ -85,8 +111,17 @@ public class MainActivity extends Activity {
     private NamedSpinner mVideoProfileLevel;
     private NamedSpinner mAudioProfile;
     private NamedSpinner mOrientation;
+    private NamedSpinner mVideoPreset;
+    private NamedSpinner mEncoderMode;
+    private NamedSpinner mBitrateMode;
+    private NamedSpinner mCqQuality;
+    private NamedSpinner mIntraRefresh;
+    private NamedSpinner mSceneChangeKeyFrames;
+    private NamedSpinner mProxy;
+    private NamedSpinner mTimelapse;
     private MediaCodecInfo[] mAvcCodecInfos; // avc codecs
     private MediaCodecInfo[] mAacCodecInfos; // aac codecs
+    private VideoConfigMatrix mVideoConfigMatrix; // valid configs of selected video codec
     private Notifications mNotifications;
 
     /**
@@ -95,8 +130,13 @@ public class MainActivity extends Activity {
      * instead of a foreground Activity in this demonstrate.
      */
     private ScreenRecorder mRecorder;
+    // stopped by the user, the file is opened once finalized
+    private ScreenRecorder mOpenWhenStopped;
+    // from the record button pressed, aggregated in preferences once the recording stops
+    private StartupTrace mStartupTrace;
     private MediaProjection mMediaProjection;
     private VirtualDisplay mVirtualDisplay;
+    private VirtualDisplay mProxyVirtualDisplay;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -121,6 +161,7 @@ public class MainActivity extends Activity {
             mAudioCodec.setAdapter(codecsAdapter);
             restoreSelections(mAudioCodec, mAudioChannelCount);
         });
+        restoreSelections(mEncoderMode, mBitrateMode, mCqQuality, mIntraRefresh, mSceneChangeKeyFrames, mProxy, mTimelapse);
         mAudioToggle.setChecked(
                 PreferenceManager.getDefaultSharedPreferences(getApplicationContext())
                         .getBoolean(getResources().getResourceEntryName(mAudioToggle.getId()), true));
@@ -149,9 +190,15 @@ public class MainActivity extends Activity {
             MediaProjection mediaProjection = mMediaProjectionManager.getMediaProjection(resultCode, data);
             if (mediaProjection == null) {
                 Log.e("@@", "media projection is null");
+                if (mRecorder != null) {
+                    // release the pre-warmed one
+                    mRecorder.quit();
+                    mRecorder = null;
+                }
                 return;
             }
 
+            markStartup(StartupTrace.PROJECTION_RESULT);
             mMediaProjection = mediaProjection;
             mMediaProjection.registerCallback(mProjectionCallback, new Handler());
             startCapturing(mediaProjection);
@@ -159,28 +206,57 @@ public class MainActivity extends Activity {
     }
 
     private void startCapturing(MediaProjection mediaProjection) {
+        if (mRecorder == null && !prepareRecorder()) {
+            return;
+        }
+        mRecorder.setVirtualDisplay(getOrCreateVirtualDisplay(mediaProjection, mRecorder.getVideoConfig()));
+        markStartup(StartupTrace.VIRTUAL_DISPLAY);
+        VideoEncodeConfig proxy = mRecorder.getProxyConfig();
+        if (proxy != null) {
+            mRecorder.setProxyVirtualDisplay(getOrCreateProxyVirtualDisplay(mediaProjection, proxy));
+        }
+        if (hasPermissions()) {
+            startRecorder();
+        } else {
+            cancelRecorder();
+        }
+    }
+
+    /**
+     * Creates {@link #mRecorder} from selected configs.
+     *
+     * @return Returns false if failed
+     */
+    private boolean prepareRecorder() {
         VideoEncodeConfig video = createVideoConfig();
         AudioEncodeConfig audio = createAudioConfig(); // audio can be null
         if (video == null) {
             toast(getString(R.string.create_screenRecorder_failure));
-            return;
+            return false;
+        }
+        if (!VideoConfigMatrix.isSupported(getVideoCodecInfo(video.codecName), video)) {
+            // would fail in MediaCodec.configure()
+            toast(getString(R.string.codec_unsupported_config), video.codecName,
+                    video.width, video.height, video.framerate, video.bitrate / 1000);
+            return false;
+        }
+        if (!isBitrateModeSupported(getVideoCodecInfo(video.codecName), video.getBitrateMode())) {
+            toast(getString(R.string.codec_unsupported_bitrate_mode), video.codecName,
+                    Utils.bitrateModeToString(video.getBitrateMode()));
+            return false;
         }
 
         File dir = getSavingDir();
         if (!dir.exists() && !dir.mkdirs()) {
             cancelRecorder();
-            return;
+            return false;
         }
         SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
         final File file = new File(dir, "Screenshots-" + format.format(new Date())
                 + "-" + video.width + "x" + video.height + ".mp4");
         Log.d("@@", "Create recorder with :" + video + " \n " + audio + "\n " + file);
-        mRecorder = newRecorder(mediaProjection, video, audio, file);
-        if (hasPermissions()) {
-            startRecorder();
-        } else {
-            cancelRecorder();
-        }
+        mRecorder = newRecorder(video, audio, file);
+        return true;
     }
 
     private MediaProjection.Callback mProjectionCallback = new MediaProjection.Callback() {
@@ -192,46 +268,108 @@ public class MainActivity extends Activity {
         }
     };
 
-    private ScreenRecorder newRecorder(MediaProjection mediaProjection, VideoEncodeConfig video,
-                                       AudioEncodeConfig audio, File output) {
-        final VirtualDisplay display = getOrCreateVirtualDisplay(mediaProjection, video);
-        ScreenRecorder r = new ScreenRecorder(video, audio, display, output.getAbsolutePath());
+    private ScreenRecorder newRecorder(VideoEncodeConfig video, AudioEncodeConfig audio, File output) {
+        ScreenRecorder r = new ScreenRecorder(video, audio, null, output.getAbsolutePath());
+        r.setGovernor(new RecordingGovernor(getApplicationContext()));
+        r.setSceneChangeKeyFrames(mSceneChangeKeyFrames.getSelectedItemPosition() == 1);
+        r.setProxy(createProxyConfig(video));
+        r.setMetricsEnabled(BuildConfig.DEBUG);
+        // for scrubbing long recordings in the review tool
+        r.setKeyFrameIndexEnabled(true);
+        r.setKeyFramePreviewEnabled(true);
+        final StartupTrace startup = mStartupTrace;
+        if (startup != null) r.setStartupTrace(startup);
         r.setCallback(new ScreenRecorder.Callback() {
-            long startTime = 0;
-
             @Override
             public void onStop(Throwable error) {
-                runOnUiThread(() -> stopRecorder());
+                // finalizing may take a while, a new recorder may have been created since then
+                if (r == mRecorder) stopRecorder();
                 if (error != null) {
                     toast("Recorder error ! See logcat for more details");
                     error.printStackTrace();
-                    output.delete();
-                } else {
+                }
+                if (startup != null && startup.has(StartupTrace.FIRST_SAMPLE)) {
+                    SharedPreferences preferences = getApplicationContext().getSharedPreferences("startup", MODE_PRIVATE);
+                    startup.saveTo(preferences);
+                    Log.i("@@", StartupTrace.summarize(preferences));
+                }
+                // keep what has been recorded even if stopped by an error
+                for (String path : getOutputPaths(r)) {
                     Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE)
                             .addCategory(Intent.CATEGORY_DEFAULT)
-                            .setData(Uri.fromFile(output));
+                            .setData(Uri.fromFile(new File(path)));
                     sendBroadcast(intent);
                 }
+                if (r == mOpenWhenStopped) {
+                    mOpenWhenStopped = null;
+                    if (error == null) openResult(new File(r.getSavedPath()));
+                }
             }
 
             @Override
             public void onStart() {
-                mNotifications.recording(0);
+                mNotifications.recording(0, 0);
             }
 
             @Override
-            public void onRecording(long presentationTimeUs) {
-                if (startTime <= 0) {
-                    startTime = presentationTimeUs;
-                }
-                long time = (presentationTimeUs - startTime) / 1000;
-                mNotifications.recording(time);
+            public void onRecording(long durationUs, long bytes, float framerate) {
+                if (r != mRecorder) return;
+                mNotifications.recording(durationUs / 1000, bytes);
+                mButton.setText(getString(R.string.stop_recorder) + " " + DateUtils.formatElapsedTime(durationUs / 1_000_000));
             }
         });
         return r;
     }
 
 
+    private static List<String> getOutputPaths(ScreenRecorder r) {
+        List<String> paths = r.getSavedPaths();
+        if (r.getProxyPath() != null) paths.add(r.getProxyPath());
+        return paths;
+    }
+
+    /**
+     * @return Returns config of the proxy video of {@code video}, or null if it's off
+     * or not able to encode two videos at once.
+     */
+    private VideoEncodeConfig createProxyConfig(VideoEncodeConfig video) {
+        boolean landscape = video.width > video.height;
+        int shortSide = Math.min(video.width, video.height);
+        if (mProxy.getSelectedItemPosition() == 0 || shortSide <= PROXY_SIZE || video.isTimelapse()) {
+            return null;
+        }
+        MediaCodecInfo codec = getVideoCodecInfo(video.codecName);
+        if (codec == null || (Build.VERSION.SDK_INT >= M
+                && codec.getCapabilitiesForType(VIDEO_AVC).getMaxSupportedInstances() < 2)) {
+            toast(getString(R.string.codec_unsupported_proxy), video.codecName);
+            return null;
+        }
+        // same aspect ratio, aligned to macroblock
+        int longSide = (Math.max(video.width, video.height) * PROXY_SIZE / shortSide + 15) & ~15;
+        int framerate = Math.min(video.framerate, PROXY_MAX_FRAMERATE);
+        return new VideoEncodeConfig(landscape ? longSide : PROXY_SIZE, landscape ? PROXY_SIZE : longSide,
+                PROXY_BITRATE, framerate, video.iframeInterval, video.codecName, VIDEO_AVC, null)
+                // bound the cost of second encoder
+                .withMaxInputFramerate(framerate)
+                .withPriority(VideoEncodeConfig.PRIORITY_BEST_EFFORT);
+    }
+
+    private VirtualDisplay getOrCreateProxyVirtualDisplay(MediaProjection mediaProjection, VideoEncodeConfig config) {
+        if (mProxyVirtualDisplay == null) {
+            mProxyVirtualDisplay = mediaProjection.createVirtualDisplay("ScreenRecorder-display1",
+                    config.width, config.height, 1 /*dpi*/,
+                    DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC,
+                    null /*surface*/, null, null);
+        } else {
+            Point size = new Point();
+            mProxyVirtualDisplay.getDisplay().getSize(size);
+            if (size.x != config.width || size.y != config.height) {
+                mProxyVirtualDisplay.resize(config.width, config.height, 1);
+            }
+        }
+        return mProxyVirtualDisplay;
+    }
+
     private VirtualDisplay getOrCreateVirtualDisplay(MediaProjection mediaProjection, VideoEncodeConfig config) {
         if (mVirtualDisplay == null) {
             mVirtualDisplay = mediaProjection.createVirtualDisplay("ScreenRecorder-display0",
@@ -251,6 +389,8 @@ public class MainActivity extends Activity {
 
     private AudioEncodeConfig createAudioConfig() {
         if (!mAudioToggle.isChecked()) return null;
+        // real time audio doesn't fit sped up video
+        if (isTimelapse()) return null;
         String codec = getSelectedAudioCodec();
         if (codec == null) {
             return null;
@@ -278,8 +418,36 @@ public class MainActivity extends Activity {
         int iframe = getSelectedIFrameInterval();
         int bitrate = getSelectedVideoBitrate();
         MediaCodecInfo.CodecProfileLevel profileLevel = getSelectedProfileLevel();
-        return new VideoEncodeConfig(width, height, bitrate,
+        VideoEncodeConfig config = new VideoEncodeConfig(width, height, bitrate,
                 framerate, iframe, codec, VIDEO_AVC, profileLevel);
+        int bitrateMode = getSelectedBitrateMode();
+        if (bitrateMode >= 0) {
+            config = config.withBitrateMode(bitrateMode, getSelectedCqQuality(codec));
+        }
+        if (isTimelapse()) {
+            config = config.withTimelapse(TIMELAPSE_CAPTURE_RATES[mTimelapse.getSelectedItemPosition()]);
+        }
+        int intraRefresh = mIntraRefresh.getSelectedItemPosition();
+        if (intraRefresh > 0) {
+            // falls back to I-frames in VideoEncoder if not supported
+            config = config.withIntraRefresh(Math.max(1, Math.round(framerate * INTRA_REFRESH_SECONDS[intraRefresh])));
+        }
+        switch (mEncoderMode.getSelectedItemPosition()) {
+            case ENCODER_MODE_LOW_LATENCY:
+                // output each frame right away, no reordering
+                return config.withLatency(1)
+                        .withPriority(VideoEncodeConfig.PRIORITY_REALTIME)
+                        .withOperatingRate(framerate)
+                        .withMaxBFrames(0);
+            case ENCODER_MODE_BEST_EFFORT:
+                return config.withPriority(VideoEncodeConfig.PRIORITY_BEST_EFFORT);
+            case ENCODER_MODE_B_FRAMES:
+                // smaller at the same quality, dropped for Baseline profile
+                return config.withMaxBFrames(MAX_B_FRAMES);
+            case ENCODER_MODE_DEFAULT:
+            default:
+                return config;
+        }
     }
 
     private static File getSavingDir() {
@@ -312,6 +480,11 @@ public class MainActivity extends Activity {
             mVirtualDisplay.release();
             mVirtualDisplay = null;
         }
+        if (mProxyVirtualDisplay != null) {
+            mProxyVirtualDisplay.setSurface(null);
+            mProxyVirtualDisplay.release();
+            mProxyVirtualDisplay = null;
+        }
         if (mMediaProjection != null) {
             mMediaProjection.unregisterCallback(mProjectionCallback);
             mMediaProjection.stop();
@@ -320,10 +493,20 @@ public class MainActivity extends Activity {
     }
 
     private void requestMediaProjection() {
+        if (mRecorder == null) {
+            if (!prepareRecorder()) return;
+            // warm up encoders while the user is reading the projection dialog
+            mRecorder.prewarm();
+        }
         Intent captureIntent = mMediaProjectionManager.createScreenCaptureIntent();
+        markStartup(StartupTrace.REQUEST_PROJECTION);
         startActivityForResult(captureIntent, REQUEST_MEDIA_PROJECTION);
     }
 
+    private void markStartup(String phase) {
+        if (mStartupTrace != null) mStartupTrace.mark(phase);
+    }
+
     private void bindViews() {
         mButton = findViewById(R.id.record_button);
         mButton.setOnClickListener(this::onButtonClick);
@@ -334,6 +517,14 @@ public class MainActivity extends Activity {
         mIFrameInterval = findViewById(R.id.iframe_interval);
         mVideoBitrate = findViewById(R.id.video_bitrate);
         mOrientation = findViewById(R.id.orientation);
+        mVideoPreset = findViewById(R.id.video_preset);
+        mEncoderMode = findViewById(R.id.encoder_mode);
+        mBitrateMode = findViewById(R.id.bitrate_mode);
+        mCqQuality = findViewById(R.id.cq_quality);
+        mIntraRefresh = findViewById(R.id.intra_refresh);
+        mSceneChangeKeyFrames = findViewById(R.id.scene_change_key_frames);
+        mProxy = findViewById(R.id.proxy);
+        mTimelapse = findViewById(R.id.timelapse);
 
         mAudioCodec = findViewById(R.id.audio_codec);
         mVideoProfileLevel = findViewById(R.id.avc_profile);
@@ -366,18 +557,25 @@ public class MainActivity extends Activity {
         mOrientation.setOnItemSelectedListener((view, position) -> {
             onOrientationChanged(position, view.getSelectedItem());
         });
+        mVideoPreset.setOnItemSelectedListener((view, position) -> onPresetSelected(position));
+        mBitrateMode.setOnItemSelectedListener((view, position) ->
+                mCqQuality.setVisibility(getSelectedBitrateMode() == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ
+                        ? View.VISIBLE : View.GONE));
     }
 
     private void onButtonClick(View v) {
         if (mRecorder != null) {
             stopRecordingAndOpenFile(v.getContext());
         } else if (hasPermissions()) {
+            mStartupTrace = new StartupTrace();
             if (mMediaProjection == null) {
                 requestMediaProjection();
             } else {
                 startCapturing(mMediaProjection);
             }
         } else if (Build.VERSION.SDK_INT >= M) {
+            // the permission dialog is a part of starting up too
+            mStartupTrace = new StartupTrace();
             requestPermissions();
         } else {
             toast(getString(R.string.no_permission_to_write_sd_ard));
@@ -388,7 +586,11 @@ public class MainActivity extends Activity {
         if (mRecorder == null) return;
         mRecorder.start();
         mButton.setText(getString(R.string.stop_recorder));
-        registerReceiver(mStopActionReceiver, new IntentFilter(ACTION_STOP));
+        IntentFilter filter = new IntentFilter(ACTION_STOP);
+        filter.addAction(ACTION_PAUSE);
+        filter.addAction(ACTION_RESUME);
+        registerReceiver(mStopActionReceiver, filter);
+        ((DisplayManager) getSystemService(DISPLAY_SERVICE)).registerDisplayListener(mDisplayListener, null);
         moveTaskToBack(true);
     }
 
@@ -404,6 +606,7 @@ public class MainActivity extends Activity {
         } catch (Exception e) {
             //ignored
         }
+        ((DisplayManager) getSystemService(DISPLAY_SERVICE)).unregisterDisplayListener(mDisplayListener);
     }
 
     private void cancelRecorder() {
@@ -492,6 +695,7 @@ public class MainActivity extends Activity {
         String codecName = getSelectedVideoCodec();
         MediaCodecInfo codec = getVideoCodecInfo(codecName);
         if (codec == null) return;
+        computeVideoConfigMatrix();
         MediaCodecInfo.CodecCapabilities capabilities = codec.getCapabilitiesForType(VIDEO_AVC);
         MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
         int[] selectedWithHeight = getSelectedWithHeight();
@@ -531,12 +735,43 @@ public class MainActivity extends Activity {
             mVideoFramerate.setSelectedPosition(resetPos);
             toast(getString(R.string.codec_unsupported_with_framerate), codecName, selectedFramerate);
         } else if (!videoCapabilities.areSizeAndRateSupported(width, height, selectedFramerate)) {
+            if (selectedFramerate > VideoEncodeConfig.HIGH_FRAMERATE
+                    && fitResolutionToFramerate(videoCapabilities, selectedFramerate)) {
+                return;
+            }
             mVideoFramerate.setSelectedPosition(resetPos);
             toast(getString(R.string.codec_unsupported_size_with_framerate),
                     codecName, width, height, selectedFramerate);
         }
     }
 
+    /**
+     * High framerate is usually supported in smaller sizes only, selects the largest one
+     * below the selected resolution which the codec can encode at {@code framerate}.
+     *
+     * @return Returns false if no such resolution
+     */
+    private boolean fitResolutionToFramerate(MediaCodecInfo.VideoCapabilities videoCapabilities, int framerate) {
+        boolean isLandscape = isLandscape();
+        for (int i = mVieoResolution.getSelectedItemPosition() - 1; i >= 0; i--) {
+            String[] xes = ((String) mVieoResolution.getAdapter().getItem(i)).split("x");
+            int width = Integer.parseInt(xes[isLandscape ? 0 : 1]);
+            int height = Integer.parseInt(xes[isLandscape ? 1 : 0]);
+            Range<Double> rates;
+            try {
+                rates = videoCapabilities.getSupportedFrameRatesFor(width, height);
+            } catch (IllegalArgumentException e) {
+                continue; // unsupported size
+            }
+            if (rates.contains((double) framerate)) {
+                mVieoResolution.setSelectedPosition(i);
+                toast(getString(R.string.resolution_lowered_for_framerate), width, height, framerate);
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void onVideoCodecSelected(String codecName) {
         MediaCodecInfo codec = getVideoCodecInfo(codecName);
         if (codec == null) {
@@ -546,6 +781,109 @@ public class MainActivity extends Activity {
         MediaCodecInfo.CodecCapabilities capabilities = codec.getCapabilitiesForType(VIDEO_AVC);
 
         resetAvcProfileLevelAdapter(capabilities);
+        computeVideoConfigMatrix();
+    }
+
+    private void computeVideoConfigMatrix() {
+        mVideoConfigMatrix = null;
+        final String codecName = getSelectedVideoCodec();
+        MediaCodecInfo codec = getVideoCodecInfo(codecName);
+        if (codec == null) return;
+        boolean isLandscape = isLandscape();
+        String[] resolutions = getResources().getStringArray(R.array.video_resolutions);
+        int[][] sizes = new int[resolutions.length][];
+        for (int i = 0; i < resolutions.length; i++) {
+            String[] xes = resolutions[i].split("x");
+            int width = Integer.parseInt(xes[isLandscape ? 0 : 1]);
+            int height = Integer.parseInt(xes[isLandscape ? 1 : 0]);
+            sizes[i] = new int[]{width, height};
+        }
+        String[] rates = getResources().getStringArray(R.array.video_framerates);
+        int[] framerates = new int[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            framerates[i] = Integer.parseInt(rates[i]);
+        }
+        String[] kbps = getResources().getStringArray(R.array.video_bitrates);
+        int[] bitrates = new int[kbps.length];
+        for (int i = 0; i < kbps.length; i++) {
+            bitrates[i] = Integer.parseInt(kbps[i]) * 1000;
+        }
+        VideoConfigMatrix.computeAsync(codec, VIDEO_AVC, sizes, framerates, bitrates, matrix -> {
+            if (!matrix.getCodecName().equals(getSelectedVideoCodec())
+                    || isLandscape != isLandscape()) {
+                return; // stale
+            }
+            Log.i("@@", codecName + " supports " + matrix.getEntries().size() + " video configs");
+            mVideoConfigMatrix = matrix;
+        });
+    }
+
+    private void onPresetSelected(int position) {
+        if (position <= 0) return; // Custom
+        VideoConfigMatrix matrix = mVideoConfigMatrix;
+        if (matrix == null) {
+            mVideoPreset.setSelectedPosition(0);
+            toast(getString(R.string.video_preset_not_ready));
+            return;
+        }
+        VideoConfigMatrix.Entry entry = matrix.best(position - 1);
+        if (entry == null) {
+            mVideoPreset.setSelectedPosition(0);
+            toast(getString(R.string.create_screenRecorder_failure));
+            return;
+        }
+        Log.i("@@", "Apply preset " + mVideoPreset.getSelectedItem() + ": " + entry);
+        boolean isLandscape = isLandscape();
+        selectItem(mVieoResolution, isLandscape
+                ? entry.width + "x" + entry.height
+                : entry.height + "x" + entry.width);
+        selectItem(mVideoFramerate, String.valueOf(entry.framerate));
+        selectItem(mVideoBitrate, String.valueOf(entry.bitrate / 1000));
+        selectItem(mVideoProfileLevel, entry.profileLevel == null
+                ? "Default"
+                : Utils.avcProfileLevelToString(entry.profileLevel));
+        selectBitrateMode(getVideoCodecInfo(matrix.getCodecName()), position - 1);
+    }
+
+    /**
+     * Selects the bitrate mode suits {@code preset}, falls back to VBR and default
+     * if {@code codec} doesn't support it.
+     */
+    private void selectBitrateMode(MediaCodecInfo codec, int preset) {
+        int mode;
+        switch (preset) {
+            case VideoConfigMatrix.PRESET_SMALLEST_FILE:
+                mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+                break;
+            case VideoConfigMatrix.PRESET_HIGHEST_FIDELITY:
+                mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+                mCqQuality.setSelectedPosition(CQ_QUALITIES.length - 1);
+                break;
+            case VideoConfigMatrix.PRESET_LOWEST_CPU:
+            default:
+                mode = -1;
+        }
+        if (!isBitrateModeSupported(codec, mode)) {
+            mode = isBitrateModeSupported(codec, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)
+                    ? MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR : -1;
+        }
+        for (int i = 0; i < BITRATE_MODES.length; i++) {
+            if (BITRATE_MODES[i] == mode) {
+                mBitrateMode.setSelectedPosition(i);
+                break;
+            }
+        }
+    }
+
+    private static void selectItem(NamedSpinner spinner, String item) {
+        SpinnerAdapter adapter = spinner.getAdapter();
+        if (adapter == null) return;
+        for (int i = 0; i < adapter.getCount(); i++) {
+            if (item.equals(String.valueOf(adapter.getItem(i)))) {
+                spinner.setSelectedPosition(i);
+                return;
+            }
+        }
     }
 
 
@@ -665,6 +1003,41 @@ public class MainActivity extends Activity {
         mAudioSampleRate.setSelectedPosition(rates.size() / 2);
     }
 
+    private boolean isTimelapse() {
+        return mTimelapse.getSelectedItemPosition() > 0;
+    }
+
+    private int getSelectedBitrateMode() {
+        int position = mBitrateMode.getSelectedItemPosition();
+        return position < 0 ? -1 : BITRATE_MODES[position];
+    }
+
+    /**
+     * @return Returns the quality of CQ mode in the codec's range, or -1 if not CQ or unknown.
+     */
+    private int getSelectedCqQuality(String codecName) {
+        int position = mCqQuality.getSelectedItemPosition();
+        MediaCodecInfo codec = getVideoCodecInfo(codecName);
+        if (getSelectedBitrateMode() != MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ
+                || position < 0 || codec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            return -1;
+        }
+        Range<Integer> range = codec.getCapabilitiesForType(VIDEO_AVC)
+                .getEncoderCapabilities().getQualityRange();
+        return range.getLower() + Math.round((range.getUpper() - range.getLower()) * CQ_QUALITIES[position]);
+    }
+
+    /**
+     * @param mode one of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*, or -1 for default
+     */
+    private static boolean isBitrateModeSupported(MediaCodecInfo codec, int mode) {
+        if (mode < 0) return true;
+        if (codec == null) return false;
+        MediaCodecInfo.EncoderCapabilities capabilities =
+                codec.getCapabilitiesForType(VIDEO_AVC).getEncoderCapabilities();
+        return capabilities != null && capabilities.isBitrateModeSupported(mode);
+    }
+
     private MediaCodecInfo getVideoCodecInfo(String codecName) {
         if (codecName == null) return null;
         if (mAvcCodecInfos == null) {
@@ -857,6 +1230,13 @@ public class MainActivity extends Activity {
                 mVideoCodec,
                 mAudioCodec,
                 mAudioProfile,
+                mEncoderMode,
+                mBitrateMode,
+                mCqQuality,
+                mIntraRefresh,
+                mSceneChangeKeyFrames,
+                mProxy,
+                mTimelapse,
         }) {
             saveSelectionToPreferences(edit, spinner);
         }
@@ -884,8 +1264,13 @@ public class MainActivity extends Activity {
 
     private void stopRecordingAndOpenFile(Context context) {
         File file = new File(mRecorder.getSavedPath());
+        // opened once finalized, see Callback.onStop()
+        mOpenWhenStopped = mRecorder;
         stopRecorder();
         Toast.makeText(context, getString(R.string.recorder_stopped_saved_file) + " " + file, Toast.LENGTH_LONG).show();
+    }
+
+    private void openResult(File file) {
         StrictMode.VmPolicy vmPolicy = StrictMode.getVmPolicy();
         try {
             // disable detecting FileUriExposure on public file
@@ -909,12 +1294,39 @@ public class MainActivity extends Activity {
     }
 
     static final String ACTION_STOP = BuildConfig.APPLICATION_ID + ".action.STOP";
+    static final String ACTION_PAUSE = BuildConfig.APPLICATION_ID + ".action.PAUSE";
+    static final String ACTION_RESUME = BuildConfig.APPLICATION_ID + ".action.RESUME";
+
+    private DisplayManager.DisplayListener mDisplayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId != Display.DEFAULT_DISPLAY || mRecorder == null) return;
+            // natural orientation of tablets is landscape, compare the real size instead of rotation
+            Point size = new Point();
+            getWindowManager().getDefaultDisplay().getRealSize(size);
+            mRecorder.requestOrientation(size.x > size.y);
+        }
+    };
 
     private BroadcastReceiver mStopActionReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (ACTION_STOP.equals(intent.getAction())) {
                 stopRecordingAndOpenFile(context);
+            } else if (mRecorder != null && ACTION_PAUSE.equals(intent.getAction())) {
+                mRecorder.pause();
+                mNotifications.setPaused(true);
+            } else if (mRecorder != null && ACTION_RESUME.equals(intent.getAction())) {
+                mRecorder.resume();
+                mNotifications.setPaused(false);
             }
         }
     };
@@ -16,31 +16,25 @@
 
 package net.yrom.screenrecorder;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaRecorder;
-import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseLongArray;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Locale;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
 import static android.media.MediaCodec.BUFFER_FLAG_KEY_FRAME;
 import static android.media.MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
-import static android.os.Build.VERSION_CODES.N;
 
 /**
  * @author yrom
@@ -53,25 +47,47 @@ class MicRecorder implements Encoder {
     private final AudioEncoder mEncoder;
     private final HandlerThread mRecordThread;
     private RecordHandler mRecordHandler;
-    private AudioRecord mMic; // access in mRecordThread only!
+    private AudioSource mMic; // access in mRecordThread only!
     private int mSampleRate;
-    private int mChannelConfig;
-    private int mFormat = AudioFormat.ENCODING_PCM_16BIT;
 
     private AtomicBoolean mForceStop = new AtomicBoolean(false);
+    private AtomicBoolean mPaused = new AtomicBoolean(false);
     private BaseEncoder.Callback mCallback;
     private CallbackDelegate mCallbackDelegate;
     private int mChannelsSampleRate;
+    private final AudioEncodeConfig mConfig;
+    private final AudioPtsCalculator mPtsCalculator;
+    private StartupTrace mStartupTrace;
 
     MicRecorder(AudioEncodeConfig config) {
+        mConfig = config;
         mEncoder = new AudioEncoder(config);
         mSampleRate = config.sampleRate;
         mChannelsSampleRate = mSampleRate * config.channelCount;
         if (VERBOSE) Log.i(TAG, "in bitrate " + mChannelsSampleRate * 16 /* PCM_16BIT*/);
-        mChannelConfig = config.channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        mPtsCalculator = new AudioPtsCalculator(mChannelsSampleRate);
         mRecordThread = new HandlerThread(TAG);
     }
 
+    /**
+     * Counts {@link PipelineMetrics#AUDIO_OVERRUNS} into {@code metrics}, should be set before
+     * {@link #prepare()}.
+     */
+    void setMetrics(PipelineMetrics metrics) {
+        mPtsCalculator.setOverrunCounter(metrics == null ? null : metrics.counter(PipelineMetrics.AUDIO_OVERRUNS));
+    }
+
+    /**
+     * Marks {@link StartupTrace#AUDIO_PREPARED} in {@code trace}, should be set before {@link #prepare()}.
+     */
+    void setStartupTrace(StartupTrace trace) {
+        mStartupTrace = trace;
+    }
+
+    AudioEncodeConfig getConfig() {
+        return mConfig;
+    }
+
     @Override
     public void setCallback(Callback callback) {
         this.mCallback = (BaseEncoder.Callback) callback;
@@ -85,12 +101,39 @@ class MicRecorder implements Encoder {
     public void prepare() throws IOException {
         Looper myLooper = Objects.requireNonNull(Looper.myLooper(), "Should prepare in HandlerThread");
         // run callback in caller thread
-        mCallbackDelegate = new CallbackDelegate(myLooper, mCallback);
+        mCallbackDelegate = new CallbackDelegate(myLooper, mEncoder, mCallback);
         mRecordThread.start();
         mRecordHandler = new RecordHandler(mRecordThread.getLooper());
         mRecordHandler.sendEmptyMessage(MSG_PREPARE);
     }
 
+    /**
+     * Starts reading from mic and feeding the encoder, must call after {@link #prepare()}
+     */
+    void startRecording() {
+        Objects.requireNonNull(mRecordHandler, "doesn't prepare()").sendEmptyMessage(MSG_START);
+    }
+
+    /**
+     * Stops reading from mic, the encoder is kept.
+     */
+    void pause() {
+        mPaused.set(true);
+        if (mRecordHandler != null) mRecordHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    void resume() {
+        if (mRecordHandler != null) mRecordHandler.sendEmptyMessage(MSG_RESUME);
+    }
+
+    /**
+     * Stops reading from mic, the encoder outputs the pending audio and then
+     * {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM end of stream}.
+     */
+    void signalEndOfStream() {
+        if (mRecordHandler != null) mRecordHandler.sendEmptyMessage(MSG_SIGNAL_EOS);
+    }
+
     @Override
     public void stop() {
         if (mCallbackDelegate != null) {
@@ -107,25 +150,37 @@ class MicRecorder implements Encoder {
         mRecordThread.quitSafely();
     }
 
-    void releaseOutputBuffer(int index) {
+    @Override
+    public void releaseOutputBuffer(int index) {
         if (VERBOSE) Log.d(TAG, "audio encoder released output buffer index=" + index);
         Message.obtain(mRecordHandler, MSG_RELEASE_OUTPUT, index, 0).sendToTarget();
     }
 
 
-    ByteBuffer getOutputBuffer(int index) {
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
         return mEncoder.getOutputBuffer(index);
     }
 
 
     private static class CallbackDelegate extends Handler {
+        private static final int MSG_OUTPUT_BUFFER = 0;
+        private final BaseEncoder mEncoder;
         private BaseEncoder.Callback mCallback;
 
-        CallbackDelegate(Looper l, BaseEncoder.Callback callback) {
+        CallbackDelegate(Looper l, BaseEncoder encoder, BaseEncoder.Callback callback) {
             super(l);
+            this.mEncoder = encoder;
             this.mCallback = callback;
         }
 
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_OUTPUT_BUFFER && mCallback != null) {
+                mCallback.onOutputBufferAvailable(mEncoder, msg.arg1, (MediaCodec.BufferInfo) msg.obj);
+            }
+        }
+
 
         void onError(Encoder encoder, Exception exception) {
             Message.obtain(this, () -> {
@@ -143,12 +198,11 @@ class MicRecorder implements Encoder {
             }).sendToTarget();
         }
 
-        void onOutputBufferAvailable(BaseEncoder encoder, int index, MediaCodec.BufferInfo info) {
-            Message.obtain(this, () -> {
-                if (mCallback != null) {
-                    mCallback.onOutputBufferAvailable(encoder, index, info);
-                }
-            }).sendToTarget();
+        /**
+         * Called for every output, a pooled message instead of a lambda
+         */
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            Message.obtain(this, MSG_OUTPUT_BUFFER, index, 0, info).sendToTarget();
         }
 
     }
@@ -159,12 +213,21 @@ class MicRecorder implements Encoder {
     private static final int MSG_RELEASE_OUTPUT = 3;
     private static final int MSG_STOP = 4;
     private static final int MSG_RELEASE = 5;
+    private static final int MSG_START = 6;
+    private static final int MSG_PAUSE = 7;
+    private static final int MSG_RESUME = 8;
+    private static final int MSG_SIGNAL_EOS = 9;
 
     private class RecordHandler extends Handler {
 
-        private LinkedList<MediaCodec.BufferInfo> mCachedInfos = new LinkedList<>();
-        private LinkedList<Integer> mMuxingOutputBufferIndices = new LinkedList<>();
+        // recycled once their buffers are released, the muxer doesn't keep them
+        private final ArrayDeque<MediaCodec.BufferInfo> mCachedInfos = new ArrayDeque<>();
+        // of output buffers being muxed, by index
+        private MediaCodec.BufferInfo[] mMuxingInfos = new MediaCodec.BufferInfo[8];
+        private int mMuxingOutputBuffers = 0;
         private int mPollRate = 2048_000 / mSampleRate; // poll per 2048 samples
+        private boolean mInputEnded = false;
+        private boolean mOutputEnded = false;
 
         RecordHandler(Looper l) {
             super(l);
@@ -174,28 +237,44 @@ class MicRecorder implements Encoder {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_PREPARE:
-                    AudioRecord r = createAudioRecord(mSampleRate, mChannelConfig, mFormat);
+                    AudioSource r = AndroidAudioSource.create(mConfig);
                     if (r == null) {
                         Log.e(TAG, "create audio record failure");
                         mCallbackDelegate.onError(MicRecorder.this, new IllegalArgumentException());
                         break;
                     } else {
-                        r.startRecording();
                         mMic = r;
                     }
                     try {
                         mEncoder.prepare();
+                        if (mStartupTrace != null) mStartupTrace.mark(StartupTrace.AUDIO_PREPARED);
                     } catch (Exception e) {
+                        mMic.release();
+                        mMic = null;
                         mCallbackDelegate.onError(MicRecorder.this, e);
+                    }
+                    break;
+                case MSG_START:
+                    if (mMic == null || mForceStop.get()) {
+                        // failed to prepare, error has been reported
                         break;
                     }
+                    mMic.startRecording();
                 case MSG_FEED_INPUT:
-                    if (!mForceStop.get()) {
+                    if (mInputEnded) {
+                        // nothing to feed, wait for the end of stream
+                        offerOutput();
+                        if (!mOutputEnded && !mForceStop.get()) {
+                            sendEmptyMessageDelayed(MSG_FEED_INPUT, mPollRate);
+                        }
+                        break;
+                    }
+                    if (!mForceStop.get() && !mPaused.get()) {
                         int index = pollInput();
                         if (VERBOSE)
                             Log.d(TAG, "audio encoder returned input buffer index=" + index);
                         if (index >= 0) {
-                            feedAudioEncoder(index);
+                            mInputEnded = feedAudioEncoder(index);
                             // tell encoder to eat the fresh meat!
                             if (!mForceStop.get()) sendEmptyMessage(MSG_DRAIN_OUTPUT);
                         } else {
@@ -211,11 +290,33 @@ class MicRecorder implements Encoder {
                     break;
                 case MSG_RELEASE_OUTPUT:
                     mEncoder.releaseOutputBuffer(msg.arg1);
-                    mMuxingOutputBufferIndices.poll(); // Nobody care what it exactly is.
+                    recycleInfo(msg.arg1);
                     if (VERBOSE) Log.d(TAG, "audio encoder released output buffer index="
-                            + msg.arg1 + ", remaining=" + mMuxingOutputBufferIndices.size());
+                            + msg.arg1 + ", remaining=" + mMuxingOutputBuffers);
                     pollInputIfNeed();
                     break;
+                case MSG_PAUSE:
+                    removeMessages(MSG_FEED_INPUT);
+                    if (mMic != null) {
+                        mMic.stop();
+                    }
+                    break;
+                case MSG_RESUME:
+                    if (mMic == null || mForceStop.get() || !mPaused.get()) break;
+                    mMic.startRecording();
+                    // nothing was read while paused, don't count it as lost samples
+                    mPtsCalculator.reset();
+                    mPaused.set(false);
+                    sendEmptyMessage(MSG_FEED_INPUT);
+                    break;
+                case MSG_SIGNAL_EOS:
+                    if (mMic == null || mForceStop.get() || mInputEnded) break;
+                    // the next input will be marked as end of stream
+                    mMic.stop();
+                    mPaused.set(false);
+                    removeMessages(MSG_FEED_INPUT);
+                    sendEmptyMessage(MSG_FEED_INPUT);
+                    break;
                 case MSG_STOP:
                     if (mMic != null) {
                         mMic.stop();
@@ -248,18 +349,33 @@ class MicRecorder implements Encoder {
                     mCachedInfos.offer(info);
                     break;
                 }
-                mMuxingOutputBufferIndices.offer(index);
-                mCallbackDelegate.onOutputBufferAvailable(mEncoder, index, info);
+                if ((info.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mOutputEnded = true;
+                }
+                if (index >= mMuxingInfos.length) {
+                    mMuxingInfos = Arrays.copyOf(mMuxingInfos, Math.max(index + 1, mMuxingInfos.length * 2));
+                }
+                mMuxingInfos[index] = info;
+                mMuxingOutputBuffers++;
+                mCallbackDelegate.onOutputBufferAvailable(index, info);
 
             }
         }
 
+        private void recycleInfo(int index) {
+            mMuxingOutputBuffers--;
+            MediaCodec.BufferInfo info = index < mMuxingInfos.length ? mMuxingInfos[index] : null;
+            if (info == null) return;
+            mMuxingInfos[index] = null;
+            mCachedInfos.offer(info);
+        }
+
         private int pollInput() {
             return mEncoder.getEncoder().dequeueInputBuffer(0);
         }
 
         private void pollInputIfNeed() {
-            if (mMuxingOutputBufferIndices.size() <= 1 && !mForceStop.get()) {
+            if (mMuxingOutputBuffers <= 1 && !mForceStop.get() && !mPaused.get()) {
                 // need fresh data, right now!
                 removeMessages(MSG_FEED_INPUT);
                 sendEmptyMessageDelayed(MSG_FEED_INPUT, 0);
@@ -269,25 +385,24 @@ class MicRecorder implements Encoder {
 
     /**
      * NOTE: Should waiting all output buffer disappear queue input buffer
+     *
+     * @return Returns true if queued the end of stream
      */
-    private void feedAudioEncoder(int index) {
-        if (index < 0 || mForceStop.get()) return;
-        final AudioRecord r = Objects.requireNonNull(mMic, "maybe release");
-        final boolean eos = r.getRecordingState() == AudioRecord.RECORDSTATE_STOPPED;
+    private boolean feedAudioEncoder(int index) {
+        if (index < 0 || mForceStop.get()) return false;
+        final AudioSource r = Objects.requireNonNull(mMic, "maybe release");
         final ByteBuffer frame = mEncoder.getInputBuffer(index);
         int offset = frame.position();
-        int limit = frame.limit();
-        int read = 0;
-        if (!eos) {
-            read = r.read(frame, limit);
-            if (VERBOSE) Log.d(TAG, "Read frame data size " + read + " for index "
-                    + index + " buffer : " + offset + ", " + limit);
-            if (read < 0) {
-                read = 0;
-            }
+        int read = readInput(r, frame);
+        final boolean eos = read < 0;
+        if (eos) {
+            read = 0;
         }
+        if (VERBOSE) Log.d(TAG, "Read frame data size " + read + " for index "
+                + index + " buffer : " + offset + ", " + frame.limit());
 
-        long pstTs = calculateFrameTimestamp(read << 3);
+        long pstTs = mPtsCalculator.calculate(read << 3, SystemClock.elapsedRealtimeNanos() / 1000);
+        if (VERBOSE) Log.i(TAG, "count samples pts: " + pstTs + ", samples: " + (read >> 1));
         int flags = BUFFER_FLAG_KEY_FRAME;
 
         if (eos) {
@@ -297,69 +412,21 @@ class MicRecorder implements Encoder {
         if (VERBOSE) Log.d(TAG, "Feed codec index=" + index + ", presentationTimeUs="
                 + pstTs + ", flags=" + flags);
         mEncoder.queueInputBuffer(index, offset, read, pstTs, flags);
+        return eos;
     }
 
-
-    private static final int LAST_FRAME_ID = -1;
-    private SparseLongArray mFramesUsCache = new SparseLongArray(2);
-
     /**
-     * Gets presentation time (us) of polled frame.
-     * 1 sample = 16 bit
+     * Fills {@code frame} from its position to its limit, as much as {@code mic} has.
+     *
+     * @return Returns bytes read, or -1 if the mic has stopped, the end of stream
      */
-    private long calculateFrameTimestamp(int totalBits) {
-        int samples = totalBits >> 4;
-        long frameUs = mFramesUsCache.get(samples, -1);
-        if (frameUs == -1) {
-            frameUs = samples * 1000_000 / mChannelsSampleRate;
-            mFramesUsCache.put(samples, frameUs);
-        }
-        long timeUs = SystemClock.elapsedRealtimeNanos() / 1000;
-        // accounts the delay of polling the audio sample data
-        timeUs -= frameUs;
-        long currentUs;
-        long lastFrameUs = mFramesUsCache.get(LAST_FRAME_ID, -1);
-        if (lastFrameUs == -1) { // it's the first frame
-            currentUs = timeUs;
-        } else {
-            currentUs = lastFrameUs;
-        }
-        if (VERBOSE)
-            Log.i(TAG, "count samples pts: " + currentUs + ", time pts: " + timeUs + ", samples: " + samples);
-        // maybe too late to acquire sample data
-        if (timeUs - currentUs >= (frameUs << 1)) {
-            // reset
-            currentUs = timeUs;
-        }
-        mFramesUsCache.put(LAST_FRAME_ID, currentUs + frameUs);
-        return currentUs;
-    }
-
-    private static AudioRecord createAudioRecord(int sampleRateInHz, int channelConfig, int audioFormat) {
-        int minBytes = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
-        if (minBytes <= 0) {
-            Log.e(TAG, String.format(Locale.US, "Bad arguments: getMinBufferSize(%d, %d, %d)",
-                    sampleRateInHz, channelConfig, audioFormat));
-            return null;
-        }
-        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                sampleRateInHz,
-                channelConfig,
-                audioFormat,
-                minBytes * 2);
-
-        if (record.getState() == AudioRecord.STATE_UNINITIALIZED) {
-            Log.e(TAG, String.format(Locale.US, "Bad arguments to new AudioRecord %d, %d, %d",
-                    sampleRateInHz, channelConfig, audioFormat));
-            return null;
-        }
-        if (VERBOSE) {
-            Log.i(TAG, "created AudioRecord " + record + ", MinBufferSize= " + minBytes);
-            if (Build.VERSION.SDK_INT >= N) {
-                Log.d(TAG, " size in frame " + record.getBufferSizeInFrames());
-            }
+    static int readInput(AudioSource mic, ByteBuffer frame) {
+        if (!mic.isRecording()) {
+            return -1;
         }
-        return record;
+        int read = mic.read(frame, frame.limit());
+        // an error code, e.g. dead object, counts as silence
+        return read < 0 ? 0 : read;
     }
 
 }
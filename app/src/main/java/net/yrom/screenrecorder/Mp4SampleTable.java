@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the sync samples of the video track are in a finished MP4 file, from the sample table
+ * boxes of its {@code moov}: {@code stss}, {@code stsz}, {@code stsc} and {@code stco}/{@code co64}.
+ * MediaMuxer decides the layout of the file, offsets are only known once it's written.
+ */
+final class Mp4SampleTable {
+    /**
+     * Byte offsets in the file of the sync samples, in decode order
+     */
+    final long[] syncOffsets;
+    /**
+     * Bytes of the sync samples
+     */
+    final int[] syncSizes;
+
+    private Mp4SampleTable(long[] syncOffsets, int[] syncSizes) {
+        this.syncOffsets = syncOffsets;
+        this.syncSizes = syncSizes;
+    }
+
+    /**
+     * Reads the sample table of the first video track of {@code file}.
+     *
+     * @throws IOException if no video track or the boxes are malformed
+     */
+    static Mp4SampleTable readVideoSyncSamples(File file) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+            long[] moov = findBox(f, 0, f.length(), "moov");
+            if (moov == null) throw new IOException("No moov in " + file);
+            long pos = moov[0];
+            long[] trak;
+            while ((trak = findBox(f, pos, moov[1], "trak")) != null) {
+                pos = trak[1];
+                long[] mdia = findBox(f, trak[0], trak[1], "mdia");
+                if (mdia == null) continue;
+                long[] hdlr = findBox(f, mdia[0], mdia[1], "hdlr");
+                // version and flags, pre_defined, then handler_type
+                if (hdlr == null || !"vide".equals(readType(f, hdlr[0] + 8))) continue;
+                long[] minf = findBox(f, mdia[0], mdia[1], "minf");
+                long[] stbl = minf == null ? null : findBox(f, minf[0], minf[1], "stbl");
+                if (stbl == null) throw new IOException("No stbl of video track in " + file);
+                return read(f, stbl);
+            }
+            throw new IOException("No video track in " + file);
+        }
+    }
+
+    private static Mp4SampleTable read(RandomAccessFile f, long[] stbl) throws IOException {
+        ByteBuffer stsz = readFullBox(f, stbl, "stsz");
+        ByteBuffer stsc = readFullBox(f, stbl, "stsc");
+        ByteBuffer stco = readFullBox(f, stbl, "stco");
+        boolean co64 = stco == null;
+        if (co64) stco = readFullBox(f, stbl, "co64");
+        // all samples are sync samples without it
+        ByteBuffer stss = readFullBox(f, stbl, "stss");
+        if (stsz == null || stsc == null || stco == null) throw new IOException("Incomplete stbl");
+
+        int fixedSize = stsz.getInt();
+        int sampleCount = stsz.getInt();
+        int runs = stsc.getInt();
+        int chunkCount = stco.getInt();
+        int syncCount = stss == null ? sampleCount : stss.getInt();
+        long[] offsets = new long[syncCount];
+        int[] sizes = new int[syncCount];
+        int synced = 0;
+        int nextSync = stss == null || syncCount == 0 ? 1 : stss.getInt();
+
+        int sample = 0;
+        // runs of chunks with the same samples per chunk, first chunk 1-based
+        int run = 0;
+        int samplesPerChunk = 0;
+        int nextRunChunk = runs > 0 ? stsc.getInt(stsc.position()) : Integer.MAX_VALUE;
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            while (chunk >= nextRunChunk) {
+                stsc.getInt();
+                samplesPerChunk = stsc.getInt();
+                stsc.getInt(); // sample_description_index
+                run++;
+                nextRunChunk = run < runs ? stsc.getInt(stsc.position()) : Integer.MAX_VALUE;
+            }
+            long offset = co64 ? stco.getLong() : stco.getInt() & 0xffffffffL;
+            for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                int size = fixedSize != 0 ? fixedSize : stsz.getInt();
+                sample++;
+                if (sample == nextSync && synced < syncCount) {
+                    offsets[synced] = offset;
+                    sizes[synced] = size;
+                    synced++;
+                    if (stss == null) {
+                        nextSync++;
+                    } else if (synced < syncCount) {
+                        nextSync = stss.getInt();
+                    }
+                }
+                offset += size;
+            }
+        }
+        if (synced < syncCount) throw new IOException("Sync samples beyond chunks, " + synced + "/" + syncCount);
+        return new Mp4SampleTable(offsets, sizes);
+    }
+
+    /**
+     * @return Returns contents of the box {@code type} in {@code parent} after version and flags,
+     * or null if not found
+     */
+    private static ByteBuffer readFullBox(RandomAccessFile f, long[] parent, String type) throws IOException {
+        long[] box = findBox(f, parent[0], parent[1], type);
+        if (box == null) return null;
+        long length = box[1] - box[0] - 4;
+        if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("Malformed " + type);
+        byte[] content = new byte[(int) length];
+        f.seek(box[0] + 4);
+        f.readFully(content);
+        return ByteBuffer.wrap(content);
+    }
+
+    /**
+     * @return Returns start and end of contents of the first box {@code type} in [start, end),
+     * or null if not found
+     */
+    private static long[] findBox(RandomAccessFile f, long start, long end, String type) throws IOException {
+        long pos = start;
+        while (pos + 8 <= end) {
+            f.seek(pos);
+            long size = f.readInt() & 0xffffffffL;
+            String boxType = readType(f, pos + 4);
+            int header = 8;
+            if (size == 1) {
+                size = f.readLong();
+                header = 16;
+            } else if (size == 0) {
+                // to the end
+                size = end - pos;
+            }
+            if (size < header || pos + size > end) throw new IOException("Malformed box " + boxType + " at " + pos);
+            if (boxType.equals(type)) return new long[]{pos + header, pos + size};
+            pos += size;
+        }
+        return null;
+    }
+
+    private static String readType(RandomAccessFile f, long pos) throws IOException {
+        byte[] type = new byte[4];
+        f.seek(pos);
+        f.readFully(type);
+        return new String(type, "US-ASCII");
+    }
+}
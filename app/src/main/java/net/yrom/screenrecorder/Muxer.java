@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * What {@link SegmentMuxer} needs of {@link android.media.MediaMuxer}, so the muxing path
+ * can run against a fake on the JVM.
+ *
+ * @see AndroidMuxer
+ */
+interface Muxer {
+    /**
+     * @return Returns index of the new track
+     * @see android.media.MediaMuxer#addTrack(MediaFormat)
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info);
+
+    void stop();
+
+    void release();
+
+    interface Factory {
+        /**
+         * @param path where to write the MPEG-4 file
+         */
+        Muxer create(String path) throws IOException;
+    }
+}
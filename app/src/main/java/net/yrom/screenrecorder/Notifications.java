@@ -25,10 +25,12 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
 import android.os.Build;
-import android.os.SystemClock;
 import android.text.format.DateUtils;
+import android.text.format.Formatter;
 
 import static android.os.Build.VERSION_CODES.O;
+import static net.yrom.screenrecorder.MainActivity.ACTION_PAUSE;
+import static net.yrom.screenrecorder.MainActivity.ACTION_RESUME;
 import static net.yrom.screenrecorder.MainActivity.ACTION_STOP;
 
 /**
@@ -40,9 +42,13 @@ class Notifications extends ContextWrapper {
     private static final String CHANNEL_ID = "Recording";
     private static final String CHANNEL_NAME = "Screen Recorder Notifications";
 
-    private long mLastFiredTime = 0;
+    private long mLastTimeMs = 0;
+    private long mLastBytes = 0;
+    private boolean mPaused = false;
     private NotificationManager mManager;
     private Notification.Action mStopAction;
+    private Notification.Action mPauseAction;
+    private Notification.Action mResumeAction;
     private Notification.Builder mBuilder;
 
     Notifications(Context context) {
@@ -52,30 +58,46 @@ class Notifications extends ContextWrapper {
         }
     }
 
-    public void recording(long timeMs) {
-        if (SystemClock.elapsedRealtime() - mLastFiredTime < 1000) {
-            return;
-        }
+    /**
+     * Updates length and size of the recording, expected about once per second.
+     */
+    public void recording(long timeMs, long bytes) {
+        mLastTimeMs = timeMs;
+        mLastBytes = bytes;
+        String text = getString(R.string.length_video) + " " + DateUtils.formatElapsedTime(timeMs / 1000);
+        if (bytes > 0) text += ", " + Formatter.formatShortFileSize(this, bytes);
         Notification notification = getBuilder()
-                .setContentText(getString(R.string.length_video)+" " + DateUtils.formatElapsedTime(timeMs / 1000))
+                .setContentText(text)
                 .build();
         getNotificationManager().notify(id, notification);
-        mLastFiredTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Switches between pause and resume action immediately.
+     */
+    public void setPaused(boolean paused) {
+        if (mPaused == paused) return;
+        mPaused = paused;
+        // actions of builder are not removable before N
+        mBuilder = null;
+        recording(mLastTimeMs, mLastBytes);
     }
 
     private Notification.Builder getBuilder() {
         if (mBuilder == null) {
             Notification.Builder builder = new Notification.Builder(this)
-                    .setContentTitle(getString(R.string.gravando))
+                    .setContentTitle(getString(mPaused ? R.string.paused : R.string.gravando))
                     .setOngoing(true)
                     .setLocalOnly(true)
                     .setOnlyAlertOnce(true)
+                    .addAction(mPaused ? resumeAction() : pauseAction())
                     .addAction(stopAction())
-                    .setWhen(System.currentTimeMillis())
+                    // rebuilt on pause and resume, the chronometer goes on from the recorded length
+                    .setWhen(System.currentTimeMillis() - mLastTimeMs)
                     .setSmallIcon(R.drawable.ic_stat_recording);
             if (Build.VERSION.SDK_INT >= O) {
                 builder.setChannelId(CHANNEL_ID)
-                        .setUsesChronometer(true);
+                        .setUsesChronometer(!mPaused);
             }
             mBuilder = builder;
         }
@@ -100,10 +122,34 @@ class Notifications extends ContextWrapper {
         return mStopAction;
     }
 
+    private Notification.Action pauseAction() {
+        if (mPauseAction == null) {
+            Intent intent = new Intent(ACTION_PAUSE).setPackage(getPackageName());
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 2,
+                    intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            mPauseAction = new Notification.Action(android.R.drawable.ic_media_pause, getString(R.string.pause), pendingIntent);
+        }
+        return mPauseAction;
+    }
+
+    private Notification.Action resumeAction() {
+        if (mResumeAction == null) {
+            Intent intent = new Intent(ACTION_RESUME).setPackage(getPackageName());
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 3,
+                    intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            mResumeAction = new Notification.Action(android.R.drawable.ic_media_play, getString(R.string.resume), pendingIntent);
+        }
+        return mResumeAction;
+    }
+
     void clear() {
-        mLastFiredTime = 0;
+        mLastTimeMs = 0;
+        mLastBytes = 0;
+        mPaused = false;
         mBuilder = null;
         mStopAction = null;
+        mPauseAction = null;
+        mResumeAction = null;
         getNotificationManager().cancelAll();
     }
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+/**
+ * FIFO of encoder output buffers waiting for the muxer, their index and the fields of
+ * MediaCodec.BufferInfo kept in a ring of primitive arrays, so queueing allocates
+ * nothing once it has grown to the usual depth.
+ * <p>
+ * Not thread safe.
+ */
+final class PendingBuffers {
+    private int[] mIndices;
+    private int[] mOffsets;
+    private int[] mSizes;
+    private long[] mPresentationTimesUs;
+    private int[] mFlags;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private int mPolledOffset;
+    private int mPolledSize;
+    private long mPolledPresentationTimeUs;
+    private int mPolledFlags;
+
+    PendingBuffers() {
+        this(16);
+    }
+
+    /**
+     * @param capacity initial capacity, a power of 2
+     */
+    PendingBuffers(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity " + capacity);
+        mIndices = new int[capacity];
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+    }
+
+    void add(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (mSize == mIndices.length) grow();
+        int tail = (mHead + mSize) & (mIndices.length - 1);
+        mIndices[tail] = index;
+        mOffsets[tail] = offset;
+        mSizes[tail] = size;
+        mPresentationTimesUs[tail] = presentationTimeUs;
+        mFlags[tail] = flags;
+        mSize++;
+    }
+
+    /**
+     * Removes the eldest, its fields are {@link #getPolledSize()} etc. until the next poll.
+     *
+     * @return Returns index of the output buffer
+     * @throws IllegalStateException if empty
+     */
+    int poll() {
+        if (mSize == 0) throw new IllegalStateException("empty");
+        int head = mHead;
+        mPolledOffset = mOffsets[head];
+        mPolledSize = mSizes[head];
+        mPolledPresentationTimeUs = mPresentationTimesUs[head];
+        mPolledFlags = mFlags[head];
+        mHead = (head + 1) & (mIndices.length - 1);
+        mSize--;
+        return mIndices[head];
+    }
+
+    int getPolledOffset() {
+        return mPolledOffset;
+    }
+
+    int getPolledSize() {
+        return mPolledSize;
+    }
+
+    long getPolledPresentationTimeUs() {
+        return mPolledPresentationTimeUs;
+    }
+
+    int getPolledFlags() {
+        return mPolledFlags;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private void grow() {
+        int capacity = mIndices.length << 1;
+        mIndices = unroll(mIndices, capacity);
+        mOffsets = unroll(mOffsets, capacity);
+        mSizes = unroll(mSizes, capacity);
+        mFlags = unroll(mFlags, capacity);
+        long[] times = new long[capacity];
+        int first = mPresentationTimesUs.length - mHead;
+        System.arraycopy(mPresentationTimesUs, mHead, times, 0, first);
+        System.arraycopy(mPresentationTimesUs, 0, times, first, mHead);
+        mPresentationTimesUs = times;
+        mHead = 0;
+    }
+
+    // copies a full ring from its head to the start of a larger array
+    private int[] unroll(int[] ring, int capacity) {
+        int[] array = new int[capacity];
+        int first = ring.length - mHead;
+        System.arraycopy(ring, mHead, array, 0, first);
+        System.arraycopy(ring, 0, array, first, mHead);
+        return array;
+    }
+}
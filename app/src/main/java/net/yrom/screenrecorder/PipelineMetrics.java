@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of the recording pipeline, cheap enough to leave on for a whole
+ * session. Metrics are registered once, then updated lock-free from any thread through the
+ * returned instances, never looked up by name on a hot path.
+ */
+final class PipelineMetrics {
+    // names of metrics ScreenRecorder and MicRecorder keep
+    static final String VIDEO_FRAMES = "video.frames";
+    static final String VIDEO_BYTES = "video.bytes";
+    static final String VIDEO_DROPPED = "video.dropped";
+    static final String VIDEO_CAPTURE_TO_MUX_US = "video.captureToMuxUs";
+    static final String VIDEO_PENDING = "video.pending";
+    static final String AUDIO_FRAMES = "audio.frames";
+    static final String AUDIO_BYTES = "audio.bytes";
+    static final String AUDIO_OVERRUNS = "audio.overruns";
+    static final String AUDIO_CAPTURE_TO_MUX_US = "audio.captureToMuxUs";
+    static final String AUDIO_PENDING = "audio.pending";
+    static final String MUXER_WRITE_NS = "muxer.writeNs";
+
+    private final Map<String, Counter> mCounters = new LinkedHashMap<>();
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+
+    /**
+     * @return Returns the counter of {@code name}, registers it if not yet
+     */
+    synchronized Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * @return Returns the histogram of {@code name}, registers it if not yet
+     */
+    synchronized Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Values of all metrics, each one read atomically but not all at the same instant.
+     */
+    synchronized Snapshot snapshot() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            counters.put(e.getKey(), e.getValue().get());
+        }
+        Map<String, Histogram.Snapshot> histograms = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new Snapshot(System.nanoTime(), counters, histograms);
+    }
+
+    static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Log-linear buckets like HdrHistogram's: values below 16 are exact, above that every
+     * power of two is split into 16 buckets, about 6% of relative error for any non-negative
+     * long with a fixed array of counts.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        /**
+         * @param value negative values are taken as 0
+         */
+        void record(long value) {
+            if (value < 0) value = 0;
+            mCounts.incrementAndGet(indexOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // retry
+            }
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BUCKET_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return Returns the highest value falls into bucket {@code index}
+         */
+        static long highestOf(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            long lowest = (long) (SUB_BUCKETS + sub) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mCounts.get(i);
+                total += counts[i];
+            }
+            long max = total == 0 ? 0 : mMax.get();
+            long mean = total == 0 ? 0 : mSum.get() / Math.max(mCount.get(), 1);
+            return new Snapshot(total, mean, max,
+                    percentile(counts, total, 0.5, max),
+                    percentile(counts, total, 0.9, max),
+                    percentile(counts, total, 0.99, max),
+                    percentile(counts, total, 0.999, max));
+        }
+
+        private static long percentile(long[] counts, long total, double quantile, long max) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestOf(i), max);
+            }
+            return max;
+        }
+
+        static final class Snapshot {
+            final long count;
+            final long mean;
+            final long max;
+            final long p50;
+            final long p90;
+            final long p99;
+            final long p999;
+
+            Snapshot(long count, long mean, long max, long p50, long p90, long p99, long p999) {
+                this.count = count;
+                this.mean = mean;
+                this.max = max;
+                this.p50 = p50;
+                this.p90 = p90;
+                this.p99 = p99;
+                this.p999 = p999;
+            }
+
+            @Override
+            public String toString() {
+                return String.format(Locale.US, "count=%d, mean=%d, p50=%d, p90=%d, p99=%d, p99.9=%d, max=%d",
+                        count, mean, p50, p90, p99, p999, max);
+            }
+        }
+    }
+
+    static final class Snapshot {
+        /**
+         * {@link System#nanoTime()} when taken
+         */
+        final long timeNs;
+        final Map<String, Long> counters;
+        final Map<String, Histogram.Snapshot> histograms;
+
+        Snapshot(long timeNs, Map<String, Long> counters, Map<String, Histogram.Snapshot> histograms) {
+            this.timeNs = timeNs;
+            this.counters = counters;
+            this.histograms = histograms;
+        }
+
+        long counter(String name) {
+            Long value = counters.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /**
+         * @return Returns growth of counter {@code name} per second since {@code last}
+         */
+        double rate(String name, Snapshot last) {
+            long elapsedNs = timeNs - last.timeNs;
+            if (elapsedNs <= 0) return 0;
+            return (counter(name) - last.counter(name)) * 1e9 / elapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{counters=" + counters + ", histograms=" + histograms + '}';
+        }
+    }
+}
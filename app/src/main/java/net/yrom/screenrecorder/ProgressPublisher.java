@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Publishes progress of a recording on a looper, typically the main one, every {@link #INTERVAL_MS}
+ * if it has changed. The muxing path only updates the numbers of {@link SegmentMuxer} read here,
+ * it never calls back by itself.
+ */
+final class ProgressPublisher implements Runnable {
+    static final long INTERVAL_MS = 1000;
+
+    interface Listener {
+        /**
+         * @param durationUs duration of the muxed video
+         * @param bytes      of all muxed samples
+         * @param framerate  achieved so far
+         */
+        void onProgress(long durationUs, long bytes, float framerate);
+    }
+
+    private final Handler mHandler;
+    private final SegmentMuxer mMuxer;
+    private final Listener mListener;
+    private volatile boolean mStopped = false;
+    private long mLastDurationUs = -1;
+
+    ProgressPublisher(Looper looper, SegmentMuxer muxer, Listener listener) {
+        mHandler = new Handler(looper);
+        mMuxer = muxer;
+        mListener = listener;
+    }
+
+    /**
+     * Publishes right away and then every {@link #INTERVAL_MS}, may be called in any thread.
+     */
+    void start() {
+        mHandler.post(this);
+    }
+
+    /**
+     * No more published after this, may be called in any thread.
+     */
+    void stop() {
+        mStopped = true;
+        mHandler.removeCallbacks(this);
+    }
+
+    @Override
+    public void run() {
+        if (mStopped) return;
+        long durationUs = mMuxer.getMuxedDurationUs();
+        // nothing muxed while paused
+        if (durationUs != mLastDurationUs) {
+            mLastDurationUs = durationUs;
+            mListener.onProgress(durationUs, mMuxer.getMuxedBytes(), mMuxer.getAchievedFramerate());
+        }
+        mHandler.postDelayed(this, INTERVAL_MS);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+/**
+ * Rebases presentation time of one track to start from 0, and collapses the gaps of pauses
+ * so that playback is continuous.
+ * <p>
+ * All times are in microseconds of the clock which the track's timestamps come from.
+ * Not thread safe.
+ */
+final class PtsRebaser {
+    /**
+     * Returned by {@link #rebase(long)} if the sample was captured while paused.
+     */
+    static final long DROP = -1;
+
+    private long mStartUs = -1;
+    private long mPausedUs = 0;
+    private long mPauseStartUs = -1;
+    // the last finished pause, for samples captured before it but arrived after it
+    private long mLastPauseStartUs = -1;
+    private long mLastResumeUs = -1;
+
+    /**
+     * Samples may come in decode order, timestamps of B-frames are earlier than the reference
+     * frame before them but never earlier than the first sample, a key frame.
+     *
+     * @return Returns the rebased time, or {@link #DROP} if it was captured while paused
+     * or before the first sample.
+     */
+    long rebase(long ptsUs) {
+        if (mPauseStartUs >= 0 && ptsUs >= mPauseStartUs) {
+            return DROP;
+        }
+        long paused = mPausedUs;
+        if (ptsUs < mLastResumeUs) {
+            if (ptsUs >= mLastPauseStartUs) return DROP;
+            // in flight before the last pause
+            paused -= mLastResumeUs - mLastPauseStartUs;
+        }
+        if (mStartUs < 0) {
+            mStartUs = ptsUs;
+        } else if (ptsUs < mStartUs) {
+            // leading pictures of an open GOP, can't be presented at a negative time
+            return DROP;
+        }
+        return ptsUs - mStartUs - paused;
+    }
+
+    /**
+     * @param nowUs current time of the track clock
+     */
+    void pause(long nowUs) {
+        if (mPauseStartUs >= 0) return;
+        mPauseStartUs = nowUs;
+    }
+
+    /**
+     * @param nowUs current time of the track clock
+     */
+    void resume(long nowUs) {
+        if (mPauseStartUs < 0) return;
+        if (mStartUs >= 0) {
+            mPausedUs += nowUs - mPauseStartUs;
+            mLastPauseStartUs = mPauseStartUs;
+            mLastResumeUs = nowUs;
+        }
+        mPauseStartUs = -1;
+    }
+
+    boolean isPaused() {
+        return mPauseStartUs >= 0;
+    }
+
+    /**
+     * Next sample will start from 0 again, e.g. in a new segment.
+     */
+    void reset() {
+        mStartUs = -1;
+        mPausedUs = 0;
+        mLastPauseStartUs = mLastResumeUs = -1;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Sequencing of stopping and codec recovery of {@link ScreenRecorder}, free of {@code Looper}.
+ * <p>
+ * Stopping signals end of stream to all encoders at once, and stops when they have all drained or
+ * {@link #STOP_DEADLINE_MS} passed. Either way the muxer gets all samples it has been written,
+ * so the file is valid.
+ * <p>
+ * A failed codec is recreated, up to {@link #MAX_CODEC_RECOVERIES} times a recording, if its
+ * error is transient or recoverable. While stopping it's not worth it, what has been muxed
+ * is kept instead.
+ * <p>
+ * All calls should come from one thread, the delays are up to the {@link Host}.
+ */
+final class RecorderSequencer {
+    private static final String TAG = "RecorderSequencer";
+
+    static final int TRACK_VIDEO = 1;
+    static final int TRACK_AUDIO = 1 << 1;
+    static final int TRACK_PROXY = 1 << 2;
+
+    static final long STOP_DEADLINE_MS = 1000;
+    static final int MAX_CODEC_RECOVERIES = 3;
+    static final long TRANSIENT_ERROR_RETRY_MS = 200;
+
+    interface Host {
+        /**
+         * Asks all encoders to output end of stream.
+         */
+        void signalEndOfStream();
+
+        /**
+         * Calls {@link #onStopDeadline()} in {@code delayMs}.
+         */
+        void scheduleStopDeadline(long delayMs);
+
+        /**
+         * Calls {@link #recover(Encoder)} of {@code codec} in {@code delayMs}.
+         */
+        void scheduleRecovery(Encoder codec, long delayMs);
+
+        /**
+         * Recreates the failed {@code codec}, unless it has been released already.
+         */
+        void recover(Encoder codec) throws Exception;
+
+        /**
+         * Stops the recording, called once.
+         *
+         * @param drained all tracks have muxed the end of stream of their encoders,
+         *                otherwise the muxer should end them
+         * @param error   null if stopped normally
+         */
+        void stop(boolean drained, Exception error);
+    }
+
+    private final Host mHost;
+    private boolean mStopRequested = false;
+    private boolean mStopped = false;
+    private boolean mStopDeadlineHit = false;
+    private int mTracksToDrain = 0;
+    private int mTracksDrained = 0;
+    private int mCodecRecoveries = 0;
+
+    RecorderSequencer(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * @param tracks {@code TRACK_*} of encoders to drain, 0 if nothing to drain which stops
+     *               right away, e.g. the muxer isn't started yet
+     */
+    void requestStop(int tracks) {
+        if (mStopRequested || mStopped) return;
+        mStopRequested = true;
+        if (tracks == 0) {
+            stop(false, null);
+            return;
+        }
+        mTracksToDrain = tracks;
+        mHost.signalEndOfStream();
+        mHost.scheduleStopDeadline(STOP_DEADLINE_MS);
+    }
+
+    /**
+     * End of stream of {@code track} has been muxed.
+     */
+    void onTrackDrained(int track) {
+        if (mStopped) return;
+        if (!mStopRequested) {
+            // end of stream not requested, the codec gave up. Others have not ended
+            stop(false, null);
+            return;
+        }
+        mTracksDrained |= track;
+        if ((mTracksDrained & mTracksToDrain) == mTracksToDrain) {
+            stop(true, null);
+        }
+    }
+
+    void onStopDeadline() {
+        if (mStopped || !mStopRequested) return;
+        Log.w(TAG, "Encoders not drained in " + STOP_DEADLINE_MS + "ms, stop anyway");
+        mStopDeadlineHit = true;
+        stop(false, null);
+    }
+
+    void onCodecError(Encoder codec, Exception e) {
+        if (e instanceof MediaCodec.CodecException) {
+            MediaCodec.CodecException ce = (MediaCodec.CodecException) e;
+            onCodecError(codec, e, ce.isTransient(), ce.isRecoverable());
+        } else {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param isTransient resources of the codec may come back a bit later
+     * @param recoverable the codec can be recreated right away
+     */
+    void onCodecError(Encoder codec, Exception e, boolean isTransient, boolean recoverable) {
+        if (mStopped) return;
+        if (mStopRequested) {
+            Log.w(TAG, "Codec failed while stopping, keep what has been muxed", e);
+            stop(false, null);
+            return;
+        }
+        if (mCodecRecoveries >= MAX_CODEC_RECOVERIES || (!isTransient && !recoverable)) {
+            fail(e);
+            return;
+        }
+        mCodecRecoveries++;
+        mHost.scheduleRecovery(codec, isTransient ? TRANSIENT_ERROR_RETRY_MS : 0);
+    }
+
+    /**
+     * Scheduled by {@link Host#scheduleRecovery(Encoder, long)}.
+     */
+    void recover(Encoder codec) {
+        if (mStopped || mStopRequested) return;
+        try {
+            mHost.recover(codec);
+        } catch (Exception e) {
+            Log.e(TAG, "Recover codec failure! ", e);
+            fail(e);
+        }
+    }
+
+    boolean isStopRequested() {
+        return mStopRequested;
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    boolean isStopDeadlineHit() {
+        return mStopDeadlineHit;
+    }
+
+    int getCodecRecoveries() {
+        return mCodecRecoveries;
+    }
+
+    private void fail(Exception e) {
+        stop(false, e);
+    }
+
+    private void stop(boolean drained, Exception error) {
+        mStopped = true;
+        mHost.stop(drained, error);
+    }
+}
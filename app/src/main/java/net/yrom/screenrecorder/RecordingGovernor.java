@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * Steps the video quality down when the device gets hot or overloaded,
+ * and back up when it has recovered, through the policy ladder:
+ * <ol>
+ * <li>{@link #LEVEL_FULL} the configured quality</li>
+ * <li>{@link #LEVEL_BITRATE_75} 3/4 bitrate</li>
+ * <li>{@link #LEVEL_BITRATE_50} 1/2 bitrate</li>
+ * <li>{@link #LEVEL_HALF_FRAMERATE} 1/2 bitrate and framerate</li>
+ * <li>{@link #LEVEL_SMALL_SIZE} 1/2 bitrate and framerate, 3/4 width and height</li>
+ * </ol>
+ * Bitrate changes apply on the fly, the others need a new encoder (and segment).
+ * <p>
+ * {@link #evaluate(int, int, long, int)} should be called periodically on one thread.
+ */
+class RecordingGovernor {
+    private static final String TAG = "RecordingGovernor";
+    private static final boolean VERBOSE = false;
+
+    static final int LEVEL_FULL = 0;
+    static final int LEVEL_BITRATE_75 = 1;
+    static final int LEVEL_BITRATE_50 = 2;
+    static final int LEVEL_HALF_FRAMERATE = 3;
+    static final int LEVEL_SMALL_SIZE = 4;
+
+    /**
+     * Suggested interval (ms) of {@link #evaluate(int, int, long, int)}
+     */
+    static final long INTERVAL_MS = 2000;
+
+    // PowerManager.THERMAL_STATUS_*, API 29
+    static final int THERMAL_STATUS_NONE = 0;
+    static final int THERMAL_STATUS_LIGHT = 1;
+    static final int THERMAL_STATUS_MODERATE = 2;
+    static final int THERMAL_STATUS_SEVERE = 3;
+
+    private static final float CPU_LOAD_HIGH = 0.75f;
+    private static final float CPU_LOAD_ELEVATED = 0.5f;
+    private static final float CPU_LOAD_LOW = 0.3f;
+    private static final float FRAMERATE_SHORTFALL = 0.7f;
+    // windows in a row before stepping
+    private static final int STRESSED_WINDOWS_TO_STEP_DOWN = 2;
+    private static final int CALM_WINDOWS_TO_STEP_UP = 5;
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+    private final long mClockTicksPerSecond;
+    private final int mCpuCount;
+    private int mStressedWindows;
+    private int mCalmWindows;
+    private long mLastCpuTicks = -1;
+    private long mLastCpuSampleTime;
+    private long mLastSystemTotalTicks = -1;
+    private long mLastSystemIdleTicks;
+    private String mReason = "";
+
+    RecordingGovernor(Context context) {
+        mContext = context.getApplicationContext();
+        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mClockTicksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+        mCpuCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param level          current level
+     * @param framesInWindow video frames encoded since last evaluation
+     * @param windowMs       time (ms) since last evaluation
+     * @param framerate      configured framerate of current level
+     * @return Returns the level should step to, or {@code level} if no change.
+     */
+    int evaluate(int level, int framesInWindow, long windowMs, int framerate) {
+        int thermal = getThermalStatus();
+        float cpu = sampleCpuLoad();
+        float fps = windowMs <= 0 ? 0 : framesInWindow * 1000f / windowMs;
+        boolean framerateShort = fps < framerate * FRAMERATE_SHORTFALL;
+        if (VERBOSE) Log.d(TAG, "thermal=" + thermal + ", cpu=" + cpu + ", fps=" + fps + "/" + framerate);
+
+        boolean stressed = thermal >= THERMAL_STATUS_MODERATE
+                || cpu >= CPU_LOAD_HIGH
+                // screen may be static, low fps alone means nothing
+                || (framerateShort && cpu >= CPU_LOAD_ELEVATED);
+        boolean calm = thermal <= THERMAL_STATUS_LIGHT && cpu < CPU_LOAD_LOW;
+        if (stressed) {
+            mCalmWindows = 0;
+            mStressedWindows++;
+            if (level < LEVEL_SMALL_SIZE && (thermal >= THERMAL_STATUS_SEVERE
+                    || mStressedWindows >= STRESSED_WINDOWS_TO_STEP_DOWN)) {
+                mStressedWindows = 0;
+                mReason = describe("stressed", thermal, cpu, fps);
+                return level + 1;
+            }
+        } else if (calm) {
+            mStressedWindows = 0;
+            mCalmWindows++;
+            if (level > LEVEL_FULL && mCalmWindows >= CALM_WINDOWS_TO_STEP_UP) {
+                mCalmWindows = 0;
+                mReason = describe("recovered", thermal, cpu, fps);
+                return level - 1;
+            }
+        } else {
+            mStressedWindows = mCalmWindows = 0;
+        }
+        return level;
+    }
+
+    /**
+     * @return Returns why the last step was taken
+     */
+    String getReason() {
+        return mReason;
+    }
+
+    private static String describe(String what, int thermal, float cpu, float fps) {
+        return what + " thermal=" + thermal
+                + " cpu=" + Math.round(cpu * 100) + "%"
+                + " fps=" + Math.round(fps);
+    }
+
+    /**
+     * @param base config of {@link #LEVEL_FULL}
+     */
+    static VideoEncodeConfig apply(VideoEncodeConfig base, int level) {
+        VideoEncodeConfig config = base;
+        if (level >= LEVEL_BITRATE_50) {
+            config = config.withBitrate(base.bitrate / 2);
+        } else if (level == LEVEL_BITRATE_75) {
+            config = config.withBitrate(base.bitrate * 3 / 4);
+        }
+        if (level >= LEVEL_HALF_FRAMERATE && !base.isTimelapse()) {
+            // timelapse captures slowly already, and its timestamps depend on the framerate
+            int framerate = Math.max(base.framerate / 2, 1);
+            config = config.withFramerate(framerate).withMaxInputFramerate(framerate);
+        }
+        if (level >= LEVEL_SMALL_SIZE) {
+            // keep aligned to macroblock
+            int width = (base.width * 3 / 4 + 15) & ~15;
+            int height = (base.height * 3 / 4 + 15) & ~15;
+            config = config.withSize(width, height);
+        }
+        return config;
+    }
+
+    /**
+     * @return Returns THERMAL_STATUS_*, estimated from battery temperature before Android Q.
+     */
+    private int getThermalStatus() {
+        if (Build.VERSION.SDK_INT >= 29) {
+            try {
+                Method m = PowerManager.class.getMethod("getCurrentThermalStatus");
+                return (int) m.invoke(mPowerManager);
+            } catch (Exception e) {
+                if (VERBOSE) Log.w(TAG, "getCurrentThermalStatus", e);
+            }
+        }
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return THERMAL_STATUS_NONE;
+        int tenthsCelsius = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        if (tenthsCelsius >= 450) return THERMAL_STATUS_SEVERE;
+        if (tenthsCelsius >= 420) return THERMAL_STATUS_MODERATE;
+        if (tenthsCelsius >= 400) return THERMAL_STATUS_LIGHT;
+        return THERMAL_STATUS_NONE;
+    }
+
+    /**
+     * @return Returns system-wide CPU usage since last sample, 1 means all cores are busy.
+     * Falls back to the usage of this process where /proc/stat is not readable
+     * (Android O and later), which only measures the app-side load.
+     */
+    private float sampleCpuLoad() {
+        long[] system = readSystemCpuTicks();
+        if (system != null) {
+            float load = 0;
+            long total = system[0];
+            long idle = system[1];
+            if (mLastSystemTotalTicks >= 0 && total > mLastSystemTotalTicks) {
+                long busy = (total - mLastSystemTotalTicks) - (idle - mLastSystemIdleTicks);
+                load = Math.max(0, busy) / (float) (total - mLastSystemTotalTicks);
+            }
+            mLastSystemTotalTicks = total;
+            mLastSystemIdleTicks = idle;
+            return load;
+        }
+        long ticks = readProcessCpuTicks();
+        long now = SystemClock.elapsedRealtime();
+        float load = 0;
+        if (ticks >= 0 && mLastCpuTicks >= 0 && now > mLastCpuSampleTime) {
+            float cpuMs = (ticks - mLastCpuTicks) * 1000f / mClockTicksPerSecond;
+            load = cpuMs / ((now - mLastCpuSampleTime) * mCpuCount);
+        }
+        mLastCpuTicks = ticks;
+        mLastCpuSampleTime = now;
+        return load;
+    }
+
+    /**
+     * @return Returns {total, idle} jiffies of all cores from /proc/stat, or null if unavailable.
+     */
+    private static long[] readSystemCpuTicks() {
+        byte[] buffer = new byte[256];
+        int length;
+        try (FileInputStream in = new FileInputStream("/proc/stat")) {
+            length = in.read(buffer);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+        if (length <= 0) return null;
+        String stat = new String(buffer, 0, length);
+        int end = stat.indexOf('\n');
+        if (!stat.startsWith("cpu ") || end < 0) return null;
+        // cpu  user nice system idle iowait irq softirq steal ...
+        String[] fields = stat.substring(4, end).trim().split(" +");
+        if (fields.length < 4) return null;
+        long total = 0;
+        long idle = 0;
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                long value = Long.parseLong(fields[i]);
+                // guest and guest_nice are accounted in user and nice already
+                if (i < 8) total += value;
+                // idle and iowait
+                if (i == 3 || i == 4) idle += value;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new long[]{total, idle};
+    }
+
+    /**
+     * @return Returns utime + stime of this process, or -1 if unavailable.
+     */
+    private static long readProcessCpuTicks() {
+        byte[] buffer = new byte[512];
+        int length;
+        try (FileInputStream in = new FileInputStream("/proc/" + Process.myPid() + "/stat")) {
+            length = in.read(buffer);
+        } catch (IOException e) {
+            return -1;
+        }
+        if (length <= 0) return -1;
+        String stat = new String(buffer, 0, length);
+        // skip "pid (comm)", comm may contain spaces
+        int i = stat.lastIndexOf(')');
+        if (i < 0) return -1;
+        String[] fields = stat.substring(i + 2).split(" ");
+        // fields[0] is state (3rd field), utime and stime are the 14th and 15th fields
+        if (fields.length < 13) return -1;
+        try {
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
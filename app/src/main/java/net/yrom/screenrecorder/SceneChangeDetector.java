@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+/**
+ * Detects scene changes from sudden jumps of encoded frame size: a frame much larger
+ * than the moving average of recent non-key frames means most of the picture changed.
+ * <p>
+ * Not thread safe.
+ */
+final class SceneChangeDetector {
+    // size jump over the average
+    static final float DEFAULT_THRESHOLD = 4f;
+    // weight of the newest frame in the moving average
+    private static final float ALPHA = 0.1f;
+    private static final int WARMUP_FRAMES = 10;
+
+    private final float mThreshold;
+    private final int mMinBytes;
+    private final int mMinIntervalFrames;
+    private float mAverage;
+    private int mFrames;
+    private int mSinceKeyFrame;
+
+    /**
+     * @param threshold         times of the average size to be a scene change
+     * @param minBytes          frames smaller than this are never scene changes,
+     *                          so tiny frames of a static screen don't trigger
+     * @param minIntervalFrames min frames between two key frames
+     */
+    SceneChangeDetector(float threshold, int minBytes, int minIntervalFrames) {
+        mThreshold = threshold;
+        mMinBytes = minBytes;
+        mMinIntervalFrames = minIntervalFrames;
+    }
+
+    /**
+     * Detector for frames of {@code config}: min size is an average frame at target bitrate,
+     * and at most one scene change per second.
+     */
+    static SceneChangeDetector of(VideoEncodeConfig config) {
+        int framerate = Math.max(config.framerate, 1);
+        return new SceneChangeDetector(DEFAULT_THRESHOLD, config.bitrate / 8 / framerate, framerate);
+    }
+
+    /**
+     * @param size     bytes of an encoded frame
+     * @param keyFrame whether it's a key frame
+     * @return Returns true if a key frame should be requested for a scene change.
+     */
+    boolean onFrame(int size, boolean keyFrame) {
+        mSinceKeyFrame++;
+        if (keyFrame) {
+            // large by nature, and it's a cut point already
+            mSinceKeyFrame = 0;
+            return false;
+        }
+        mFrames++;
+        boolean changed = mFrames > WARMUP_FRAMES
+                && mSinceKeyFrame > mMinIntervalFrames
+                && size >= mMinBytes
+                && size > mAverage * mThreshold;
+        if (mFrames == 1) {
+            mAverage = size;
+        } else {
+            // limit the weight of outliers, the average should describe a steady scene
+            mAverage += ALPHA * (Math.min(size, mAverage * mThreshold) - mAverage);
+        }
+        if (changed) {
+            mSinceKeyFrame = 0;
+        }
+        return changed;
+    }
+}
@@ -19,17 +19,27 @@ package net.yrom.screenrecorder;
 import android.hardware.display.VirtualDisplay;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.media.MediaFormat.MIMETYPE_AUDIO_AAC;
@@ -45,29 +55,52 @@ public class ScreenRecorder {
     static final String VIDEO_AVC = MIMETYPE_VIDEO_AVC; // H.264 Advanced Video Coding
     static final String AUDIO_AAC = MIMETYPE_AUDIO_AAC; // H.264 Advanced Audio Coding
     private String mDstPath;
+    private VideoEncodeConfig mVideoConfig;
+    // config in current orientation without any degradation of governor
+    private VideoEncodeConfig mBaseVideoConfig;
     private VideoEncoder mVideoEncoder;
+    // old encoder draining into the previous segment, while mVideoEncoder feeds the next one
+    private VideoEncoder mRetiringVideoEncoder;
     private MicRecorder mAudioEncoder;
 
-    private MediaFormat mVideoOutputFormat = null, mAudioOutputFormat = null;
-    private int mVideoTrackIndex = INVALID_INDEX, mAudioTrackIndex = INVALID_INDEX;
-    private MediaMuxer mMuxer;
-    private boolean mMuxerStarted = false;
+    private final SegmentMuxer mMuxer;
 
     private AtomicBoolean mForceQuit = new AtomicBoolean(false);
     private AtomicBoolean mIsRunning = new AtomicBoolean(false);
+    private AtomicBoolean mReleased = new AtomicBoolean(false);
     private VirtualDisplay mVirtualDisplay;
 
     private HandlerThread mWorker;
     private CallbackHandler mHandler;
 
     private Callback mCallback;
-    private LinkedList<Integer> mPendingVideoEncoderBufferIndices = new LinkedList<>();
-    private LinkedList<Integer> mPendingAudioEncoderBufferIndices = new LinkedList<>();
-    private LinkedList<MediaCodec.BufferInfo> mPendingAudioEncoderBufferInfos = new LinkedList<>();
-    private LinkedList<MediaCodec.BufferInfo> mPendingVideoEncoderBufferInfos = new LinkedList<>();
+    // pushes progress to mCallback, instead of the muxing path
+    private ProgressPublisher mProgress;
+    private final SessionMetadata mMetadata = new SessionMetadata();
+    private RecordingGovernor mGovernor;
+    private int mGovernorLevel = RecordingGovernor.LEVEL_FULL;
+    private int mVideoFramesInWindow;
+    private long mGovernedAt;
+    // the second, smaller, video of the same screen into its own file
+    private VideoEncoder mProxyEncoder;
+    private String mProxyPath;
+    private VirtualDisplay mProxyDisplay;
+    private Muxer mProxyMuxer;
+    private boolean mProxyMuxerStarted = false;
+    private MediaFormat mProxyVideoOutputFormat = null;
+    private int mProxyVideoTrackIndex = INVALID_INDEX, mProxyAudioTrackIndex = INVALID_INDEX;
+    // proxy never cuts segments, so has its own timeline
+    private final PtsRebaser mProxyVideoPts = new PtsRebaser();
+    private final PtsRebaser mProxyAudioPts = new PtsRebaser();
+    private final MediaCodec.BufferInfo mProxyBufferInfo = new MediaCodec.BufferInfo();
+    private final BitrateStats mProxyBitrate = new BitrateStats();
+    private long mProxyGlassToOutputSumUs = 0;
+    private final PendingBuffers mPendingProxyBuffers = new PendingBuffers();
+    private final MediaCodec.BufferInfo mPendingProxyBufferInfo = new MediaCodec.BufferInfo();
 
     /**
-     * @param display for {@link VirtualDisplay#setSurface(Surface)}
+     * @param display for {@link VirtualDisplay#setSurface(Surface)}, may be null if
+     *                {@link #setVirtualDisplay(VirtualDisplay) set} later
      * @param dstPath saving path
      */
     public ScreenRecorder(VideoEncodeConfig video,
@@ -76,8 +109,16 @@ public class ScreenRecorder {
                           String dstPath) {
         mVirtualDisplay = display;
         mDstPath = dstPath;
+        mVideoConfig = mBaseVideoConfig = video;
         mVideoEncoder = new VideoEncoder(video);
         mAudioEncoder = audio == null ? null : new MicRecorder(audio);
+        mMuxer = new SegmentMuxer(dstPath, AndroidMuxer.FACTORY);
+        mMuxer.setVideoEncoder(mVideoEncoder);
+        mMuxer.setAudioEncoder(mAudioEncoder);
+        mMuxer.setTimelapseFactor(video.getTimelapseFactor());
+        mMuxer.setMaxReorder(SegmentMuxer.getMaxReorder(video));
+        mMuxer.setFramerate(video.framerate);
+        mMuxer.setListener(mMuxerListener);
     }
 
     /**
@@ -86,40 +127,332 @@ public class ScreenRecorder {
     public final void quit() {
         mForceQuit.set(true);
         if (!mIsRunning.get()) {
-            release();
+            Handler handler = mHandler;
+            if (mPrewarmed && handler != null) {
+                // maybe preparing encoders in worker
+                handler.sendEmptyMessage(MSG_RELEASE);
+            } else {
+                release();
+            }
         } else {
-            signalStop(false);
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.sendMessageAtFrontOfQueue(Message.obtain(handler, MSG_DRAIN));
+            }
         }
 
     }
 
-    public void start() {
+    /**
+     * Creates and configures encoders, muxer and AudioRecord in background,
+     * so that {@link #start()} only needs to connect them to the display.
+     * Typically called before requesting the screen capture permission.
+     */
+    public void prewarm() {
         if (mWorker != null) throw new IllegalStateException();
+        mPrewarmed = true;
+        startWorker();
+        mHandler.sendEmptyMessage(MSG_PREWARM);
+    }
+
+    /**
+     * @param display for {@link VirtualDisplay#setSurface(Surface)}, must be set before {@link #start()}
+     */
+    public void setVirtualDisplay(VirtualDisplay display) {
+        if (mStartRequestedAt > 0) throw new IllegalStateException("already started");
+        mVirtualDisplay = display;
+    }
+
+    public void start() {
+        if (mStartRequestedAt > 0 || (mWorker != null && !mPrewarmed)) {
+            throw new IllegalStateException();
+        }
+        mStartRequestedAt = SystemClock.elapsedRealtime();
+        markStartup(StartupTrace.RECORDER_START);
+        if (mWorker == null) startWorker();
+        mHandler.sendEmptyMessage(MSG_START);
+    }
+
+    private void startWorker() {
         mWorker = new HandlerThread(TAG);
         mWorker.start();
         mHandler = new CallbackHandler(mWorker.getLooper());
-        mHandler.sendEmptyMessage(MSG_START);
+    }
+
+    /**
+     * Stops feeding the encoders but keeps them alive, the paused duration will not be
+     * in the output.
+     */
+    public void pause() {
+        Handler handler = mHandler;
+        if (handler != null) handler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    /**
+     * Continues from where {@link #pause()}d, starting with a sync frame.
+     */
+    public void resume() {
+        Handler handler = mHandler;
+        if (handler != null) handler.sendEmptyMessage(MSG_RESUME);
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Asks the video encoder for a key frame as soon as possible, e.g. for a precise cut point.
+     */
+    public void requestKeyFrame() {
+        Handler handler = mHandler;
+        if (handler != null) handler.sendEmptyMessage(MSG_KEY_FRAME);
+    }
+
+    /**
+     * Requests a key frame whenever encoded frame size jumps, which usually means a scene
+     * change, so long I-frame intervals still have cut points there. Should be set before {@link #start()}.
+     */
+    public void setSceneChangeKeyFrames(boolean enabled) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mSceneChangeDetector = enabled ? SceneChangeDetector.of(mVideoConfig) : null;
+    }
+
+    /**
+     * Keeps {@link PipelineMetrics} of the session and appends a snapshot of them every second
+     * to {@link #getMetricsPath()}. Should be set before {@link #prewarm()} or {@link #start()}.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        if (!enabled) {
+            mMetrics = null;
+            mMuxer.setMetrics(null);
+            return;
+        }
+        PipelineMetrics metrics = new PipelineMetrics();
+        mVideoLatencyHistogram = metrics.histogram(PipelineMetrics.VIDEO_CAPTURE_TO_MUX_US);
+        mAudioLatencyHistogram = metrics.histogram(PipelineMetrics.AUDIO_CAPTURE_TO_MUX_US);
+        mMuxer.setMetrics(metrics);
+        if (mAudioEncoder != null) mAudioEncoder.setMetrics(metrics);
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return Returns metrics of the session, or null if not {@link #setMetricsEnabled(boolean) enabled}
+     */
+    PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public String getMetricsPath() {
+        int dot = mDstPath.lastIndexOf('.');
+        return (dot < 0 ? mDstPath : mDstPath.substring(0, dot)) + "-metrics.jsonl";
+    }
+
+    /**
+     * Records every format and output buffer of the video and audio encoders into
+     * {@link #getTracePath()}, for replaying the muxing path off the device with {@link TraceReplayer}.
+     * The trace is about as large as the video. Should be set before {@link #prewarm()} or {@link #start()}.
+     */
+    public void setTraceEnabled(boolean enabled) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mTraceEnabled = enabled;
+    }
+
+    /**
+     * Marks the phases of starting up in {@code trace}, from the encoders prepared to the first sample
+     * written, which go to the metadata. Should be set before {@link #prewarm()} or {@link #start()}.
+     */
+    void setStartupTrace(StartupTrace trace) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mStartupTrace = trace;
+        if (mAudioEncoder != null) mAudioEncoder.setStartupTrace(trace);
+    }
+
+    /**
+     * Saves a {@link KeyFrameIndex} of each segment next to it, for seeking without walking
+     * the sample table. Should be set before {@link #prewarm()} or {@link #start()}.
+     */
+    public void setKeyFrameIndexEnabled(boolean enabled) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mMuxer.setKeyFrameIndexEnabled(enabled);
+    }
+
+    /**
+     * Writes the key frames of each segment into a small MP4 next to it, for previews,
+     * copied while muxing without re-encoding. Should be set before {@link #prewarm()} or {@link #start()}.
+     */
+    public void setKeyFramePreviewEnabled(boolean enabled) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mMuxer.setKeyFramePreviewEnabled(enabled);
+    }
+
+    /**
+     * @return Returns paths of the key frame previews, once the files are finalized
+     */
+    public List<String> getPreviewPaths() {
+        return mMuxer.getPreviewPaths();
+    }
+
+    public String getTracePath() {
+        int dot = mDstPath.lastIndexOf('.');
+        return (dot < 0 ? mDstPath : mDstPath.substring(0, dot)) + ".trace";
+    }
+
+    /**
+     * Encodes a second, usually much smaller, video of the same screen into its own file
+     * {@link #getProxyPath()}, with the same audio. Should be set before {@link #prewarm()}
+     * or {@link #start()}.
+     * <p>
+     * The proxy keeps its geometry for the whole session and is not governed, bound its cost
+     * by {@code config} instead, e.g. with a low {@link VideoEncodeConfig#withMaxInputFramerate(float)
+     * max input framerate} and {@link VideoEncodeConfig#PRIORITY_BEST_EFFORT best effort priority}.
+     *
+     * @param config null to disable
+     */
+    void setProxy(VideoEncodeConfig config) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mProxyEncoder = config == null ? null : new VideoEncoder(config);
+        int dot = mDstPath.lastIndexOf('.');
+        mProxyPath = config == null ? null : dot < 0 ? mDstPath + "-proxy"
+                : mDstPath.substring(0, dot) + "-proxy" + mDstPath.substring(dot);
+    }
+
+    /**
+     * @return Returns config of the proxy video, or null if it's off.
+     */
+    VideoEncodeConfig getProxyConfig() {
+        VideoEncoder encoder = mProxyEncoder;
+        return encoder == null ? null : encoder.getConfig();
+    }
+
+    /**
+     * @param display the second display of the same projection, in size of the proxy config,
+     *                must be set before {@link #start()} if {@link #setProxy(VideoEncodeConfig) proxy} is on
+     */
+    public void setProxyVirtualDisplay(VirtualDisplay display) {
+        if (mStartRequestedAt > 0) throw new IllegalStateException("already started");
+        mProxyDisplay = display;
+    }
+
+    /**
+     * @return Returns path of the proxy video, or null if {@link #setProxy(VideoEncodeConfig) proxy} is off.
+     */
+    public String getProxyPath() {
+        return mProxyPath;
+    }
+
+    /**
+     * @return Returns the video config in use, it may be changed while recording.
+     */
+    VideoEncodeConfig getVideoConfig() {
+        return mVideoConfig;
     }
 
     public void setCallback(Callback callback) {
         mCallback = callback;
     }
 
+    /**
+     * Lets {@code governor} step the video quality down and up, should be set before {@link #start()}.
+     */
+    void setGovernor(RecordingGovernor governor) {
+        if (mWorker != null) throw new IllegalStateException("already started");
+        mGovernor = governor;
+    }
+
     public String getSavedPath() {
         return mDstPath;
     }
 
+    /**
+     * @return Returns paths of all segments saved in this session, the first one is
+     * {@link #getSavedPath()}, the others are created by {@link #requestOrientation(boolean)}.
+     */
+    public List<String> getSavedPaths() {
+        return mMuxer.getSegmentPaths();
+    }
+
+    /**
+     * Switches the encode geometry to the display orientation if they are not matched.
+     * Content after the switch goes to a new segment, see {@link #getSavedPaths()}.
+     */
+    public void requestOrientation(boolean landscape) {
+        Handler handler = mHandler;
+        if (handler == null) return;
+        // only the latest request matters
+        handler.removeMessages(MSG_ROTATE);
+        Message.obtain(handler, MSG_ROTATE, landscape ? 1 : 0, 0).sendToTarget();
+    }
+
+    /**
+     * @return Returns time (ms) from the last orientation request to the first
+     * frame muxed in new geometry, or -1 if never switched.
+     */
+    public long getLastSwitchLatency() {
+        return mLastSwitchLatencyMs;
+    }
+
+    /**
+     * @return Returns average time (us) from a frame composed on the display to its encoded
+     * output, or -1 if no frame encoded yet.
+     */
+    public long getAverageGlassToOutputLatencyUs() {
+        int frames = mGlassToOutputFrames;
+        return frames == 0 ? -1 : mGlassToOutputSumUs / frames;
+    }
+
+    /**
+     * @return Returns frames per second in the output, from the timestamps of muxed video frames.
+     * It's below the configured framerate if the encoder drops frames, or the screen is static.
+     */
+    public float getAchievedFramerate() {
+        return mMuxer.getAchievedFramerate();
+    }
+
+    /**
+     * @return Returns path of the JSON sidecar which records the config and events of this session.
+     */
+    public String getMetadataPath() {
+        int dot = mDstPath.lastIndexOf('.');
+        return (dot < 0 ? mDstPath : mDstPath.substring(0, dot)) + ".json";
+    }
+
     interface Callback {
+        /**
+         * Called in the main thread once all files are finalized.
+         *
+         * @param error why it stopped, null if stopped by {@link #quit()}
+         */
         void onStop(Throwable error);
 
         void onStart();
 
-        void onRecording(long presentationTimeUs);
+        /**
+         * Progress of the recording, at most once per {@link ProgressPublisher#INTERVAL_MS} in the
+         * main thread, not while nothing is muxed, e.g. paused.
+         *
+         * @param durationUs duration of the muxed video
+         * @param bytes      of all muxed samples
+         * @param framerate  achieved so far
+         */
+        void onRecording(long durationUs, long bytes, float framerate);
     }
 
     private static final int MSG_START = 0;
     private static final int MSG_STOP = 1;
     private static final int MSG_ERROR = 2;
+    private static final int MSG_ROTATE = 3;
+    private static final int MSG_CUT_SEGMENT = 4;
+    private static final int MSG_GOVERN = 5;
+    private static final int MSG_PREWARM = 6;
+    private static final int MSG_RELEASE = 7;
+    private static final int MSG_PAUSE = 8;
+    private static final int MSG_RESUME = 9;
+    private static final int MSG_KEY_FRAME = 10;
+    private static final int MSG_RECOVER = 11;
+    private static final int MSG_DRAIN = 12;
+    private static final int MSG_STOP_DEADLINE = 13;
+    private static final int MSG_DUMP_METRICS = 14;
     private static final int STOP_WITH_EOS = 1;
 
     private class CallbackHandler extends Handler {
@@ -133,8 +466,16 @@ public class ScreenRecorder {
                 case MSG_START:
                     try {
                         record();
+                        if (mGovernor != null) {
+                            mGovernedAt = SystemClock.elapsedRealtime();
+                            sendEmptyMessageDelayed(MSG_GOVERN, RecordingGovernor.INTERVAL_MS);
+                        }
+                        if (mMetrics != null) {
+                            sendEmptyMessageDelayed(MSG_DUMP_METRICS, METRICS_DUMP_INTERVAL_MS);
+                        }
                         if (mCallback != null) {
                             mCallback.onStart();
+                            startProgress();
                         }
                         break;
                     } catch (Exception e) {
@@ -142,32 +483,81 @@ public class ScreenRecorder {
                     }
                 case MSG_STOP:
                 case MSG_ERROR:
+                    removeMessages(MSG_STOP_DEADLINE);
+                    removeMessages(MSG_RECOVER);
+                    removeMessages(MSG_DUMP_METRICS);
+                    if (mMetrics != null) {
+                        dumpMetrics();
+                        closeMetricsDump();
+                    }
+                    closeTrace();
                     stopEncoders();
-                    if (msg.arg1 != STOP_WITH_EOS) signalEndOfStream();
-                    if (mCallback != null) {
-                        mCallback.onStop((Throwable) msg.obj);
+                    if (msg.arg1 != STOP_WITH_EOS) mMuxer.signalEndOfStream();
+                    if (mStopRequestedAt > 0) {
+                        mMetadata.put("stopLatencyMs", SystemClock.elapsedRealtime() - mStopRequestedAt);
+                    }
+                    // callback after the files are finalized
+                    release(true, (Throwable) msg.obj);
+                    break;
+                case MSG_DUMP_METRICS:
+                    if (dumpMetrics()) {
+                        sendEmptyMessageDelayed(MSG_DUMP_METRICS, METRICS_DUMP_INTERVAL_MS);
+                    }
+                    break;
+                case MSG_DRAIN:
+                    drain();
+                    break;
+                case MSG_STOP_DEADLINE:
+                    mSequencer.onStopDeadline();
+                    if (mSequencer.isStopDeadlineHit()) mMetadata.put("stopDeadlineHit", true);
+                    break;
+                case MSG_ROTATE:
+                    switchOrientation(msg.arg1 == 1);
+                    break;
+                case MSG_PREWARM:
+                    long begin = SystemClock.elapsedRealtime();
+                    try {
+                        prepareEncoders();
+                        mMetadata.put("prewarmMs", SystemClock.elapsedRealtime() - begin);
+                    } catch (Exception e) {
+                        // report to caller in record()
+                        mPrewarmError = e;
                     }
+                    break;
+                case MSG_RELEASE:
                     release();
                     break;
+                case MSG_PAUSE:
+                    pauseRecording();
+                    break;
+                case MSG_RESUME:
+                    resumeRecording();
+                    break;
+                case MSG_KEY_FRAME:
+                    if (mIsRunning.get() && !mPaused) {
+                        mVideoEncoder.requestKeyFrame();
+                        mMetadata.addEvent("keyFrame", "reason", "request");
+                    }
+                    break;
+                case MSG_GOVERN:
+                    govern();
+                    sendEmptyMessageDelayed(MSG_GOVERN, RecordingGovernor.INTERVAL_MS);
+                    break;
+                case MSG_RECOVER:
+                    mSequencer.recover((Encoder) msg.obj);
+                    break;
+                case MSG_CUT_SEGMENT:
+                    try {
+                        cutSegment();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Cut segment failure! ", e);
+                        Message.obtain(mHandler, MSG_ERROR, e).sendToTarget();
+                    }
+                    break;
             }
         }
     }
 
-    private void signalEndOfStream() {
-        MediaCodec.BufferInfo eos = new MediaCodec.BufferInfo();
-        ByteBuffer buffer = ByteBuffer.allocate(0);
-        eos.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-        if (VERBOSE) Log.i(TAG, "Signal EOS to muxer ");
-        if (mVideoTrackIndex != INVALID_INDEX) {
-            writeSampleData(mVideoTrackIndex, eos, buffer);
-        }
-        if (mAudioTrackIndex != INVALID_INDEX) {
-            writeSampleData(mAudioTrackIndex, eos, buffer);
-        }
-        mVideoTrackIndex = INVALID_INDEX;
-        mAudioTrackIndex = INVALID_INDEX;
-    }
-
     private void record() {
         if (mIsRunning.get() || mForceQuit.get()) {
             throw new IllegalStateException();
@@ -176,175 +566,576 @@ public class ScreenRecorder {
             throw new IllegalStateException("maybe release");
         }
         mIsRunning.set(true);
+        mMetadata.put("audio", String.valueOf(mAudioEncoder == null ? null : mAudioEncoder.getConfig()));
+        mMetadata.put("prewarmed", mPrewarmed);
 
-        try {
-            // create muxer
-            mMuxer = new MediaMuxer(mDstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            // create encoder and input surface
-            prepareVideoEncoder();
-            prepareAudioEncoder();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (mPrewarmError != null) {
+            throw new IllegalStateException("prewarm failure", mPrewarmError);
+        }
+        if (!mPrewarmed) {
+            try {
+                prepareEncoders();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+        // the codec may not take all of the config
+        mMetadata.put("video", mVideoEncoder.getConfig().toString());
+        mMetadata.put("bitrateMode", Utils.bitrateModeToString(mVideoEncoder.getConfig().getBitrateMode()));
+        mMetadata.put("timelapseFactor", mVideoConfig.getTimelapseFactor());
 
         // "turn on" VirtualDisplay after VideoEncoder prepared
         mVirtualDisplay.setSurface(mVideoEncoder.getInputSurface());
+        if (mProxyEncoder != null) {
+            if (mProxyDisplay == null) throw new IllegalStateException("no proxy display");
+            mMetadata.put("proxy", mProxyEncoder.getConfig().toString());
+            mProxyDisplay.setSurface(mProxyEncoder.getInputSurface());
+        }
+        if (mAudioEncoder != null) mAudioEncoder.startRecording();
         if (VERBOSE) Log.d(TAG, "set surface to display: " + mVirtualDisplay.getDisplay());
     }
 
-    private void muxVideo(int index, MediaCodec.BufferInfo buffer) {
+    private void startProgress() {
+        mProgress = new ProgressPublisher(Looper.getMainLooper(), mMuxer, mCallback::onRecording);
+        mProgress.start();
+    }
+
+    // @WorkerThread
+    private void pauseRecording() {
+        if (!mIsRunning.get() || mPaused) return;
+        mPaused = true;
+        // stop feeding the video encoder, keep everything else alive
+        mVirtualDisplay.setSurface(null);
+        long nowUs = System.nanoTime() / 1000;
+        long audioNowUs = SystemClock.elapsedRealtimeNanos() / 1000;
+        mMuxer.pause(nowUs, audioNowUs);
+        if (mProxyEncoder != null) {
+            mProxyDisplay.setSurface(null);
+            mProxyVideoPts.pause(nowUs);
+        }
+        if (mAudioEncoder != null) {
+            mProxyAudioPts.pause(audioNowUs);
+            mAudioEncoder.pause();
+        }
+        mMetadata.addEvent("pause");
+    }
+
+    // @WorkerThread
+    private void resumeRecording() {
+        if (!mIsRunning.get() || !mPaused) return;
+        long begin = SystemClock.elapsedRealtimeNanos();
+        long nowUs = System.nanoTime() / 1000;
+        mMuxer.resume(nowUs, begin / 1000);
+        if (mAudioEncoder != null) {
+            mProxyAudioPts.resume(begin / 1000);
+            mAudioEncoder.resume();
+        }
+        mVirtualDisplay.setSurface(mVideoEncoder.getInputSurface());
+        // the frames before pause maybe dropped, don't refer to them
+        mVideoEncoder.requestKeyFrame();
+        if (mProxyEncoder != null) {
+            mProxyVideoPts.resume(nowUs);
+            mProxyDisplay.setSurface(mProxyEncoder.getInputSurface());
+            mProxyEncoder.requestKeyFrame();
+        }
+        mPaused = false;
+        long elapsedUs = (SystemClock.elapsedRealtimeNanos() - begin) / 1000;
+        Log.i(TAG, "Resumed in " + elapsedUs + "us");
+        mMetadata.addEvent("resume", "latencyUs", elapsedUs);
+        // display may be rotated while paused
+        applyRequestedOrientation();
+    }
+
+    private volatile boolean mPaused = false;
+
+    // @WorkerThread
+    private void prepareEncoders() throws IOException {
+        if (mTraceEnabled) openTrace();
+        // MicRecorder prepares AudioRecord and its encoder in its own thread, kick off first
+        prepareAudioEncoder();
+        // create muxer
+        mMuxer.open();
+        markStartup(StartupTrace.MUXER_CREATED);
+        // create encoder and input surface
+        prepareVideoEncoder(mVideoEncoder);
+        markStartup(StartupTrace.VIDEO_PREPARED);
+        if (mProxyEncoder != null) {
+            mProxyMuxer = AndroidMuxer.FACTORY.create(getProxyPath());
+            prepareVideoEncoder(mProxyEncoder);
+        }
+    }
+
+    private void markStartup(String phase) {
+        if (mStartupTrace != null) mStartupTrace.mark(phase);
+    }
+
+    private boolean mPrewarmed = false;
+    private Exception mPrewarmError;
+    private StartupTrace mStartupTrace;
+    private long mStartRequestedAt = 0;
+    private long mFirstFrameAt = 0;
+
+    private SceneChangeDetector mSceneChangeDetector;
+    private volatile long mGlassToOutputSumUs = 0;
+    private volatile long mGlassToOutputMaxUs = 0;
+    private volatile int mGlassToOutputFrames = 0;
+
+    private void muxVideo(BaseEncoder encoder, int index, MediaCodec.BufferInfo buffer) {
         if (!mIsRunning.get()) {
             Log.w(TAG, "muxVideo: Already stopped!");
             return;
         }
-        if (!mMuxerStarted || mVideoTrackIndex == INVALID_INDEX) {
-            mPendingVideoEncoderBufferIndices.add(index);
-            mPendingVideoEncoderBufferInfos.add(buffer);
+        if (encoder == mProxyEncoder) {
+            muxProxyVideo(index, buffer);
             return;
         }
-        ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(index);
-        writeSampleData(mVideoTrackIndex, buffer, encodedData);
-        mVideoEncoder.releaseOutputBuffer(index);
-        if ((buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            if (VERBOSE)
-                Log.d(TAG, "Stop encoder and muxer, since the buffer has been marked with EOS");
-            // send release msg
-            mVideoTrackIndex = INVALID_INDEX;
-            signalStop(true);
+        if (encoder == mRetiringVideoEncoder) {
+            // remaining frames of the old geometry, still belong to current segment
+            traceSample(EncoderTrace.TRACK_RETIRING_VIDEO, buffer, encoder.getOutputBuffer(index));
+            mMuxer.writeRetiringVideo(encoder, index, buffer);
+            if ((buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "Old video encoder drained, cut segment");
+                mHandler.sendEmptyMessage(MSG_CUT_SEGMENT);
+            }
+            return;
+        }
+        if (encoder != mVideoEncoder) {
+            // queued before the encoder failed and was released
+            Log.w(TAG, "muxVideo: drop buffer of released encoder");
+            return;
         }
+        traceSample(EncoderTrace.TRACK_VIDEO, buffer, encoder.getOutputBuffer(index));
+        // pending for the next segment while the old encoder is retiring
+        mMuxer.writeVideo(index, buffer);
     }
 
-
     private void muxAudio(int index, MediaCodec.BufferInfo buffer) {
         if (!mIsRunning.get()) {
             Log.w(TAG, "muxAudio: Already stopped!");
             return;
         }
-        if (!mMuxerStarted || mAudioTrackIndex == INVALID_INDEX) {
-            mPendingAudioEncoderBufferIndices.add(index);
-            mPendingAudioEncoderBufferInfos.add(buffer);
-            return;
+        traceSample(EncoderTrace.TRACK_AUDIO, buffer, mAudioEncoder.getOutputBuffer(index));
+        mMuxer.writeAudio(index, buffer);
+    }
 
+    private final SegmentMuxer.Listener mMuxerListener = new SegmentMuxer.Listener() {
+        @Override
+        public void onVideoSample(MediaCodec.BufferInfo buffer, boolean pending) {
+            if (buffer.size > 0 && (buffer.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                    | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) == 0) {
+                // pending ones waited for the muxer to start, not for the encoder
+                if (!pending) {
+                    // surface timestamps come from System.nanoTime() when the frame was composed
+                    long latencyUs = System.nanoTime() / 1000 - buffer.presentationTimeUs;
+                    mGlassToOutputSumUs += latencyUs;
+                    mGlassToOutputMaxUs = Math.max(mGlassToOutputMaxUs, latencyUs);
+                    mGlassToOutputFrames++;
+                    if (mMetrics != null) mVideoLatencyHistogram.record(latencyUs);
+                }
+                if (mSceneChangeDetector != null && mSceneChangeDetector.onFrame(buffer.size,
+                        (buffer.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)) {
+                    if (VERBOSE) Log.d(TAG, "Scene changed, frame size " + buffer.size);
+                    mVideoEncoder.requestKeyFrame();
+                    mMetadata.addEvent("keyFrame", "reason", "scene", "size", buffer.size);
+                }
+            }
+            mVideoFramesInWindow++;
+            if (mFirstFrameAt == 0) {
+                mFirstFrameAt = SystemClock.elapsedRealtime();
+                long elapsed = mFirstFrameAt - mStartRequestedAt;
+                Log.i(TAG, (mPrewarmed ? "Warm" : "Cold") + " start, first frame muxed in " + elapsed + "ms");
+                mMetadata.put("timeToFirstFrameMs", elapsed);
+            }
+            if (mSwitchRequestedAt > 0) {
+                mLastSwitchLatencyMs = SystemClock.elapsedRealtime() - mSwitchRequestedAt;
+                mSwitchRequestedAt = 0;
+                Log.i(TAG, "Switched to " + mVideoConfig.width + "x" + mVideoConfig.height
+                        + " in " + mLastSwitchLatencyMs + "ms");
+                mMetadata.addEvent("switched", "latencyMs", mLastSwitchLatencyMs);
+            }
+        }
+
+        @Override
+        public void onAudioSample(MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
+            if (mMetrics != null && buffer.size > 0 && (buffer.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                    | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) == 0) {
+                // audio timestamps come from SystemClock.elapsedRealtimeNanos() when read from mic
+                mAudioLatencyHistogram.record(SystemClock.elapsedRealtimeNanos() / 1000 - buffer.presentationTimeUs);
+            }
+            writeProxySampleData(mProxyAudioTrackIndex, mProxyAudioPts, buffer, encodedData);
+        }
+
+        @Override
+        public void onFirstSample() {
+            if (mStartupTrace != null) {
+                mStartupTrace.mark(StartupTrace.FIRST_SAMPLE);
+                Log.i(TAG, mStartupTrace.toString());
+                mMetadata.put("startup", mStartupTrace.toJson());
+            }
+        }
+
+        @Override
+        public void onEndOfStream(boolean video) {
+            mSequencer.onTrackDrained(video ? RecorderSequencer.TRACK_VIDEO : RecorderSequencer.TRACK_AUDIO);
+        }
+    };
+
+    private void muxProxyVideo(int index, MediaCodec.BufferInfo buffer) {
+        if (!mProxyMuxerStarted) {
+            mPendingProxyBuffers.add(index, buffer.offset, buffer.size, buffer.presentationTimeUs, buffer.flags);
+            return;
+        }
+        if (buffer.size > 0 && (buffer.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) == 0) {
+            mProxyGlassToOutputSumUs += System.nanoTime() / 1000 - buffer.presentationTimeUs;
         }
-        ByteBuffer encodedData = mAudioEncoder.getOutputBuffer(index);
-        writeSampleData(mAudioTrackIndex, buffer, encodedData);
-        mAudioEncoder.releaseOutputBuffer(index);
+        ByteBuffer encodedData = mProxyEncoder.getOutputBuffer(index);
+        writeProxySampleData(mProxyVideoTrackIndex, mProxyVideoPts, buffer, encodedData);
+        mProxyEncoder.releaseOutputBuffer(index);
         if ((buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            if (VERBOSE)
-                Log.d(TAG, "Stop encoder and muxer, since the buffer has been marked with EOS");
-            mAudioTrackIndex = INVALID_INDEX;
-            signalStop(true);
+            mSequencer.onTrackDrained(RecorderSequencer.TRACK_PROXY);
         }
     }
 
-    private void writeSampleData(int track, MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
-        if ((buffer.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            // The codec config data was pulled out and fed to the muxer when we got
-            // the INFO_OUTPUT_FORMAT_CHANGED status.
-            // Ignore it.
-            if (VERBOSE) Log.d(TAG, "Ignoring BUFFER_FLAG_CODEC_CONFIG");
-            buffer.size = 0;
+    /**
+     * Writes to the proxy muxer if it's started, {@code buffer} is left untouched.
+     */
+    private void writeProxySampleData(int track, PtsRebaser rebaser,
+                                      MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
+        if (!mProxyMuxerStarted || track == INVALID_INDEX || buffer.size == 0
+                || (buffer.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) != 0) {
+            return;
         }
-        boolean eos = (buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
-        if (buffer.size == 0 && !eos) {
-            if (VERBOSE) Log.d(TAG, "info.size == 0, drop it.");
-            encodedData = null;
-        } else {
-            if (buffer.presentationTimeUs != 0) { // maybe 0 if eos
-                if (track == mVideoTrackIndex) {
-                    resetVideoPts(buffer);
-                } else if (track == mAudioTrackIndex) {
-                    resetAudioPts(buffer);
-                }
+        long pts = rebaser.rebase(buffer.presentationTimeUs);
+        if (pts == PtsRebaser.DROP) return;
+        MediaCodec.BufferInfo info = mProxyBufferInfo;
+        info.set(buffer.offset, buffer.size, pts, buffer.flags);
+        encodedData.position(buffer.offset);
+        encodedData.limit(buffer.offset + buffer.size);
+        mProxyMuxer.writeSampleData(track, encodedData, info);
+        if (track == mProxyVideoTrackIndex) {
+            mProxyBitrate.add(info.size, pts);
+        }
+    }
+
+    private static final long METRICS_DUMP_INTERVAL_MS = 1000;
+    private PipelineMetrics mMetrics;
+    // of mMetrics, not looked up on every sample
+    private PipelineMetrics.Histogram mVideoLatencyHistogram;
+    private PipelineMetrics.Histogram mAudioLatencyHistogram;
+    private PipelineMetrics.Snapshot mLastMetrics;
+    private Writer mMetricsWriter;
+
+    /**
+     * Appends a line of JSON with all metrics and the rates since last dump.
+     *
+     * @return Returns false if failed to write
+     */
+    // @WorkerThread
+    private boolean dumpMetrics() {
+        PipelineMetrics.Snapshot snapshot = mMetrics.snapshot();
+        PipelineMetrics.Snapshot last = mLastMetrics;
+        mLastMetrics = snapshot;
+        try {
+            JSONObject line = new JSONObject();
+            line.put("t", mMetadata.getElapsedTime());
+            if (last != null) {
+                line.put("videoFps", snapshot.rate(PipelineMetrics.VIDEO_FRAMES, last));
+                line.put("videoBps", snapshot.rate(PipelineMetrics.VIDEO_BYTES, last) * 8);
+                line.put("audioBps", snapshot.rate(PipelineMetrics.AUDIO_BYTES, last) * 8);
             }
-            if (VERBOSE)
-                Log.d(TAG, "[" + Thread.currentThread().getId() + "] Got buffer, track=" + track
-                        + ", info: size=" + buffer.size
-                        + ", presentationTimeUs=" + buffer.presentationTimeUs);
-            if (!eos && mCallback != null) {
-                mCallback.onRecording(buffer.presentationTimeUs);
+            JSONObject counters = new JSONObject();
+            for (Map.Entry<String, Long> e : snapshot.counters.entrySet()) {
+                counters.put(e.getKey(), e.getValue());
             }
+            line.put("counters", counters);
+            JSONObject histograms = new JSONObject();
+            for (Map.Entry<String, PipelineMetrics.Histogram.Snapshot> e : snapshot.histograms.entrySet()) {
+                PipelineMetrics.Histogram.Snapshot h = e.getValue();
+                if (h.count == 0) continue;
+                JSONObject json = new JSONObject();
+                json.put("count", h.count);
+                json.put("mean", h.mean);
+                json.put("p50", h.p50);
+                json.put("p90", h.p90);
+                json.put("p99", h.p99);
+                json.put("p999", h.p999);
+                json.put("max", h.max);
+                histograms.put(e.getKey(), json);
+            }
+            line.put("histograms", histograms);
+            if (mMetricsWriter == null) {
+                mMetricsWriter = new BufferedWriter(new FileWriter(getMetricsPath()));
+            }
+            mMetricsWriter.write(line.toString());
+            mMetricsWriter.write('\n');
+            // readable while recording
+            mMetricsWriter.flush();
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to dump metrics", e);
+            closeMetricsDump();
+            return false;
         }
-        if (encodedData != null) {
-            encodedData.position(buffer.offset);
-            encodedData.limit(buffer.offset + buffer.size);
-            mMuxer.writeSampleData(track, encodedData, buffer);
-            if (VERBOSE)
-                Log.i(TAG, "Sent " + buffer.size + " bytes to MediaMuxer on track " + track);
+    }
+
+    private void closeMetricsDump() {
+        if (mMetricsWriter == null) return;
+        try {
+            mMetricsWriter.close();
+        } catch (IOException e) {
+            // ignored
         }
+        mMetricsWriter = null;
     }
 
-    private long mVideoPtsOffset, mAudioPtsOffset;
+    private boolean mTraceEnabled = false;
+    private EncoderTrace.Writer mTrace;
 
-    private void resetAudioPts(MediaCodec.BufferInfo buffer) {
-        if (mAudioPtsOffset == 0) {
-            mAudioPtsOffset = buffer.presentationTimeUs;
-            buffer.presentationTimeUs = 0;
-        } else {
-            buffer.presentationTimeUs -= mAudioPtsOffset;
+    private void openTrace() {
+        String path = getTracePath();
+        try {
+            mTrace = new EncoderTrace.Writer(new FileOutputStream(path), mAudioEncoder != null);
+            mMetadata.put("trace", path);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to trace encoders", e);
         }
     }
 
-    private void resetVideoPts(MediaCodec.BufferInfo buffer) {
-        if (mVideoPtsOffset == 0) {
-            mVideoPtsOffset = buffer.presentationTimeUs;
-            buffer.presentationTimeUs = 0;
-        } else {
-            buffer.presentationTimeUs -= mVideoPtsOffset;
+    private void traceFormat(int track, MediaFormat format) {
+        if (mTrace == null) return;
+        try {
+            mTrace.writeFormat(track, System.nanoTime() / 1000, format);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write trace", e);
+            closeTrace();
         }
     }
 
-    private void resetVideoOutputFormat(MediaFormat newFormat) {
-        // should happen before receiving buffers, and should only happen once
-        if (mVideoTrackIndex >= 0 || mMuxerStarted) {
-            throw new IllegalStateException("output format already changed!");
+    private void traceSample(int track, MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
+        if (mTrace == null) return;
+        try {
+            mTrace.writeSample(track, System.nanoTime() / 1000, buffer, encodedData);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write trace", e);
+            closeTrace();
         }
-        if (VERBOSE)
-            Log.i(TAG, "Video output format changed.\n New format: " + newFormat.toString());
-        mVideoOutputFormat = newFormat;
     }
 
-    private void resetAudioOutputFormat(MediaFormat newFormat) {
-        // should happen before receiving buffers, and should only happen once
-        if (mAudioTrackIndex >= 0 || mMuxerStarted) {
-            throw new IllegalStateException("output format already changed!");
+    private void traceSegment(int op) {
+        if (mTrace == null) return;
+        try {
+            mTrace.writeSegment(op, System.nanoTime() / 1000);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write trace", e);
+            closeTrace();
         }
-        if (VERBOSE)
-            Log.i(TAG, "Audio output format changed.\n New format: " + newFormat.toString());
-        mAudioOutputFormat = newFormat;
+    }
+
+    private void closeTrace() {
+        if (mTrace == null) return;
+        try {
+            mTrace.close();
+        } catch (IOException e) {
+            // ignored
+        }
+        mTrace = null;
+    }
+
+    private void resetVideoOutputFormat(BaseEncoder encoder, MediaFormat newFormat) {
+        if (encoder == mProxyEncoder) {
+            if (mProxyMuxerStarted) throw new IllegalStateException("output format already changed!");
+            mProxyVideoOutputFormat = newFormat;
+            return;
+        }
+        // of the next segment if switching encoders
+        mMuxer.setVideoOutputFormat(newFormat);
     }
 
     private void startMuxerIfReady() {
-        if (mMuxerStarted || mVideoOutputFormat == null
-                || (mAudioEncoder != null && mAudioOutputFormat == null)) {
+        if (mMuxer.isStarted() || mMuxer.getVideoFormat() == null
+                || (mAudioEncoder != null && mMuxer.getAudioFormat() == null)
+                // audio buffers are shared, start both muxers together
+                || (mProxyEncoder != null && !mProxyMuxerStarted && mProxyVideoOutputFormat == null)) {
             return;
         }
+        if (mProxyEncoder != null && !mProxyMuxerStarted) {
+            startProxyMuxer();
+        }
+        // ready, pending samples are written before startIfReady() returns
+        markStartup(StartupTrace.MUXER_STARTED);
+        mMuxer.startIfReady();
+        // rotation requested while the segment was not started
+        applyRequestedOrientation();
+    }
+
+    private void startProxyMuxer() {
+        mProxyVideoTrackIndex = mProxyMuxer.addTrack(mProxyVideoOutputFormat);
+        mProxyAudioTrackIndex = mAudioEncoder == null ? INVALID_INDEX : mProxyMuxer.addTrack(mMuxer.getAudioFormat());
+        mProxyMuxer.start();
+        mProxyMuxerStarted = true;
+        if (VERBOSE) Log.i(TAG, "Started proxy muxer, videoIndex=" + mProxyVideoTrackIndex);
+        PendingBuffers pending = mPendingProxyBuffers;
+        MediaCodec.BufferInfo info = mPendingProxyBufferInfo;
+        while (!pending.isEmpty()) {
+            int index = pending.poll();
+            info.set(pending.getPolledOffset(), pending.getPolledSize(),
+                    pending.getPolledPresentationTimeUs(), pending.getPolledFlags());
+            muxProxyVideo(index, info);
+        }
+    }
+
+    // @WorkerThread
+    private void switchOrientation(boolean landscape) {
+        mRequestedLandscape = landscape ? 1 : 0;
+        applyRequestedOrientation();
+    }
 
-        mVideoTrackIndex = mMuxer.addTrack(mVideoOutputFormat);
-        mAudioTrackIndex = mAudioEncoder == null ? INVALID_INDEX : mMuxer.addTrack(mAudioOutputFormat);
-        mMuxer.start();
-        mMuxerStarted = true;
-        if (VERBOSE) Log.i(TAG, "Started media muxer, videoIndex=" + mVideoTrackIndex);
-        if (mPendingVideoEncoderBufferIndices.isEmpty() && mPendingAudioEncoderBufferIndices.isEmpty()) {
+    /**
+     * Switches to the last requested orientation if any. A request that can't be served
+     * at present is kept and applied again once the muxer starts or recording resumes.
+     */
+    // @WorkerThread
+    private void applyRequestedOrientation() {
+        if (mRequestedLandscape < 0) return;
+        boolean landscape = mRequestedLandscape == 1;
+        VideoEncodeConfig base = mBaseVideoConfig;
+        if (!mIsRunning.get() || (base.width > base.height) == landscape) {
+            mRequestedLandscape = -1;
             return;
         }
-        if (VERBOSE) Log.i(TAG, "Mux pending video output buffers...");
-        MediaCodec.BufferInfo info;
-        while ((info = mPendingVideoEncoderBufferInfos.poll()) != null) {
-            int index = mPendingVideoEncoderBufferIndices.poll();
-            muxVideo(index, info);
+        VideoEncodeConfig rotated = base.withSize(base.height, base.width);
+        switch (switchVideoConfig(RecordingGovernor.apply(rotated, mGovernorLevel), "rotation")) {
+            case SWITCHED:
+                mBaseVideoConfig = rotated;
+                mRequestedLandscape = -1;
+                break;
+            case FAILED:
+                // keep current geometry, don't retry
+                mRequestedLandscape = -1;
+                break;
+            case BUSY:
+                // first segment not started yet, last switching not finished or paused
+                break;
         }
-        if (mAudioEncoder != null) {
-            while ((info = mPendingAudioEncoderBufferInfos.poll()) != null) {
-                int index = mPendingAudioEncoderBufferIndices.poll();
-                muxAudio(index, info);
+    }
+
+    /** Last orientation requested but not applied yet, 1 for landscape, 0 for portrait, -1 for none */
+    private int mRequestedLandscape = -1;
+
+    // @WorkerThread
+    private void govern() {
+        long now = SystemClock.elapsedRealtime();
+        int frames = mVideoFramesInWindow;
+        long window = now - mGovernedAt;
+        mVideoFramesInWindow = 0;
+        mGovernedAt = now;
+        if (!mIsRunning.get() || !mMuxer.isStarted() || mRetiringVideoEncoder != null || mPaused) return;
+
+        int level = mGovernor.evaluate(mGovernorLevel, frames, window, Math.round(mVideoConfig.getInputFramerate()));
+        if (level == mGovernorLevel) return;
+        VideoEncodeConfig config = RecordingGovernor.apply(mBaseVideoConfig, level);
+        String reason = mGovernor.getReason();
+        if (config.width == mVideoConfig.width && config.height == mVideoConfig.height
+                && config.framerate == mVideoConfig.framerate) {
+            // only bitrate changed
+            try {
+                mVideoEncoder.setBitrate(config.getEncoderBitrate());
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Unable to set bitrate " + config.getEncoderBitrate() + ", keep governor level " + mGovernorLevel, e);
+                return;
             }
+            mVideoConfig = config;
+        } else if (switchVideoConfig(config, "governor") != SwitchResult.SWITCHED) {
+            return;
+        }
+        Log.i(TAG, "Governor level " + mGovernorLevel + " -> " + level + ", " + reason);
+        mMetadata.addEvent("governor", "from", mGovernorLevel, "to", level, "reason", reason,
+                "width", config.width, "height", config.height,
+                "framerate", config.framerate, "bitrate", config.bitrate);
+        mGovernorLevel = level;
+    }
+
+    /**
+     * Feeds the display to a new video encoder with {@code config}, frames from now on
+     * go to a new segment.
+     *
+     * @return Returns {@link SwitchResult#BUSY} if it's not able to switch at present,
+     * {@link SwitchResult#FAILED} if the encoder can't be prepared with {@code config}.
+     */
+    private SwitchResult switchVideoConfig(VideoEncodeConfig config, String reason) {
+        if (!mMuxer.isStarted() || mRetiringVideoEncoder != null || mPaused) {
+            return SwitchResult.BUSY;
+        }
+        mSwitchRequestedAt = SystemClock.elapsedRealtime();
+        VideoEncoder encoder = new VideoEncoder(config);
+        try {
+            prepareVideoEncoder(encoder);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to switch to " + config + ", keep current config", e);
+            encoder.release();
+            mSwitchRequestedAt = 0;
+            return SwitchResult.FAILED;
+        }
+        if (VERBOSE) Log.i(TAG, "Switch video encoder to " + config);
+        mMetadata.addEvent("switch", "reason", reason, "video", encoder.getConfig().toString());
+        // new frames go to the new encoder immediately, the old one drains then cut the segment
+        mVirtualDisplay.resize(config.width, config.height, 1);
+        mVirtualDisplay.setSurface(encoder.getInputSurface());
+        mRetiringVideoEncoder = mVideoEncoder;
+        mVideoEncoder = encoder;
+        mVideoConfig = config;
+        traceSegment(EncoderTrace.SEGMENT_SWITCH_VIDEO);
+        mMuxer.beginVideoSwitch(encoder);
+        mMuxer.setMaxReorder(SegmentMuxer.getMaxReorder(config));
+        mMuxer.setFramerate(config.framerate);
+        if (mSceneChangeDetector != null) {
+            // frame sizes of new config
+            mSceneChangeDetector = SceneChangeDetector.of(config);
         }
-        if (VERBOSE) Log.i(TAG, "Mux pending video output buffers done.");
+        mRetiringVideoEncoder.signalEndOfInputStream();
+        return SwitchResult.SWITCHED;
     }
 
+    private enum SwitchResult {
+        SWITCHED,
+        /** not able to switch at present, try later */
+        BUSY,
+        /** config not supported, keep current one */
+        FAILED
+    }
+
+    /**
+     * The retiring video encoder has drained (or failed), what follows goes to the next segment.
+     */
+    private void cutSegment() throws IOException {
+        releaseRetiringVideoEncoder();
+        traceSegment(EncoderTrace.SEGMENT_CUT);
+        onSegmentCut(mMuxer.endVideoSwitch());
+    }
+
+    private void releaseRetiringVideoEncoder() {
+        VideoEncoder retired = mRetiringVideoEncoder;
+        mRetiringVideoEncoder = null;
+        if (retired != null) {
+            stopQuietly(retired);
+            retired.release();
+        }
+    }
+
+    private void onSegmentCut(String path) {
+        if (path != null) {
+            mMetadata.addEvent("segment", "path", path);
+        }
+        startMuxerIfReady();
+    }
+
+    private long mSwitchRequestedAt = 0;
+    private long mLastSwitchLatencyMs = -1;
+
     // @WorkerThread
-    private void prepareVideoEncoder() throws IOException {
+    private void prepareVideoEncoder(VideoEncoder encoder) throws IOException {
         VideoEncoder.Callback callback = new VideoEncoder.Callback() {
             boolean ranIntoError = false;
 
@@ -352,7 +1143,7 @@ public class ScreenRecorder {
             public void onOutputBufferAvailable(BaseEncoder codec, int index, MediaCodec.BufferInfo info) {
                 if (VERBOSE) Log.i(TAG, "VideoEncoder output buffer available: index=" + index);
                 try {
-                    muxVideo(index, info);
+                    muxVideo(codec, index, info);
                 } catch (Exception e) {
                     Log.e(TAG, "Muxer encountered an error! ", e);
                     Message.obtain(mHandler, MSG_ERROR, e).sendToTarget();
@@ -361,19 +1152,24 @@ public class ScreenRecorder {
 
             @Override
             public void onError(Encoder codec, Exception e) {
+                if (ranIntoError) return;
                 ranIntoError = true;
                 Log.e(TAG, "VideoEncoder ran into an error! ", e);
-                Message.obtain(mHandler, MSG_ERROR, e).sendToTarget();
+                onCodecError(codec, e);
             }
 
             @Override
             public void onOutputFormatChanged(BaseEncoder codec, MediaFormat format) {
-                resetVideoOutputFormat(format);
+                if (codec == mVideoEncoder) {
+                    markStartup(StartupTrace.VIDEO_FORMAT);
+                    traceFormat(EncoderTrace.TRACK_VIDEO, format);
+                }
+                resetVideoOutputFormat(codec, format);
                 startMuxerIfReady();
             }
         };
-        mVideoEncoder.setCallback(callback);
-        mVideoEncoder.prepare();
+        encoder.setCallback(callback);
+        encoder.prepare();
     }
 
     private void prepareAudioEncoder() throws IOException {
@@ -398,15 +1194,19 @@ public class ScreenRecorder {
             public void onOutputFormatChanged(BaseEncoder codec, MediaFormat format) {
                 if (VERBOSE)
                     Log.d(TAG, "[" + Thread.currentThread().getId() + "] AudioEncoder returned new format " + format);
-                resetAudioOutputFormat(format);
+                markStartup(StartupTrace.AUDIO_FORMAT);
+                traceFormat(EncoderTrace.TRACK_AUDIO, format);
+                mMuxer.setAudioFormat(format);
                 startMuxerIfReady();
             }
 
             @Override
             public void onError(Encoder codec, Exception e) {
+                if (ranIntoError) return;
                 ranIntoError = true;
                 Log.e(TAG, "MicRecorder ran into an error! ", e);
-                Message.obtain(mHandler, MSG_ERROR, e).sendToTarget();
+                // may be the AudioEncoder inside
+                onCodecError(micRecorder, e);
             }
 
 
@@ -415,23 +1215,182 @@ public class ScreenRecorder {
         micRecorder.prepare();
     }
 
-    private void signalStop(boolean stopWithEOS) {
-        Message msg = Message.obtain(mHandler, MSG_STOP, stopWithEOS ? STOP_WITH_EOS : 0, 0);
-        mHandler.sendMessageAtFrontOfQueue(msg);
+    // @WorkerThread
+    private void onCodecError(Encoder codec, Exception e) {
+        if (e instanceof MediaCodec.CodecException) {
+            MediaCodec.CodecException ce = (MediaCodec.CodecException) e;
+            mMetadata.addEvent("codecError", "transient", ce.isTransient(),
+                    "recoverable", ce.isRecoverable(), "diagnostic", ce.getDiagnosticInfo());
+        }
+        mSequencer.onCodecError(codec, e);
+    }
+
+    /**
+     * Recreates the failing codec only, others keep running. A new codec comes with a new output
+     * format which the running muxer can't take, so what has been muxed is closed as a segment
+     * and the rest goes to the next one.
+     */
+    // @WorkerThread
+    private void recoverCodec(Encoder codec) throws IOException {
+        if (!mIsRunning.get()) return;
+        long begin = SystemClock.elapsedRealtime();
+        String which;
+        if (codec == mRetiringVideoEncoder) {
+            // was draining to the end of the segment anyway
+            which = "retiringVideo";
+            cutSegment();
+        } else if (codec == mProxyEncoder) {
+            which = "proxy";
+            dropProxy();
+        } else if (codec == mVideoEncoder) {
+            which = "video";
+            recreateVideoEncoder();
+        } else if (codec == mAudioEncoder) {
+            which = "audio";
+            recreateAudioEncoder();
+        } else {
+            // released already
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - begin;
+        Log.i(TAG, "Recovered " + which + " codec in " + elapsed + "ms");
+        mMetadata.addEvent("recover", "codec", which, "latencyMs", elapsed);
+    }
+
+    private void recreateVideoEncoder() throws IOException {
+        VideoEncoder failed = mVideoEncoder;
+        stopQuietly(failed);
+        failed.release();
+        releaseRetiringVideoEncoder();
+
+        VideoEncoder encoder = new VideoEncoder(mVideoConfig);
+        traceSegment(EncoderTrace.SEGMENT_RECOVER_VIDEO);
+        onSegmentCut(mMuxer.recoverVideo(encoder));
+        prepareVideoEncoder(encoder);
+        mVideoEncoder = encoder;
+        if (!mPaused) {
+            mVirtualDisplay.setSurface(encoder.getInputSurface());
+        }
+    }
+
+    private void recreateAudioEncoder() throws IOException {
+        MicRecorder failed = mAudioEncoder;
+        stopQuietly(failed);
+        failed.release();
+        releaseRetiringVideoEncoder();
+
+        mAudioEncoder = new MicRecorder(failed.getConfig());
+        mAudioEncoder.setMetrics(mMetrics);
+        traceSegment(EncoderTrace.SEGMENT_RECOVER_AUDIO);
+        onSegmentCut(mMuxer.recoverAudio(mAudioEncoder));
+        // the next segment waits for a key frame
+        mVideoEncoder.requestKeyFrame();
+        prepareAudioEncoder();
+        mAudioEncoder.startRecording();
+        if (mPaused) {
+            mAudioEncoder.pause();
+        }
+    }
+
+    /**
+     * Gives up the proxy, the full-resolution recording goes on.
+     */
+    private void dropProxy() {
+        mPendingProxyBuffers.clear();
+        mProxyDisplay.setSurface(null);
+        stopQuietly(mProxyEncoder);
+        mProxyEncoder.release();
+        mProxyEncoder = null;
+        releaseProxyMuxer();
+        // waiting for the proxy format, maybe
+        startMuxerIfReady();
+    }
+
+    private static void stopQuietly(Encoder encoder) {
+        try {
+            encoder.stop();
+        } catch (IllegalStateException e) {
+            // ignored
+        }
+    }
+
+    private long mStopRequestedAt = 0;
+
+    private final RecorderSequencer mSequencer = new RecorderSequencer(new RecorderSequencer.Host() {
+        @Override
+        public void signalEndOfStream() {
+            mVideoEncoder.signalEndOfInputStream();
+            if (mAudioEncoder != null) mAudioEncoder.signalEndOfStream();
+            if (mProxyEncoder != null) mProxyEncoder.signalEndOfInputStream();
+        }
+
+        @Override
+        public void scheduleStopDeadline(long delayMs) {
+            mHandler.sendEmptyMessageDelayed(MSG_STOP_DEADLINE, delayMs);
+        }
+
+        @Override
+        public void scheduleRecovery(Encoder codec, long delayMs) {
+            mHandler.sendMessageDelayed(Message.obtain(mHandler, MSG_RECOVER, codec), delayMs);
+        }
+
+        @Override
+        public void recover(Encoder codec) throws IOException {
+            recoverCodec(codec);
+        }
+
+        @Override
+        public void stop(boolean drained, Exception error) {
+            if (error != null) {
+                Message.obtain(mHandler, MSG_ERROR, error).sendToTarget();
+                return;
+            }
+            if (drained) {
+                Log.i(TAG, "Drained in " + (SystemClock.elapsedRealtime() - mStopRequestedAt) + "ms");
+            }
+            Message msg = Message.obtain(mHandler, MSG_STOP, drained ? STOP_WITH_EOS : 0, 0);
+            mHandler.sendMessageAtFrontOfQueue(msg);
+        }
+    });
+
+    /**
+     * Stops through {@link RecorderSequencer#requestStop(int)}, the encoders are drained unless
+     * the muxer isn't started yet or the old video encoder is draining into a segment to be cut.
+     */
+    // @WorkerThread
+    private void drain() {
+        if (!mIsRunning.get() || mSequencer.isStopRequested()) return;
+        mStopRequestedAt = SystemClock.elapsedRealtime();
+        int tracks = 0;
+        if (mMuxer.isStarted() && mRetiringVideoEncoder == null) {
+            tracks = RecorderSequencer.TRACK_VIDEO;
+            if (mAudioEncoder != null) tracks |= RecorderSequencer.TRACK_AUDIO;
+            if (mProxyEncoder != null) tracks |= RecorderSequencer.TRACK_PROXY;
+        }
+        mSequencer.requestStop(tracks);
     }
 
     private void stopEncoders() {
         mIsRunning.set(false);
-        mPendingAudioEncoderBufferInfos.clear();
-        mPendingAudioEncoderBufferIndices.clear();
-        mPendingVideoEncoderBufferInfos.clear();
-        mPendingVideoEncoderBufferIndices.clear();
+        mMuxer.clearPendingAudio();
+        mMuxer.clearPendingVideo();
         // maybe called on an error has been occurred
         try {
             if (mVideoEncoder != null) mVideoEncoder.stop();
         } catch (IllegalStateException e) {
             // ignored
         }
+        try {
+            if (mRetiringVideoEncoder != null) mRetiringVideoEncoder.stop();
+        } catch (IllegalStateException e) {
+            // ignored
+        }
+        mPendingProxyBuffers.clear();
+        try {
+            if (mProxyEncoder != null) mProxyEncoder.stop();
+        } catch (IllegalStateException e) {
+            // ignored
+        }
         try {
             if (mAudioEncoder != null) mAudioEncoder.stop();
         } catch (IllegalStateException e) {
@@ -441,14 +1400,34 @@ public class ScreenRecorder {
     }
 
     private void release() {
+        release(false, null);
+    }
+
+    /**
+     * Releases encoders right away, finalizing files may take seconds for a long recording,
+     * does in another thread.
+     *
+     * @param notify whether to call {@link Callback#onStop(Throwable)} in the main thread when files are finalized
+     */
+    private void release(boolean notify, Throwable error) {
+        // files may be finalizing
+        if (!mReleased.compareAndSet(false, true)) return;
+        if (mProgress != null) {
+            mProgress.stop();
+            mProgress = null;
+        }
         if (mVirtualDisplay != null) {
             mVirtualDisplay.setSurface(null);
             mVirtualDisplay = null;
         }
+        if (mProxyDisplay != null) {
+            mProxyDisplay.setSurface(null);
+            mProxyDisplay = null;
+        }
 
-        mVideoOutputFormat = mAudioOutputFormat = null;
-        mVideoTrackIndex = mAudioTrackIndex = INVALID_INDEX;
-        mMuxerStarted = false;
+        mMuxer.close();
+        // prewarmed but never started
+        closeTrace();
 
         if (mWorker != null) {
             mWorker.quitSafely();
@@ -458,21 +1437,125 @@ public class ScreenRecorder {
             mVideoEncoder.release();
             mVideoEncoder = null;
         }
+        if (mRetiringVideoEncoder != null) {
+            mRetiringVideoEncoder.release();
+            mRetiringVideoEncoder = null;
+        }
+        if (mProxyEncoder != null) {
+            mProxyEncoder.release();
+            mProxyEncoder = null;
+        }
         if (mAudioEncoder != null) {
             mAudioEncoder.release();
             mAudioEncoder = null;
         }
 
-        if (mMuxer != null) {
-            try {
-                mMuxer.stop();
-                mMuxer.release();
-            } catch (Exception e) {
-                // ignored
+        mHandler = null;
+        final Callback callback = notify ? mCallback : null;
+        if (!mMuxer.isOpened() && mProxyMuxer == null) {
+            if (callback != null) notifyStop(callback, error);
+            return;
+        }
+        new Thread(() -> {
+            long begin = SystemClock.elapsedRealtime();
+            if (mProxyMuxer != null) {
+                releaseProxyMuxer();
+            }
+            boolean finished = mMuxer.finish();
+            long elapsed = SystemClock.elapsedRealtime() - begin;
+            Log.i(TAG, "Finalized in " + elapsed + "ms");
+            if (finished && !mMuxer.getSegmentPaths().isEmpty()) {
+                mMetadata.put("finalizeMs", elapsed);
+                saveMetadata();
             }
-            mMuxer = null;
+            if (callback != null) notifyStop(callback, error);
+        }, "ScreenRecorder-finalize").start();
+    }
+
+    private static void notifyStop(Callback callback, Throwable error) {
+        new Handler(Looper.getMainLooper()).post(() -> callback.onStop(error));
+    }
+
+    private void releaseProxyMuxer() {
+        String path = getProxyPath();
+        try {
+            if (mProxyMuxerStarted) mProxyMuxer.stop();
+        } catch (Exception e) {
+            // ignored
+        }
+        mProxyMuxer.release();
+        mProxyMuxer = null;
+        mProxyVideoOutputFormat = null;
+        mProxyVideoTrackIndex = mProxyAudioTrackIndex = INVALID_INDEX;
+        if (!mProxyMuxerStarted) {
+            new File(path).delete();
+            mProxyPath = null;
+            return;
+        }
+        mProxyMuxerStarted = false;
+        // what the second encoder cost
+        BitrateStats bitrate = mProxyBitrate;
+        long latency = bitrate.getFrames() == 0 ? -1 : mProxyGlassToOutputSumUs / bitrate.getFrames();
+        Log.i(TAG, "Proxy " + bitrate + ", glass-to-output avg=" + latency + "us");
+        try {
+            JSONObject stats = new JSONObject();
+            stats.put("path", path);
+            stats.put("bytes", bitrate.getTotalBytes());
+            stats.put("frames", bitrate.getFrames());
+            stats.put("meanBps", bitrate.getMeanBitrate());
+            stats.put("glassToOutputAvgUs", latency);
+            mMetadata.put("proxyStats", stats);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void saveMetadata() {
+        try {
+            if (mGlassToOutputFrames > 0) {
+                long avg = getAverageGlassToOutputLatencyUs();
+                Log.i(TAG, "Glass-to-output latency avg=" + avg + "us, max=" + mGlassToOutputMaxUs + "us");
+                mMetadata.put("glassToOutputAvgUs", avg);
+                mMetadata.put("glassToOutputMaxUs", mGlassToOutputMaxUs);
+            }
+            BitrateStats bitrate = mMuxer.getVideoBitrate();
+            Log.i(TAG, "Video " + bitrate);
+            float achieved = bitrate.getFramerate();
+            if (achieved < mVideoConfig.framerate * 0.9f) {
+                Log.w(TAG, "Achieved " + achieved + " fps of requested " + mVideoConfig.framerate);
+            }
+            mMetadata.put("requestedFps", mVideoConfig.framerate);
+            mMetadata.put("achievedFps", achieved);
+            if (mFirstFrameAt > 0) {
+                // frames the encoder really worked on, per second of wall time
+                long elapsed = Math.max(SystemClock.elapsedRealtime() - mFirstFrameAt, 1);
+                mMetadata.put("encodedFps", bitrate.getFrames() * 1000d / elapsed);
+            }
+            JSONObject stats = new JSONObject();
+            stats.put("bytes", bitrate.getTotalBytes());
+            stats.put("frames", bitrate.getFrames());
+            stats.put("meanBps", bitrate.getMeanBitrate());
+            stats.put("stdDevBps", bitrate.getBitrateStdDev());
+            stats.put("peakBps", bitrate.getPeakBitrate());
+            stats.put("peakToAverage", bitrate.getPeakToAverageRatio());
+            // 1/4 of the target bitrate per bucket, spikes of I-frames stand out
+            long bucket = Math.max(mBaseVideoConfig.bitrate / 4, 1);
+            stats.put("histogramBucketBps", bucket);
+            stats.put("histogram", new JSONArray(bitrate.getHistogram(bucket)));
+            mMetadata.put("videoBitrate", stats);
+            FramePacingAnalyzer pacing = mMuxer.getVideoPacing();
+            pacing.flush();
+            Log.i(TAG, "Video " + pacing);
+            mMetadata.put("framePacing", pacing.toJson());
+            mMetadata.put("repairedVideoPts", mMuxer.getRepairedVideoPts());
+            mMetadata.put("rejectedVideoPts", mMuxer.getRejectedVideoPts());
+            mMetadata.put("segments", new JSONArray(getSavedPaths()));
+            List<String> previews = mMuxer.getPreviewPaths();
+            if (!previews.isEmpty()) mMetadata.put("previews", new JSONArray(previews));
+            mMetadata.writeTo(new File(getMetadataPath()));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to save metadata", e);
         }
-        mHandler = null;
     }
 
     @Override
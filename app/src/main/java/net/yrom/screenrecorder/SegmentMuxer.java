@@ -0,0 +1,919 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Muxes output buffers of a video and an optional audio {@link Encoder} into segments,
+ * the first is the destination path and the others are {@code <name>-N.mp4}.
+ * <p>
+ * Buffers come before the muxer starts are kept pending until both formats are known.
+ * Timestamps of each segment are rebased to start from 0, without the paused durations,
+ * and video samples are checked to be in a decode order the muxer takes.
+ * <p>
+ * Has no threads or clocks of its own, callers pass the current time of each track clock,
+ * so it runs on the JVM against fakes. Not thread safe, should be called in one thread.
+ */
+final class SegmentMuxer {
+    private static final String TAG = "SegmentMuxer";
+    private static final boolean VERBOSE = false;
+    private static final int INVALID_INDEX = -1;
+    // the codec picks if not set, allow as much as H.264 can buffer
+    static final int MAX_REORDER_UNKNOWN = 16;
+    // what's written of an end of stream sample, nothing
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    interface Listener {
+        /**
+         * A sample of the current video encoder is going to be muxed, not rebased yet.
+         *
+         * @param pending true if the sample was kept pending until the segment started,
+         *                so it's muxed later than it came out of the encoder
+         */
+        void onVideoSample(MediaCodec.BufferInfo info, boolean pending);
+
+        /**
+         * An audio sample is going to be muxed, not rebased yet. {@code data} is
+         * released after this returns.
+         */
+        void onAudioSample(MediaCodec.BufferInfo info, ByteBuffer data);
+
+        /**
+         * The first sample of the session is going to be written, called once.
+         */
+        void onFirstSample();
+
+        /**
+         * The end of stream of the current encoder of the track has been muxed.
+         */
+        void onEndOfStream(boolean video);
+    }
+
+    private final String mDstPath;
+    private final Muxer.Factory mFactory;
+    private final List<String> mSegmentPaths = new CopyOnWriteArrayList<>();
+    private Listener mListener;
+    private Muxer mMuxer;
+    private boolean mStarted = false;
+
+    private Encoder mVideoEncoder;
+    private Encoder mAudioEncoder;
+    private MediaFormat mVideoFormat = null, mAudioFormat = null;
+    private MediaFormat mNextVideoFormat = null;
+    // an old video encoder is draining into the current segment
+    private boolean mSwitchingVideo = false;
+    private int mVideoTrackIndex = INVALID_INDEX, mAudioTrackIndex = INVALID_INDEX;
+    private final PendingBuffers mPendingVideoBuffers = new PendingBuffers();
+    private final PendingBuffers mPendingAudioBuffers = new PendingBuffers();
+    // of a polled pending buffer, or an end of stream, while being written
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    // video timestamps come from System.nanoTime(), audio's from SystemClock.elapsedRealtimeNanos()
+    private final PtsRebaser mVideoPts = new PtsRebaser();
+    private final PtsRebaser mAudioPts = new PtsRebaser();
+    private float mTimelapseFactor = 1;
+    // a segment started in the middle of a GOP
+    private boolean mWaitForVideoKeyFrame = false;
+    // B-frames come out in decode order, their timestamps go back and forth
+    private DecodeTimeline mVideoDecodeOrder;
+    private int mMaxReorder = MAX_REORDER_UNKNOWN;
+    // of all segments
+    private int mRepairedVideoPts;
+    private int mRejectedVideoPts;
+
+    // of the muxed video samples
+    private final BitrateStats mVideoBitrate = new BitrateStats();
+    private volatile float mAchievedFramerate = 0;
+    private FramePacingAnalyzer mVideoPacing;
+    private float mFramerate;
+    // progress of all segments, written by the muxing thread only, read by any
+    private volatile long mMuxedDurationUs = 0;
+    private volatile long mMuxedBytes = 0;
+    // where the current segment starts in the duration
+    private long mSegmentOffsetUs = 0;
+    private boolean mFirstSampleMuxed = false;
+    // of each segment, null if not enabled
+    private List<KeyFrameIndex> mKeyFrameIndexes;
+    private KeyFrameIndex mKeyFrameIndex;
+    // key frames only of the current segment, copied as they are muxed
+    private boolean mPreviewEnabled = false;
+    private Muxer mPreviewMuxer;
+    private String mPreviewPath;
+    private int mPreviewTrackIndex = INVALID_INDEX;
+    private final List<String> mPreviewPaths = new CopyOnWriteArrayList<>();
+
+    private PipelineMetrics mMetrics;
+    // of mMetrics, not looked up on every sample
+    private PipelineMetrics.Counter mVideoFramesCounter;
+    private PipelineMetrics.Counter mVideoBytesCounter;
+    private PipelineMetrics.Counter mVideoDroppedCounter;
+    private PipelineMetrics.Counter mAudioFramesCounter;
+    private PipelineMetrics.Counter mAudioBytesCounter;
+    private PipelineMetrics.Histogram mVideoPendingHistogram;
+    private PipelineMetrics.Histogram mAudioPendingHistogram;
+    private PipelineMetrics.Histogram mMuxerWriteHistogram;
+
+    /**
+     * @param dstPath path of the first segment
+     */
+    SegmentMuxer(String dstPath, Muxer.Factory factory) {
+        mDstPath = dstPath;
+        mFactory = factory;
+        mSegmentPaths.add(dstPath);
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Counts samples, drops and write time into {@code metrics}, should be set before {@link #open()}.
+     */
+    void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+        if (metrics == null) return;
+        mVideoFramesCounter = metrics.counter(PipelineMetrics.VIDEO_FRAMES);
+        mVideoBytesCounter = metrics.counter(PipelineMetrics.VIDEO_BYTES);
+        mVideoDroppedCounter = metrics.counter(PipelineMetrics.VIDEO_DROPPED);
+        mVideoPendingHistogram = metrics.histogram(PipelineMetrics.VIDEO_PENDING);
+        mAudioFramesCounter = metrics.counter(PipelineMetrics.AUDIO_FRAMES);
+        mAudioBytesCounter = metrics.counter(PipelineMetrics.AUDIO_BYTES);
+        mAudioPendingHistogram = metrics.histogram(PipelineMetrics.AUDIO_PENDING);
+        mMuxerWriteHistogram = metrics.histogram(PipelineMetrics.MUXER_WRITE_NS);
+    }
+
+    /**
+     * Video plays {@code factor} times faster than captured, see {@link VideoEncodeConfig#getTimelapseFactor()}.
+     */
+    void setTimelapseFactor(float factor) {
+        mTimelapseFactor = factor;
+    }
+
+    /**
+     * @param maxReorder max B-frames the encoder may put between reference frames, applies
+     *                   from the next segment
+     */
+    void setMaxReorder(int maxReorder) {
+        mMaxReorder = maxReorder;
+    }
+
+    /**
+     * Analyzes pacing of muxed video frames against {@code framerate}, the first one should be set
+     * before {@link #open()}, later ones apply from the next segment.
+     */
+    void setFramerate(float framerate) {
+        mFramerate = framerate;
+        if (mVideoPacing == null) mVideoPacing = new FramePacingAnalyzer(framerate);
+    }
+
+    /**
+     * @return Returns max B-frames the encoder of {@code config} may put between reference frames
+     */
+    static int getMaxReorder(VideoEncodeConfig config) {
+        int bFrames = config.getMaxBFrames();
+        return bFrames >= 0 ? bFrames : MAX_REORDER_UNKNOWN;
+    }
+
+    /**
+     * @param encoder whose output buffers are passed to {@link #writeVideo(int, MediaCodec.BufferInfo)}
+     */
+    void setVideoEncoder(Encoder encoder) {
+        mVideoEncoder = encoder;
+    }
+
+    /**
+     * @param encoder whose output buffers are passed to {@link #writeAudio(int, MediaCodec.BufferInfo)},
+     *                null if no audio
+     */
+    void setAudioEncoder(Encoder encoder) {
+        mAudioEncoder = encoder;
+    }
+
+    /**
+     * Saves {@link KeyFrameIndex key frames} of each segment next to it when {@link #finish() finished},
+     * should be set before {@link #open()}.
+     */
+    void setKeyFrameIndexEnabled(boolean enabled) {
+        if (mMuxer != null) throw new IllegalStateException("already opened");
+        mKeyFrameIndexes = enabled ? new ArrayList<>() : null;
+    }
+
+    /**
+     * Writes the key frames of each segment into a {@link #previewPathOf(String) preview} next to it,
+     * no re-encoding. Failures of a preview don't stop the recording. Should be set before {@link #open()}.
+     */
+    void setKeyFramePreviewEnabled(boolean enabled) {
+        if (mMuxer != null) throw new IllegalStateException("already opened");
+        mPreviewEnabled = enabled;
+    }
+
+    /**
+     * @return Returns path of the key frame preview of the segment {@code path}
+     */
+    static String previewPathOf(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0) return path + "-preview";
+        return path.substring(0, dot) + "-preview" + path.substring(dot);
+    }
+
+    /**
+     * Creates the muxer of the first segment.
+     */
+    void open() throws IOException {
+        if (mMuxer != null) throw new IllegalStateException("already opened");
+        mMuxer = mFactory.create(mDstPath);
+        newKeyFrameIndex();
+        openPreview(mDstPath);
+    }
+
+    private void newKeyFrameIndex() {
+        if (mKeyFrameIndexes == null) return;
+        mKeyFrameIndex = new KeyFrameIndex();
+        mKeyFrameIndexes.add(mKeyFrameIndex);
+    }
+
+    boolean isOpened() {
+        return mMuxer != null;
+    }
+
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * @param format output format of the current video encoder, should be set once per segment
+     */
+    void setVideoFormat(MediaFormat format) {
+        // should happen before receiving buffers, and should only happen once per segment
+        if (mVideoTrackIndex >= 0 || mStarted) {
+            throw new IllegalStateException("output format already changed!");
+        }
+        if (VERBOSE) Log.i(TAG, "Video output format changed.\n New format: " + format);
+        mVideoFormat = format;
+    }
+
+    /**
+     * @param format output format of the current video encoder, goes to the next segment
+     *               if switching encoders, see {@link #beginVideoSwitch(Encoder)}
+     */
+    void setVideoOutputFormat(MediaFormat format) {
+        if (mSwitchingVideo) {
+            setNextVideoFormat(format);
+        } else {
+            setVideoFormat(format);
+        }
+    }
+
+    /**
+     * @param format video format of the next segment, null if it will come from a new encoder
+     */
+    void setNextVideoFormat(MediaFormat format) {
+        mNextVideoFormat = format;
+    }
+
+    MediaFormat getVideoFormat() {
+        return mVideoFormat;
+    }
+
+    MediaFormat getAudioFormat() {
+        return mAudioFormat;
+    }
+
+    void setAudioFormat(MediaFormat format) {
+        // should happen before receiving buffers, and should only happen once
+        if (mAudioTrackIndex >= 0 || mStarted) {
+            throw new IllegalStateException("output format already changed!");
+        }
+        if (VERBOSE) Log.i(TAG, "Audio output format changed.\n New format: " + format);
+        mAudioFormat = format;
+    }
+
+    /**
+     * Forgets the audio format, e.g. the audio encoder failed and a new one will tell its own.
+     * Should be called before the next segment starts.
+     */
+    void resetAudioFormat() {
+        mAudioFormat = null;
+    }
+
+    /**
+     * Starts muxing once formats of all tracks are known, and muxes the pending buffers.
+     *
+     * @return Returns true if started
+     */
+    boolean startIfReady() {
+        if (mStarted || mVideoFormat == null || (mAudioEncoder != null && mAudioFormat == null)) {
+            return false;
+        }
+        mVideoTrackIndex = mMuxer.addTrack(mVideoFormat);
+        mAudioTrackIndex = mAudioEncoder == null ? INVALID_INDEX : mMuxer.addTrack(mAudioFormat);
+        mMuxer.start();
+        mStarted = true;
+        startPreview();
+        if (VERBOSE) Log.i(TAG, "Started media muxer, videoIndex=" + mVideoTrackIndex);
+        if (mPendingVideoBuffers.isEmpty() && mPendingAudioBuffers.isEmpty()) {
+            return true;
+        }
+        if (VERBOSE) Log.i(TAG, "Mux pending output buffers...");
+        // those queued again, e.g. after the end of stream, are left for the next start
+        for (int n = mPendingVideoBuffers.size(); n > 0; n--) {
+            int index = pollPending(mPendingVideoBuffers);
+            writeVideo(index, mBufferInfo, true);
+        }
+        if (mAudioEncoder != null) {
+            for (int n = mPendingAudioBuffers.size(); n > 0; n--) {
+                int index = pollPending(mPendingAudioBuffers);
+                writeAudio(index, mBufferInfo);
+            }
+        }
+        if (VERBOSE) Log.i(TAG, "Mux pending output buffers done.");
+        return true;
+    }
+
+    private int pollPending(PendingBuffers pending) {
+        int index = pending.poll();
+        mBufferInfo.set(pending.getPolledOffset(), pending.getPolledSize(),
+                pending.getPolledPresentationTimeUs(), pending.getPolledFlags());
+        return index;
+    }
+
+    /**
+     * Muxes an output buffer of the current video encoder, or keeps it pending until started.
+     */
+    void writeVideo(int index, MediaCodec.BufferInfo buffer) {
+        writeVideo(index, buffer, false);
+    }
+
+    private void writeVideo(int index, MediaCodec.BufferInfo buffer, boolean pending) {
+        if (!mStarted || mVideoTrackIndex == INVALID_INDEX || mSwitchingVideo) {
+            queueVideo(index, buffer);
+            return;
+        }
+        Encoder encoder = mVideoEncoder;
+        // the info may be recycled by the encoder once the buffer is released
+        boolean eos = (buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (mListener != null) mListener.onVideoSample(buffer, pending);
+        writeSampleData(mVideoTrackIndex, buffer, encoder.getOutputBuffer(index));
+        encoder.releaseOutputBuffer(index);
+        if (eos) {
+            if (VERBOSE) Log.d(TAG, "Video track ended, since the buffer has been marked with EOS");
+            mVideoTrackIndex = INVALID_INDEX;
+            if (mListener != null) mListener.onEndOfStream(true);
+        }
+    }
+
+    /**
+     * Keeps an output buffer of the current video encoder until the next segment starts,
+     * e.g. a new encoder is feeding while the old one is draining into the current segment.
+     */
+    void queueVideo(int index, MediaCodec.BufferInfo buffer) {
+        mPendingVideoBuffers.add(index, buffer.offset, buffer.size, buffer.presentationTimeUs, buffer.flags);
+        if (mMetrics != null) mVideoPendingHistogram.record(mPendingVideoBuffers.size());
+    }
+
+    /**
+     * Muxes remaining frames of an old video encoder, which still belong to the current segment.
+     */
+    void writeRetiringVideo(Encoder encoder, int index, MediaCodec.BufferInfo buffer) {
+        if (!mStarted || mVideoTrackIndex == INVALID_INDEX) {
+            // the segment has been ended or closed, nowhere to go
+            if (VERBOSE) Log.w(TAG, "Drop retiring video buffer, pts=" + buffer.presentationTimeUs);
+            encoder.releaseOutputBuffer(index);
+            return;
+        }
+        writeSampleData(mVideoTrackIndex, buffer, encoder.getOutputBuffer(index));
+        encoder.releaseOutputBuffer(index);
+    }
+
+    /**
+     * Muxes an output buffer of the audio encoder, or keeps it pending until started.
+     */
+    void writeAudio(int index, MediaCodec.BufferInfo buffer) {
+        if (!mStarted || mAudioTrackIndex == INVALID_INDEX) {
+            mPendingAudioBuffers.add(index, buffer.offset, buffer.size, buffer.presentationTimeUs, buffer.flags);
+            if (mMetrics != null) mAudioPendingHistogram.record(mPendingAudioBuffers.size());
+            return;
+        }
+        Encoder encoder = mAudioEncoder;
+        ByteBuffer encodedData = encoder.getOutputBuffer(index);
+        // the info may be recycled by the encoder once the buffer is released
+        boolean eos = (buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        // before the buffer is rebased
+        if (mListener != null) mListener.onAudioSample(buffer, encodedData);
+        writeSampleData(mAudioTrackIndex, buffer, encodedData);
+        encoder.releaseOutputBuffer(index);
+        if (eos) {
+            if (VERBOSE) Log.d(TAG, "Audio track ended, since the buffer has been marked with EOS");
+            mAudioTrackIndex = INVALID_INDEX;
+            if (mListener != null) mListener.onEndOfStream(false);
+        }
+    }
+
+    void clearPendingVideo() {
+        mPendingVideoBuffers.clear();
+    }
+
+    void clearPendingAudio() {
+        mPendingAudioBuffers.clear();
+    }
+
+    /**
+     * Video frames are dropped until a key frame, e.g. the segment started in the middle of a GOP.
+     */
+    void waitForVideoKeyFrame() {
+        mWaitForVideoKeyFrame = true;
+    }
+
+    /**
+     * Hands the video track to {@code encoder}: the current encoder is retiring, its remaining
+     * frames go to the current segment by {@link #writeRetiringVideo(Encoder, int, MediaCodec.BufferInfo)},
+     * the format and frames of the new one are kept for the next segment,
+     * until {@link #endVideoSwitch()}.
+     */
+    void beginVideoSwitch(Encoder encoder) {
+        if (!mStarted || mSwitchingVideo) throw new IllegalStateException("not able to switch at present");
+        mVideoEncoder = encoder;
+        mSwitchingVideo = true;
+    }
+
+    boolean isSwitchingVideo() {
+        return mSwitchingVideo;
+    }
+
+    /**
+     * The retiring video encoder has drained, cuts the segment.
+     *
+     * @return Returns path of the new segment, or null if the current one is kept
+     */
+    String endVideoSwitch() throws IOException {
+        mSwitchingVideo = false;
+        return nextSegment();
+    }
+
+    /**
+     * The video encoder failed and is replaced by {@code encoder}. What it has output but not muxed
+     * is dropped, the segment is cut, the next one waits for the format of {@code encoder}.
+     * A switch in progress ends here.
+     *
+     * @return Returns path of the new segment, or null if the current one is kept
+     */
+    String recoverVideo(Encoder encoder) throws IOException {
+        clearPendingVideo();
+        mVideoEncoder = encoder;
+        mSwitchingVideo = false;
+        // no format from the failed one
+        setNextVideoFormat(null);
+        return nextSegment();
+    }
+
+    /**
+     * The audio encoder failed and is replaced by {@code encoder}. The segment is cut, video goes
+     * on in the next one from a key frame, once the format of {@code encoder} is known.
+     * A switch in progress ends here.
+     *
+     * @return Returns path of the new segment, or null if the current one is kept
+     */
+    String recoverAudio(Encoder encoder) throws IOException {
+        clearPendingAudio();
+        mAudioEncoder = encoder;
+        resetAudioFormat();
+        if (!mSwitchingVideo) {
+            // video goes on in the next segment
+            setNextVideoFormat(getVideoFormat());
+        }
+        mSwitchingVideo = false;
+        String path = nextSegment();
+        // the next segment must not start with frames referring to the last one
+        waitForVideoKeyFrame();
+        return path;
+    }
+
+    /**
+     * @param videoNowUs current time of the video clock
+     * @param audioNowUs current time of the audio clock
+     */
+    void pause(long videoNowUs, long audioNowUs) {
+        mVideoPts.pause(videoNowUs);
+        mAudioPts.pause(audioNowUs);
+    }
+
+    void resume(long videoNowUs, long audioNowUs) {
+        mVideoPts.resume(videoNowUs);
+        mAudioPts.resume(audioNowUs);
+    }
+
+    /**
+     * Closes the current segment if anything has been written, what comes next goes to a new one
+     * with the {@link #setNextVideoFormat(MediaFormat) next video format}.
+     *
+     * @return Returns path of the new segment, or null if the current one is kept
+     */
+    String nextSegment() throws IOException {
+        if (!mStarted) {
+            // nothing written yet, keep the file
+            mVideoFormat = mNextVideoFormat;
+            mNextVideoFormat = null;
+            return null;
+        }
+        mMuxer.stop();
+        mMuxer.release();
+        closePreview();
+
+        String path = nextSegmentPath();
+        mSegmentPaths.add(path);
+        mMuxer = mFactory.create(path);
+        newKeyFrameIndex();
+        openPreview(path);
+        mStarted = false;
+        mVideoTrackIndex = mAudioTrackIndex = INVALID_INDEX;
+        // every segment starts from 0
+        mVideoPts.reset();
+        mAudioPts.reset();
+        mVideoBitrate.newTimeline();
+        mSegmentOffsetUs = mMuxedDurationUs;
+        if (mVideoPacing != null) {
+            mVideoPacing.newTimeline();
+            if (mVideoPacing.getFramerate() != mFramerate) mVideoPacing.setFramerate(mFramerate);
+        }
+        saveDecodeOrderStats();
+        mVideoFormat = mNextVideoFormat;
+        mNextVideoFormat = null;
+        if (VERBOSE) Log.i(TAG, "Cut segment, next: " + path);
+        return path;
+    }
+
+    private String nextSegmentPath() {
+        int dot = mDstPath.lastIndexOf('.');
+        if (dot < 0) return mDstPath + "-" + mSegmentPaths.size();
+        return mDstPath.substring(0, dot) + "-" + mSegmentPaths.size() + mDstPath.substring(dot);
+    }
+
+    /**
+     * Writes end of stream to the tracks not ended yet, without waiting for the encoders.
+     */
+    void signalEndOfStream() {
+        MediaCodec.BufferInfo eos = mBufferInfo;
+        if (VERBOSE) Log.i(TAG, "Signal EOS to muxer ");
+        if (mVideoTrackIndex != INVALID_INDEX) {
+            eos.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            writeSampleData(mVideoTrackIndex, eos, EMPTY_BUFFER);
+        }
+        if (mAudioTrackIndex != INVALID_INDEX) {
+            eos.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            writeSampleData(mAudioTrackIndex, eos, EMPTY_BUFFER);
+        }
+        mVideoTrackIndex = INVALID_INDEX;
+        mAudioTrackIndex = INVALID_INDEX;
+    }
+
+    /**
+     * Drops everything pending, forgets the formats, so nothing more is written.
+     * Should call {@link #finish()} then.
+     */
+    void close() {
+        clearPendingVideo();
+        clearPendingAudio();
+        mSwitchingVideo = false;
+        mVideoFormat = mAudioFormat = mNextVideoFormat = null;
+        mVideoTrackIndex = mAudioTrackIndex = INVALID_INDEX;
+    }
+
+    /**
+     * Finalizes the last segment, it's deleted if nothing has been written into it,
+     * e.g. cancelled after prewarm. May take seconds for a long recording.
+     *
+     * @return Returns false if there's no muxer opened
+     */
+    boolean finish() {
+        Muxer muxer = mMuxer;
+        if (muxer == null) return false;
+        mMuxer = null;
+        boolean started = mStarted;
+        mStarted = false;
+        try {
+            // writes the index of all samples
+            if (started) muxer.stop();
+        } catch (Exception e) {
+            // ignored
+        }
+        muxer.release();
+        closePreview();
+        if (!started) {
+            String path = mSegmentPaths.remove(mSegmentPaths.size() - 1);
+            new File(path).delete();
+            if (mKeyFrameIndexes != null) mKeyFrameIndexes.remove(mKeyFrameIndexes.size() - 1);
+        }
+        saveDecodeOrderStats();
+        saveKeyFrameIndexes();
+        return true;
+    }
+
+    private void openPreview(String segmentPath) {
+        if (!mPreviewEnabled) return;
+        String path = previewPathOf(segmentPath);
+        try {
+            mPreviewMuxer = mFactory.create(path);
+            mPreviewPath = path;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create key frame preview " + path, e);
+        }
+    }
+
+    private void startPreview() {
+        if (mPreviewMuxer == null) return;
+        try {
+            mPreviewTrackIndex = mPreviewMuxer.addTrack(mVideoFormat);
+            mPreviewMuxer.start();
+        } catch (RuntimeException e) {
+            dropPreview(e);
+        }
+    }
+
+    private void writePreview(MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
+        try {
+            encodedData.position(buffer.offset);
+            encodedData.limit(buffer.offset + buffer.size);
+            mPreviewMuxer.writeSampleData(mPreviewTrackIndex, encodedData, buffer);
+        } catch (RuntimeException e) {
+            dropPreview(e);
+        }
+    }
+
+    private void dropPreview(Exception e) {
+        Log.w(TAG, "Key frame preview failure, drop " + mPreviewPath, e);
+        Muxer muxer = mPreviewMuxer;
+        mPreviewMuxer = null;
+        mPreviewTrackIndex = INVALID_INDEX;
+        muxer.release();
+        new File(mPreviewPath).delete();
+    }
+
+    /**
+     * Finalizes the preview of the current segment, it's deleted if not started.
+     */
+    private void closePreview() {
+        Muxer muxer = mPreviewMuxer;
+        if (muxer == null) return;
+        mPreviewMuxer = null;
+        boolean started = mPreviewTrackIndex != INVALID_INDEX;
+        mPreviewTrackIndex = INVALID_INDEX;
+        try {
+            if (started) muxer.stop();
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to finalize key frame preview " + mPreviewPath, e);
+            started = false;
+        }
+        muxer.release();
+        if (started) {
+            mPreviewPaths.add(mPreviewPath);
+        } else {
+            new File(mPreviewPath).delete();
+        }
+    }
+
+    /**
+     * @return Returns paths of the finalized key frame previews, see {@link #setKeyFramePreviewEnabled(boolean)}
+     */
+    List<String> getPreviewPaths() {
+        return new ArrayList<>(mPreviewPaths);
+    }
+
+    private void saveKeyFrameIndexes() {
+        if (mKeyFrameIndexes == null) return;
+        for (int i = 0; i < mKeyFrameIndexes.size(); i++) {
+            String path = mSegmentPaths.get(i);
+            try {
+                mKeyFrameIndexes.get(i).save(path);
+            } catch (IOException | RuntimeException e) {
+                // still playable, just slower to seek
+                Log.w(TAG, "Unable to save key frame index of " + path, e);
+            }
+        }
+        mKeyFrameIndexes = null;
+        mKeyFrameIndex = null;
+    }
+
+    /**
+     * @return Returns paths of all segments, the first one is the destination path
+     */
+    List<String> getSegmentPaths() {
+        return new ArrayList<>(mSegmentPaths);
+    }
+
+    BitrateStats getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * @return Returns pacing of the muxed video frames, or null if no {@link #setFramerate(float) framerate}.
+     * Call {@link FramePacingAnalyzer#flush()} for the last frames once finished.
+     */
+    FramePacingAnalyzer getVideoPacing() {
+        return mVideoPacing;
+    }
+
+    /**
+     * @return Returns presentation time of the last muxed sample, segments appended one after another.
+     * Thread safe.
+     */
+    long getMuxedDurationUs() {
+        return mMuxedDurationUs;
+    }
+
+    /**
+     * @return Returns bytes of all muxed samples. Thread safe.
+     */
+    long getMuxedBytes() {
+        return mMuxedBytes;
+    }
+
+    /**
+     * @return Returns frames per second from the timestamps of muxed video frames.
+     */
+    float getAchievedFramerate() {
+        return mAchievedFramerate;
+    }
+
+    /**
+     * @return Returns video timestamps moved to keep the decode order, of all segments
+     */
+    int getRepairedVideoPts() {
+        return mRepairedVideoPts + (mVideoDecodeOrder == null ? 0 : mVideoDecodeOrder.getRepairedCount());
+    }
+
+    /**
+     * @return Returns video frames dropped out of the decode order, of all segments
+     */
+    int getRejectedVideoPts() {
+        return mRejectedVideoPts + (mVideoDecodeOrder == null ? 0 : mVideoDecodeOrder.getRejectedCount());
+    }
+
+    private void saveDecodeOrderStats() {
+        DecodeTimeline timeline = mVideoDecodeOrder;
+        if (timeline != null) {
+            mRepairedVideoPts += timeline.getRepairedCount();
+            mRejectedVideoPts += timeline.getRejectedCount();
+            mVideoDecodeOrder = null;
+        }
+    }
+
+    private void writeSampleData(int track, MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
+        if ((buffer.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.
+            // Ignore it.
+            if (VERBOSE) Log.d(TAG, "Ignoring BUFFER_FLAG_CODEC_CONFIG");
+            buffer.size = 0;
+        }
+        boolean eos = (buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (buffer.size == 0 && !eos) {
+            if (VERBOSE) Log.d(TAG, "info.size == 0, drop it.");
+            encodedData = null;
+        } else {
+            if (buffer.presentationTimeUs != 0) { // maybe 0 if eos
+                boolean keep = true;
+                if (track == mVideoTrackIndex && !eos && mWaitForVideoKeyFrame) {
+                    if ((buffer.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                        if (VERBOSE) Log.d(TAG, "Waiting for key frame, drop it.");
+                        if (mMetrics != null) mVideoDroppedCounter.increment();
+                        return;
+                    }
+                    mWaitForVideoKeyFrame = false;
+                }
+                if (track == mVideoTrackIndex) {
+                    keep = resetVideoPts(buffer);
+                } else if (track == mAudioTrackIndex) {
+                    keep = resetAudioPts(buffer);
+                }
+                if (!keep && !eos) {
+                    if (VERBOSE) Log.d(TAG, "Captured while paused, drop it.");
+                    return;
+                }
+                if (track == mVideoTrackIndex && !eos) {
+                    if (!checkDecodeOrder(buffer)) {
+                        if (mMetrics != null) mVideoDroppedCounter.increment();
+                        return;
+                    }
+                    mVideoBitrate.add(buffer.size, buffer.presentationTimeUs);
+                    if (mVideoPacing != null) mVideoPacing.add(buffer.presentationTimeUs);
+                    if (mKeyFrameIndex != null && (buffer.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                        mKeyFrameIndex.add(buffer.presentationTimeUs, buffer.size);
+                    }
+                    mAchievedFramerate = mVideoBitrate.getFramerate();
+                }
+            }
+            if (VERBOSE)
+                Log.d(TAG, "[" + Thread.currentThread().getId() + "] Got buffer, track=" + track
+                        + ", info: size=" + buffer.size
+                        + ", presentationTimeUs=" + buffer.presentationTimeUs);
+            if (!eos) {
+                long durationUs = mSegmentOffsetUs + buffer.presentationTimeUs;
+                if (durationUs > mMuxedDurationUs) mMuxedDurationUs = durationUs;
+                if (!mFirstSampleMuxed) {
+                    mFirstSampleMuxed = true;
+                    if (mListener != null) mListener.onFirstSample();
+                }
+            }
+        }
+        if (encodedData != null) {
+            encodedData.position(buffer.offset);
+            encodedData.limit(buffer.offset + buffer.size);
+            if (mMetrics != null) {
+                long begin = System.nanoTime();
+                mMuxer.writeSampleData(track, encodedData, buffer);
+                mMuxerWriteHistogram.record(System.nanoTime() - begin);
+                countSample(track, buffer.size);
+            } else {
+                mMuxer.writeSampleData(track, encodedData, buffer);
+            }
+            mMuxedBytes += buffer.size;
+            if (mPreviewTrackIndex != INVALID_INDEX && track == mVideoTrackIndex && !eos
+                    && (buffer.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                writePreview(buffer, encodedData);
+            }
+            if (VERBOSE)
+                Log.i(TAG, "Sent " + buffer.size + " bytes to MediaMuxer on track " + track);
+        }
+    }
+
+    private void countSample(int track, int size) {
+        if (size == 0) return;
+        if (track == mVideoTrackIndex) {
+            mVideoFramesCounter.increment();
+            mVideoBytesCounter.add(size);
+        } else if (track == mAudioTrackIndex) {
+            mAudioFramesCounter.increment();
+            mAudioBytesCounter.add(size);
+        }
+    }
+
+    /**
+     * @return Returns false if the buffer should be dropped
+     */
+    private boolean resetAudioPts(MediaCodec.BufferInfo buffer) {
+        long pts = mAudioPts.rebase(buffer.presentationTimeUs);
+        if (pts == PtsRebaser.DROP) return false;
+        buffer.presentationTimeUs = pts;
+        return true;
+    }
+
+    /**
+     * @return Returns false if the buffer should be dropped
+     */
+    private boolean resetVideoPts(MediaCodec.BufferInfo buffer) {
+        long pts = mVideoPts.rebase(buffer.presentationTimeUs);
+        if (pts == PtsRebaser.DROP) return false;
+        // timelapse plays faster than captured
+        buffer.presentationTimeUs = (long) (pts / (double) mTimelapseFactor);
+        return true;
+    }
+
+    /**
+     * MediaMuxer derives decode timestamps from the order and timestamps of samples, and fails
+     * or writes a broken 'ctts' if they are out of order further than the encoder can reorder.
+     *
+     * @return Returns false if the buffer should be dropped
+     */
+    private boolean checkDecodeOrder(MediaCodec.BufferInfo buffer) {
+        if (mVideoDecodeOrder == null) {
+            mVideoDecodeOrder = new DecodeTimeline(mMaxReorder, false);
+        }
+        switch (mVideoDecodeOrder.push(buffer.presentationTimeUs)) {
+            case DecodeTimeline.REPAIRED:
+                Log.w(TAG, "Duplicated video timestamp " + buffer.presentationTimeUs
+                        + "us, moved to " + mVideoDecodeOrder.getLastPtsUs() + "us");
+                buffer.presentationTimeUs = mVideoDecodeOrder.getLastPtsUs();
+                return true;
+            case DecodeTimeline.REJECTED:
+                Log.w(TAG, "Video timestamp " + buffer.presentationTimeUs
+                        + "us out of decode order, drop it.");
+                return false;
+            default:
+                return true;
+        }
+    }
+}
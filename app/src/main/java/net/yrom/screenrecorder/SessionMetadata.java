@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Properties and timestamped events of a recording session,
+ * saved as a JSON sidecar file next to the video.
+ * <p>
+ * Thread safe.
+ */
+class SessionMetadata {
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final JSONObject mRoot = new JSONObject();
+    private final JSONArray mEvents = new JSONArray();
+
+    /**
+     * Puts a session property, overrides the old one.
+     */
+    synchronized void put(String key, Object value) {
+        try {
+            mRoot.put(key, value);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return Returns milliseconds since the session created, the time of events
+     */
+    long getElapsedTime() {
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    /**
+     * Appends an event happened just now.
+     *
+     * @param keyValues pairs of key and value, e.g. {@code "from", 0, "to", 1}
+     */
+    synchronized void addEvent(String type, Object... keyValues) {
+        if ((keyValues.length & 1) != 0) throw new IllegalArgumentException("key without value");
+        JSONObject event = new JSONObject();
+        try {
+            event.put("t", getElapsedTime());
+            event.put("type", type);
+            for (int i = 0; i < keyValues.length; i += 2) {
+                event.put((String) keyValues[i], keyValues[i + 1]);
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        mEvents.put(event);
+    }
+
+    synchronized void writeTo(File file) throws IOException {
+        String json;
+        try {
+            mRoot.put("events", mEvents);
+            json = mRoot.toString(2);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+            writer.write(json);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the phases from pressing the record button to the first sample written into the file,
+ * only the first time of each phase is kept. Phases may overlap, e.g. encoders are prewarmed
+ * while the user is reading the screen capture dialog, so each is timed since the press.
+ * <p>
+ * Sessions are aggregated in {@link SharedPreferences} by {@link #saveTo(SharedPreferences)}.
+ * <p>
+ * Thread safe.
+ */
+class StartupTrace {
+    static final String REQUEST_PROJECTION = "requestMediaProjection";
+    // includes the user reading the dialog
+    static final String PROJECTION_RESULT = "onActivityResult";
+    static final String VIRTUAL_DISPLAY = "virtualDisplay";
+    static final String RECORDER_START = "recorderStart";
+    static final String MUXER_CREATED = "muxerCreated";
+    static final String AUDIO_PREPARED = "audioPrepared";
+    static final String VIDEO_PREPARED = "videoPrepared";
+    static final String VIDEO_FORMAT = "videoFormat";
+    static final String AUDIO_FORMAT = "audioFormat";
+    static final String MUXER_STARTED = "muxerStarted";
+    static final String FIRST_SAMPLE = "firstSample";
+    static final String[] PHASES = {
+            REQUEST_PROJECTION, PROJECTION_RESULT, VIRTUAL_DISPLAY, RECORDER_START, MUXER_CREATED,
+            AUDIO_PREPARED, VIDEO_PREPARED, VIDEO_FORMAT, AUDIO_FORMAT, MUXER_STARTED, FIRST_SAMPLE
+    };
+    // of each phase, kept in preferences
+    private static final int MAX_SESSIONS = 20;
+    private static final String KEY_SESSIONS = "sessions";
+
+    private final long mPressedAtUs = SystemClock.elapsedRealtimeNanos() / 1000;
+    // in the order marked
+    private final LinkedHashMap<String, Long> mPhases = new LinkedHashMap<>();
+
+    /**
+     * Marks {@code phase} done just now, later ones of the same phase are ignored,
+     * e.g. encoders recreated in the middle of recording.
+     */
+    synchronized void mark(String phase) {
+        if (mPhases.containsKey(phase)) return;
+        mPhases.put(phase, SystemClock.elapsedRealtimeNanos() / 1000 - mPressedAtUs);
+    }
+
+    synchronized boolean has(String phase) {
+        return mPhases.containsKey(phase);
+    }
+
+    /**
+     * @return Returns milliseconds since the button pressed of each phase, in the order marked
+     */
+    synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Long> e : mPhases.entrySet()) {
+                json.put(e.getKey(), e.getValue() / 1000d);
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return json;
+    }
+
+    /**
+     * Appends the phases of this session to {@code preferences}, the last {@link #MAX_SESSIONS}
+     * of each phase are kept.
+     */
+    synchronized void saveTo(SharedPreferences preferences) {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, Long> e : mPhases.entrySet()) {
+            long[] last = parse(preferences.getString(e.getKey(), ""));
+            int from = Math.max(0, last.length - MAX_SESSIONS + 1);
+            StringBuilder values = new StringBuilder();
+            for (int i = from; i < last.length; i++) {
+                values.append(last[i]).append(',');
+            }
+            values.append(e.getValue() / 1000);
+            editor.putString(e.getKey(), values.toString());
+        }
+        editor.putInt(KEY_SESSIONS, preferences.getInt(KEY_SESSIONS, 0) + 1);
+        editor.apply();
+    }
+
+    /**
+     * @return Returns median and max milliseconds since the button pressed of each phase,
+     * over the last sessions saved in {@code preferences}
+     */
+    static String summarize(SharedPreferences preferences) {
+        StringBuilder sb = new StringBuilder("Startup of ")
+                .append(preferences.getInt(KEY_SESSIONS, 0)).append(" sessions:");
+        for (String phase : PHASES) {
+            long[] values = parse(preferences.getString(phase, ""));
+            if (values.length == 0) continue;
+            Arrays.sort(values);
+            sb.append("\n  ").append(phase)
+                    .append(" median=").append(values[values.length / 2])
+                    .append("ms max=").append(values[values.length - 1])
+                    .append("ms n=").append(values.length);
+        }
+        return sb.toString();
+    }
+
+    private static long[] parse(String values) {
+        if (values.isEmpty()) return new long[0];
+        String[] split = values.split(",");
+        long[] parsed = new long[split.length];
+        int n = 0;
+        for (String value : split) {
+            try {
+                parsed[n] = Long.parseLong(value);
+                n++;
+            } catch (NumberFormatException e) {
+                // ignored
+            }
+        }
+        return Arrays.copyOf(parsed, n);
+    }
+
+    /**
+     * Phases in the order marked, with the time each took since the last one.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Startup");
+        long last = 0;
+        for (Map.Entry<String, Long> e : mPhases.entrySet()) {
+            long at = e.getValue();
+            sb.append(' ').append(e.getKey()).append('=').append(at / 1000)
+                    .append("ms(+").append((at - last) / 1000).append(')');
+            last = at;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Feeds an {@link EncoderTrace} into a {@link SegmentMuxer} the way ScreenRecorder does,
+ * so the muxing path can be benchmarked and regression-tested against traces of real devices.
+ * <p>
+ * Switching and recovering encoders are replayed by the traced segment ops, through the same
+ * SegmentMuxer calls ScreenRecorder makes, the frames of a retiring video encoder included.
+ */
+final class TraceReplayer {
+    private final EncoderTrace.Reader mTrace;
+    private final SegmentMuxer mMuxer;
+    private TraceEncoder mVideo = new TraceEncoder();
+    private TraceEncoder mRetiringVideo;
+    private TraceEncoder mAudio;
+    private float mSpeed = 0;
+    private int mSamples = 0;
+
+    /**
+     * @param muxer not opened yet
+     */
+    TraceReplayer(EncoderTrace.Reader trace, SegmentMuxer muxer) {
+        mTrace = trace;
+        mMuxer = muxer;
+        mAudio = trace.hasAudio() ? new TraceEncoder() : null;
+        muxer.setVideoEncoder(mVideo);
+        muxer.setAudioEncoder(mAudio);
+    }
+
+    /**
+     * @param speed 1 to replay in real time as the events were traced, 2 in double speed, etc.
+     *              0 as fast as possible, which is the default
+     */
+    TraceReplayer setSpeed(float speed) {
+        if (speed < 0) throw new IllegalArgumentException("speed < 0");
+        mSpeed = speed;
+        return this;
+    }
+
+    /**
+     * Replays all events then finishes the muxer.
+     *
+     * @return Returns samples replayed
+     */
+    int replay() throws IOException, InterruptedException {
+        mMuxer.open();
+        long firstTraceUs = -1;
+        long beginNs = System.nanoTime();
+        EncoderTrace.Event event;
+        while ((event = mTrace.next()) != null) {
+            if (firstTraceUs < 0) firstTraceUs = event.timeUs;
+            if (mSpeed > 0) {
+                long dueNs = beginNs + (long) ((event.timeUs - firstTraceUs) * 1000 / mSpeed);
+                long waitNs = dueNs - System.nanoTime();
+                if (waitNs > 0) {
+                    Thread.sleep(waitNs / 1000_000, (int) (waitNs % 1000_000));
+                }
+            }
+            if (event.type == EncoderTrace.TYPE_FORMAT) {
+                onFormat(event);
+            } else if (event.type == EncoderTrace.TYPE_SEGMENT) {
+                onSegment(event.op);
+            } else {
+                onSample(event);
+            }
+        }
+        mMuxer.finish();
+        return mSamples;
+    }
+
+    private void onFormat(EncoderTrace.Event event) {
+        if (event.track == EncoderTrace.TRACK_AUDIO) {
+            mMuxer.setAudioFormat(event.format);
+        } else {
+            mMuxer.setVideoOutputFormat(event.format);
+        }
+        mMuxer.startIfReady();
+    }
+
+    private void onSegment(int op) throws IOException {
+        switch (op) {
+            case EncoderTrace.SEGMENT_SWITCH_VIDEO:
+                mRetiringVideo = mVideo;
+                mVideo = new TraceEncoder();
+                mMuxer.beginVideoSwitch(mVideo);
+                return;
+            case EncoderTrace.SEGMENT_CUT:
+                mRetiringVideo = null;
+                mMuxer.endVideoSwitch();
+                break;
+            case EncoderTrace.SEGMENT_RECOVER_VIDEO:
+                mRetiringVideo = null;
+                mVideo = new TraceEncoder();
+                mMuxer.recoverVideo(mVideo);
+                break;
+            case EncoderTrace.SEGMENT_RECOVER_AUDIO:
+                mRetiringVideo = null;
+                mAudio = new TraceEncoder();
+                mMuxer.recoverAudio(mAudio);
+                break;
+            default:
+                throw new IOException("Unknown segment op " + op);
+        }
+        mMuxer.startIfReady();
+    }
+
+    private void onSample(EncoderTrace.Event event) {
+        mSamples++;
+        // muxer may keep it pending, not to be reused
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo traced = event.info;
+        info.set(traced.offset, traced.size, traced.presentationTimeUs, traced.flags);
+        if (event.track == EncoderTrace.TRACK_AUDIO) {
+            mMuxer.writeAudio(mAudio.queue(event.data), info);
+        } else if (event.track == EncoderTrace.TRACK_RETIRING_VIDEO) {
+            mMuxer.writeRetiringVideo(mRetiringVideo, mRetiringVideo.queue(event.data), info);
+        } else {
+            mMuxer.writeVideo(mVideo.queue(event.data), info);
+        }
+    }
+
+    /**
+     * Output buffers of a traced encoder.
+     */
+    private static final class TraceEncoder implements Encoder {
+        private final Map<Integer, ByteBuffer> mOutputBuffers = new HashMap<>();
+        private int mNextIndex = 0;
+
+        int queue(ByteBuffer data) {
+            int index = mNextIndex++;
+            mOutputBuffers.put(index, data);
+            return index;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mOutputBuffers.get(index);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mOutputBuffers.remove(index);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            mOutputBuffers.clear();
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+        }
+    }
+}
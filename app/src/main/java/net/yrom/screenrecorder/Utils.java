@@ -113,6 +113,24 @@ class Utils {
         return profile + '-' + level;
     }
 
+    /**
+     * @param mode one of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*, or -1
+     */
+    static String bitrateModeToString(int mode) {
+        switch (mode) {
+            case MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ:
+                return "CQ";
+            case MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR:
+                return "VBR";
+            case MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR:
+                return "CBR";
+            case -1:
+                return "Default";
+            default:
+                return String.valueOf(mode);
+        }
+    }
+
     static String[] aacProfiles() {
         if (sAACProfiles.size() == 0) {
             initProfileLevels();
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodecInfo;
+import android.os.AsyncTask;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel1;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel11;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel12;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel13;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel2;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel21;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel22;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel3;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel32;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel4;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel41;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel42;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel5;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel51;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCLevel52;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedHigh;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444;
+import static android.media.MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+import static net.yrom.screenrecorder.ScreenRecorder.VIDEO_AVC;
+
+/**
+ * All (size, framerate, bitrate, profile-level) combinations which the given video encoder
+ * accepts, so that a bad combination is rejected before {@link BaseEncoder#prepare()}.
+ *
+ * @see #computeAsync(MediaCodecInfo, String, int[][], int[], int[], Callback)
+ */
+class VideoConfigMatrix {
+    static final int PRESET_SMALLEST_FILE = 0;
+    static final int PRESET_LOWEST_CPU = 1;
+    static final int PRESET_HIGHEST_FIDELITY = 2;
+
+    /**
+     * Bits per pixel below which a recording is considered unwatchable.
+     */
+    private static final double MIN_BITS_PER_PIXEL = 0.02;
+    /**
+     * Bits per pixel a screen recording looks good at, used as target of {@link #PRESET_LOWEST_CPU}.
+     */
+    private static final double GOOD_BITS_PER_PIXEL = 0.1;
+
+    static final class Entry {
+        final int width;
+        final int height;
+        final int framerate;
+        final int bitrate;
+        /**
+         * null means 'Default', let the encoder choose
+         */
+        final MediaCodecInfo.CodecProfileLevel profileLevel;
+
+        Entry(int width, int height, int framerate, int bitrate,
+              MediaCodecInfo.CodecProfileLevel profileLevel) {
+            this.width = width;
+            this.height = height;
+            this.framerate = framerate;
+            this.bitrate = bitrate;
+            this.profileLevel = profileLevel;
+        }
+
+        long pixelRate() {
+            return (long) width * height * framerate;
+        }
+
+        double bitsPerPixel() {
+            return bitrate / (double) pixelRate();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" + width + "x" + height + "@" + framerate
+                    + ", bitrate=" + bitrate
+                    + ", profileLevel=" + (profileLevel == null ? "Default" : Utils.avcProfileLevelToString(profileLevel))
+                    + '}';
+        }
+    }
+
+    interface Callback {
+        void onResult(VideoConfigMatrix matrix);
+    }
+
+    private final String mCodecName;
+    private final List<Entry> mEntries;
+
+    private VideoConfigMatrix(String codecName, List<Entry> entries) {
+        this.mCodecName = codecName;
+        this.mEntries = Collections.unmodifiableList(entries);
+    }
+
+    String getCodecName() {
+        return mCodecName;
+    }
+
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return Returns all valid entries, best one first, for specified preset.
+     */
+    List<Entry> rank(int preset) {
+        List<Entry> ranked = new ArrayList<>(mEntries.size());
+        for (Entry e : mEntries) {
+            if (e.bitsPerPixel() >= MIN_BITS_PER_PIXEL) ranked.add(e);
+        }
+        Collections.sort(ranked, comparatorOf(preset));
+        return ranked;
+    }
+
+    /**
+     * @return Returns null if there is no valid entry.
+     */
+    Entry best(int preset) {
+        List<Entry> ranked = rank(preset);
+        return ranked.isEmpty() ? null : ranked.get(0);
+    }
+
+    private static Comparator<Entry> comparatorOf(int preset) {
+        switch (preset) {
+            case PRESET_SMALLEST_FILE:
+                return (a, b) -> {
+                    int c = Integer.compare(a.bitrate, b.bitrate);
+                    if (c != 0) return c;
+                    // lower framerate compresses better in same bitrate
+                    c = Integer.compare(a.framerate, b.framerate);
+                    if (c != 0) return c;
+                    c = Long.compare(b.pixelRate(), a.pixelRate());
+                    if (c != 0) return c;
+                    return Integer.compare(profileCost(a.profileLevel), profileCost(b.profileLevel));
+                };
+            case PRESET_LOWEST_CPU:
+                return (a, b) -> {
+                    int c = Long.compare(a.pixelRate(), b.pixelRate());
+                    if (c != 0) return c;
+                    c = Integer.compare(profileCost(a.profileLevel), profileCost(b.profileLevel));
+                    if (c != 0) return c;
+                    return Double.compare(Math.abs(a.bitsPerPixel() - GOOD_BITS_PER_PIXEL),
+                            Math.abs(b.bitsPerPixel() - GOOD_BITS_PER_PIXEL));
+                };
+            case PRESET_HIGHEST_FIDELITY:
+                return (a, b) -> {
+                    int c = Long.compare((long) b.width * b.height, (long) a.width * a.height);
+                    if (c != 0) return c;
+                    c = Integer.compare(b.framerate, a.framerate);
+                    if (c != 0) return c;
+                    c = Integer.compare(b.bitrate, a.bitrate);
+                    if (c != 0) return c;
+                    return Integer.compare(profileCost(b.profileLevel), profileCost(a.profileLevel));
+                };
+            default:
+                throw new IllegalArgumentException("Unknown preset " + preset);
+        }
+    }
+
+    /**
+     * Relative encoding complexity of the profile, 'Default' is treated as Main profile.
+     */
+    private static int profileCost(MediaCodecInfo.CodecProfileLevel profileLevel) {
+        if (profileLevel == null) return 1;
+        // profile constants are bit flags, not ordered by complexity
+        switch (profileLevel.profile) {
+            case AVCProfileBaseline:
+            case AVCProfileConstrainedBaseline:
+                return 0;
+            case AVCProfileHigh:
+            case AVCProfileConstrainedHigh:
+            case AVCProfileHigh10:
+            case AVCProfileHigh422:
+            case AVCProfileHigh444:
+                return 2;
+            case AVCProfileMain:
+            case AVCProfileExtended:
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Enumerates combinations of specified candidates, should not run on main thread.
+     *
+     * @param sizes      candidate {width, height} pairs, already rotated to the target orientation
+     * @param framerates candidate framerates (fps)
+     * @param bitrates   candidate bitrates (bps)
+     */
+    static VideoConfigMatrix compute(MediaCodecInfo codec, String mimeType,
+                                     int[][] sizes, int[] framerates, int[] bitrates) {
+        MediaCodecInfo.CodecCapabilities capabilities = codec.getCapabilitiesForType(mimeType);
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        List<MediaCodecInfo.CodecProfileLevel> profileLevels = new ArrayList<>();
+        profileLevels.add(null); // Default
+        if (VIDEO_AVC.equals(mimeType) && capabilities.profileLevels != null) {
+            Collections.addAll(profileLevels, capabilities.profileLevels);
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (int[] size : sizes) {
+            int width = size[0], height = size[1];
+            if (!videoCapabilities.isSizeSupported(width, height)) continue;
+            for (int framerate : framerates) {
+                if (!videoCapabilities.areSizeAndRateSupported(width, height, framerate)) continue;
+                for (int bitrate : bitrates) {
+                    if (!videoCapabilities.getBitrateRange().contains(bitrate)) continue;
+                    for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels) {
+                        if (profileLevel != null
+                                && !isWithinAvcLevel(profileLevel, width, height, framerate, bitrate)) {
+                            continue;
+                        }
+                        entries.add(new Entry(width, height, framerate, bitrate, profileLevel));
+                    }
+                }
+            }
+        }
+        return new VideoConfigMatrix(codec.getName(), entries);
+    }
+
+    /**
+     * Cheap enough to run on main thread.
+     *
+     * @return Returns true if {@code codec} can be configured with {@code config}
+     */
+    static boolean isSupported(MediaCodecInfo codec, VideoEncodeConfig config) {
+        if (codec == null || !codec.getName().equals(config.codecName)) return false;
+        MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+            capabilities = codec.getCapabilitiesForType(config.mimeType);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        if (videoCapabilities == null
+                || !videoCapabilities.areSizeAndRateSupported(config.width, config.height, config.framerate)
+                || !videoCapabilities.getBitrateRange().contains(config.bitrate)) {
+            return false;
+        }
+        MediaCodecInfo.CodecProfileLevel profileLevel = config.codecProfileLevel;
+        if (profileLevel == null || profileLevel.profile == 0 || profileLevel.level == 0) {
+            return true; // Default
+        }
+        if (!VIDEO_AVC.equals(config.mimeType)) return true;
+        boolean found = false;
+        for (MediaCodecInfo.CodecProfileLevel pl : capabilities.profileLevels) {
+            if (pl.profile == profileLevel.profile && pl.level >= profileLevel.level) {
+                found = true;
+                break;
+            }
+        }
+        return found && isWithinAvcLevel(profileLevel,
+                config.width, config.height, config.framerate, config.bitrate);
+    }
+
+    // H.264 Table A-1, level -> {MaxMBPS, MaxFS, MaxBR (kbps)}
+    private static final SparseIntArray sAvcMaxMbps = new SparseIntArray();
+    private static final SparseIntArray sAvcMaxFs = new SparseIntArray();
+    private static final SparseIntArray sAvcMaxBr = new SparseIntArray();
+
+    static {
+        putAvcLevel(AVCLevel1, 1485, 99, 64);
+        putAvcLevel(AVCLevel1b, 1485, 99, 128);
+        putAvcLevel(AVCLevel11, 3000, 396, 192);
+        putAvcLevel(AVCLevel12, 6000, 396, 384);
+        putAvcLevel(AVCLevel13, 11880, 396, 768);
+        putAvcLevel(AVCLevel2, 11880, 396, 2000);
+        putAvcLevel(AVCLevel21, 19800, 792, 4000);
+        putAvcLevel(AVCLevel22, 20250, 1620, 4000);
+        putAvcLevel(AVCLevel3, 40500, 1620, 10000);
+        putAvcLevel(AVCLevel31, 108000, 3600, 14000);
+        putAvcLevel(AVCLevel32, 216000, 5120, 20000);
+        putAvcLevel(AVCLevel4, 245760, 8192, 20000);
+        putAvcLevel(AVCLevel41, 245760, 8192, 50000);
+        putAvcLevel(AVCLevel42, 522240, 8704, 50000);
+        putAvcLevel(AVCLevel5, 589824, 22080, 135000);
+        putAvcLevel(AVCLevel51, 983040, 36864, 240000);
+        putAvcLevel(AVCLevel52, 2073600, 36864, 240000);
+    }
+
+    private static void putAvcLevel(int level, int maxMbps, int maxFs, int maxBrKbps) {
+        sAvcMaxMbps.put(level, maxMbps);
+        sAvcMaxFs.put(level, maxFs);
+        sAvcMaxBr.put(level, maxBrKbps);
+    }
+
+    private static boolean isWithinAvcLevel(MediaCodecInfo.CodecProfileLevel profileLevel,
+                                            int width, int height, int framerate, int bitrate) {
+        int i = sAvcMaxFs.indexOfKey(profileLevel.level);
+        if (i < 0) {
+            // unknown level (newer than this table), trust the encoder
+            return true;
+        }
+        long frameSize = (long) ((width + 15) / 16) * ((height + 15) / 16);
+        if (frameSize > sAvcMaxFs.valueAt(i)) return false;
+        if (frameSize * framerate > sAvcMaxMbps.get(profileLevel.level)) return false;
+        // MaxBR of the table is in units of cpbBrNalFactor of Main profile
+        long maxBitrate = sAvcMaxBr.get(profileLevel.level) * 1000L
+                * cpbBrNalFactor(profileLevel.profile) / cpbBrNalFactor(AVCProfileMain);
+        return bitrate <= maxBitrate;
+    }
+
+    /**
+     * @return Returns cpbBrNalFactor of the profile, see Table A-2 of H.264 spec.
+     */
+    private static int cpbBrNalFactor(int profile) {
+        switch (profile) {
+            case AVCProfileHigh:
+            case AVCProfileConstrainedHigh:
+                return 1500;
+            case AVCProfileHigh10:
+                return 3600;
+            case AVCProfileHigh422:
+            case AVCProfileHigh444:
+                return 4800;
+            case AVCProfileBaseline:
+            case AVCProfileConstrainedBaseline:
+            case AVCProfileMain:
+            case AVCProfileExtended:
+            default:
+                return 1200;
+        }
+    }
+
+    static final class MatrixBuilder extends AsyncTask<Void, Void, VideoConfigMatrix> {
+        private final MediaCodecInfo codec;
+        private final String mimeType;
+        private final int[][] sizes;
+        private final int[] framerates;
+        private final int[] bitrates;
+        private Callback func;
+
+        MatrixBuilder(MediaCodecInfo codec, String mimeType,
+                      int[][] sizes, int[] framerates, int[] bitrates, Callback func) {
+            this.codec = codec;
+            this.mimeType = mimeType;
+            this.sizes = sizes;
+            this.framerates = framerates;
+            this.bitrates = bitrates;
+            this.func = func;
+        }
+
+        @Override
+        protected VideoConfigMatrix doInBackground(Void... voids) {
+            return compute(codec, mimeType, sizes, framerates, bitrates);
+        }
+
+        @Override
+        protected void onPostExecute(VideoConfigMatrix matrix) {
+            func.onResult(matrix);
+        }
+    }
+
+    static void computeAsync(MediaCodecInfo codec, String mimeType,
+                             int[][] sizes, int[] framerates, int[] bitrates, Callback callback) {
+        new MatrixBuilder(codec, mimeType, sizes, framerates, bitrates, callback).execute();
+    }
+}
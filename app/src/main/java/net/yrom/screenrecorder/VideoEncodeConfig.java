@@ -18,6 +18,8 @@ package net.yrom.screenrecorder;
 
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
 
 import java.util.Objects;
 
@@ -26,6 +28,14 @@ import java.util.Objects;
  * @version 2017/12/3
  */
 public class VideoEncodeConfig {
+    // values of MediaFormat.KEY_PRIORITY
+    static final int PRIORITY_REALTIME = 0;
+    static final int PRIORITY_BEST_EFFORT = 1;
+    // above the refresh rate of most displays
+    static final int HIGH_FRAMERATE = 60;
+    // seconds between I-frames when intra refresh is on
+    private static final int INTRA_REFRESH_IFRAME_INTERVAL = 60;
+
     final int width;
     final int height;
     final int bitrate;
@@ -34,6 +44,43 @@ public class VideoEncodeConfig {
     final String codecName;
     final String mimeType;
     final MediaCodecInfo.CodecProfileLevel codecProfileLevel;
+    /**
+     * Frames from input surface above this rate will be dropped, 0 means no limit.
+     */
+    private float maxInputFramerate;
+    /**
+     * Max frames the encoder may hold before outputting, 0 means codec default.
+     */
+    private int latency;
+    /**
+     * {@link #PRIORITY_REALTIME} or {@link #PRIORITY_BEST_EFFORT}, -1 means codec default.
+     */
+    private int priority = -1;
+    /**
+     * Rate (fps) the codec should be provisioned for, 0 means codec default.
+     */
+    private float operatingRate;
+    /**
+     * Max B-frames between reference frames, -1 means codec default.
+     */
+    private int maxBFrames = -1;
+    /**
+     * Rate (fps) of timelapse capturing, played back at {@link #framerate}; 0 means real time.
+     */
+    private float captureFramerate;
+    /**
+     * Frames to refresh the whole picture by intra coded rows, 0 means periodic I-frames.
+     */
+    private int intraRefreshPeriod;
+    /**
+     * One of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*, -1 means codec default.
+     */
+    private int bitrateMode = -1;
+    /**
+     * Quality of {@link MediaCodecInfo.EncoderCapabilities#BITRATE_MODE_CQ CQ} mode,
+     * in the codec's quality range, -1 means codec default.
+     */
+    private int quality = -1;
 
     /**
      * @param codecName         selected codec name, maybe null
@@ -54,16 +101,362 @@ public class VideoEncodeConfig {
         this.codecProfileLevel = codecProfileLevel;
     }
 
+    private VideoEncodeConfig(VideoEncodeConfig other, int width, int height, int bitrate, int framerate) {
+        this(width, height, bitrate, framerate, other.iframeInterval,
+                other.codecName, other.mimeType, other.codecProfileLevel);
+        this.maxInputFramerate = other.maxInputFramerate;
+        this.latency = other.latency;
+        this.priority = other.priority;
+        this.operatingRate = other.operatingRate;
+        this.maxBFrames = other.maxBFrames;
+        this.bitrateMode = other.bitrateMode;
+        this.quality = other.quality;
+        this.intraRefreshPeriod = other.intraRefreshPeriod;
+        this.captureFramerate = other.captureFramerate;
+    }
+
+    /**
+     * @return Returns a copy of this config with specified size.
+     */
+    VideoEncodeConfig withSize(int width, int height) {
+        return new VideoEncodeConfig(this, width, height, bitrate, framerate);
+    }
+
+    /**
+     * @return Returns a copy of this config with specified bitrate.
+     */
+    VideoEncodeConfig withBitrate(int bitrate) {
+        return new VideoEncodeConfig(this, width, height, bitrate, framerate);
+    }
+
+    /**
+     * @return Returns a copy of this config with specified framerate.
+     */
+    VideoEncodeConfig withFramerate(int framerate) {
+        return new VideoEncodeConfig(this, width, height, bitrate, framerate);
+    }
+
+    /**
+     * @param fps 0 means no limit
+     * @return Returns a copy of this config which drops input frames above {@code fps}.
+     */
+    VideoEncodeConfig withMaxInputFramerate(float fps) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.maxInputFramerate = fps;
+        return config;
+    }
+
+    float getMaxInputFramerate() {
+        return maxInputFramerate;
+    }
+
+    /**
+     * @param frames 0 means codec default, 1 means output every frame as soon as it's encoded
+     * @return Returns a copy of this config with specified {@link MediaFormat#KEY_LATENCY latency}.
+     */
+    VideoEncodeConfig withLatency(int frames) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.latency = frames;
+        return config;
+    }
+
+    /**
+     * @param priority {@link #PRIORITY_REALTIME}, {@link #PRIORITY_BEST_EFFORT} or -1 for default
+     * @return Returns a copy of this config with specified {@link MediaFormat#KEY_PRIORITY priority}.
+     */
+    VideoEncodeConfig withPriority(int priority) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.priority = priority;
+        return config;
+    }
+
+    /**
+     * @param fps 0 means codec default
+     * @return Returns a copy of this config with specified {@link MediaFormat#KEY_OPERATING_RATE operating rate}.
+     */
+    VideoEncodeConfig withOperatingRate(float fps) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.operatingRate = fps;
+        return config;
+    }
+
+    /**
+     * @param frames -1 means codec default, 0 disables B-frames
+     * @return Returns a copy of this config with specified max B-frames.
+     */
+    VideoEncodeConfig withMaxBFrames(int frames) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.maxBFrames = frames;
+        return config;
+    }
+
+    /**
+     * @param mode    one of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*, -1 for default
+     * @param quality quality of CQ mode, -1 for default
+     * @return Returns a copy of this config with specified bitrate mode.
+     */
+    VideoEncodeConfig withBitrateMode(int mode, int quality) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.bitrateMode = mode;
+        config.quality = quality;
+        return config;
+    }
+
+    /**
+     * Timelapse: captures {@code fps} frames per second and plays them back at {@link #framerate},
+     * e.g. 1 fps played at 30 fps is 30x fast. The encoder only sees the captured frames,
+     * in real time, so its rate, bitrate and I-frame interval are scaled down by
+     * {@link #getTimelapseFactor()}; the muxer should retime the timestamps by the same factor.
+     *
+     * @param fps 0 means real time
+     * @return Returns a copy of this config in timelapse mode.
+     */
+    VideoEncodeConfig withTimelapse(float fps) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.captureFramerate = fps;
+        return config;
+    }
+
+    /**
+     * @return Returns true if the encoder should be told to run faster than usual,
+     * by {@link #withOperatingRate(float) operating rate} and {@link #PRIORITY_REALTIME realtime priority}.
+     */
+    boolean isHighFramerate() {
+        return framerate > HIGH_FRAMERATE && !isTimelapse();
+    }
+
+    boolean isTimelapse() {
+        return captureFramerate > 0;
+    }
+
+    /**
+     * @return Returns how many times faster the playback is than real time, 1 if not timelapse.
+     */
+    float getTimelapseFactor() {
+        return captureFramerate > 0 ? framerate / captureFramerate : 1;
+    }
+
+    /**
+     * @return Returns the bitrate to configure the encoder with. The encoder runs in capture
+     * time, so it's scaled down by {@link #getTimelapseFactor()} in timelapse mode.
+     */
+    int getEncoderBitrate() {
+        return Math.max(Math.round(bitrate / getTimelapseFactor()), 1);
+    }
+
+    /**
+     * @return Returns the rate (fps) frames supposed to come into the encoder.
+     */
+    float getInputFramerate() {
+        if (captureFramerate > 0) return captureFramerate;
+        return maxInputFramerate > 0 ? Math.min(maxInputFramerate, framerate) : framerate;
+    }
+
+    /**
+     * @param frames 0 means periodic I-frames of {@link #iframeInterval}
+     * @return Returns a copy of this config with specified
+     * {@link MediaFormat#KEY_INTRA_REFRESH_PERIOD intra refresh period}.
+     */
+    VideoEncodeConfig withIntraRefresh(int frames) {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.intraRefreshPeriod = frames;
+        return config;
+    }
+
+    int getIntraRefreshPeriod() {
+        return intraRefreshPeriod;
+    }
+
+    int getBitrateMode() {
+        return bitrateMode;
+    }
+
+    int getQuality() {
+        return quality;
+    }
+
+    int getLatency() {
+        return latency;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    float getOperatingRate() {
+        return operatingRate;
+    }
+
+    int getMaxBFrames() {
+        return maxBFrames;
+    }
+
+    /**
+     * @return Returns true if any of latency, priority, operating rate, max B-frames
+     * or intra refresh is set.
+     */
+    boolean hasTuning() {
+        return latency > 0 || priority >= 0 || operatingRate > 0 || maxBFrames >= 0
+                || intraRefreshPeriod > 0;
+    }
+
+    /**
+     * @return Returns a copy of this config with latency, priority, operating rate,
+     * max B-frames and intra refresh left to codec default.
+     */
+    VideoEncodeConfig withoutTuning() {
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.latency = 0;
+        config.priority = -1;
+        config.operatingRate = 0;
+        config.maxBFrames = -1;
+        config.intraRefreshPeriod = 0;
+        return config;
+    }
+
+    /**
+     * Drops or clamps the bitrate mode and tunings which are not supported by this platform
+     * or {@code capabilities}.
+     *
+     * @return Returns this if nothing changed.
+     */
+    VideoEncodeConfig adaptTo(MediaCodecInfo.CodecCapabilities capabilities) {
+        if (!hasTuning() && bitrateMode < 0 && !isHighFramerate()) return this;
+        int bitrateMode = this.bitrateMode;
+        int quality = this.quality;
+        MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+        if (bitrateMode >= 0 && (encoderCapabilities == null
+                || !encoderCapabilities.isBitrateModeSupported(bitrateMode))) {
+            bitrateMode = -1;
+        }
+        if (bitrateMode != MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ) {
+            quality = -1;
+        } else if (quality >= 0) {
+            // KEY_QUALITY is API 28
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                quality = -1;
+            } else {
+                quality = encoderCapabilities.getQualityRange().clamp(quality);
+            }
+        }
+        int latency = this.latency;
+        int priority = this.priority;
+        float operatingRate = this.operatingRate;
+        if (isHighFramerate()) {
+            // or the encoder may be clocked for 30 fps and drop frames
+            if (operatingRate <= 0) operatingRate = framerate;
+            if (priority < 0) priority = PRIORITY_REALTIME;
+        }
+        int maxBFrames = this.maxBFrames;
+        // KEY_LATENCY is API 26
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            latency = 0;
+        }
+        // KEY_PRIORITY and KEY_OPERATING_RATE are API 23
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            priority = -1;
+            operatingRate = 0;
+        }
+        if (operatingRate > 0) {
+            MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+            try {
+                Range<Double> rates = videoCapabilities == null ? null
+                        : videoCapabilities.getSupportedFrameRatesFor(width, height);
+                if (rates != null && operatingRate > rates.getUpper()) {
+                    operatingRate = rates.getUpper().floatValue();
+                }
+            } catch (IllegalArgumentException e) {
+                // unsupported size, leave it to codec
+                operatingRate = 0;
+            }
+        }
+        if (maxBFrames > 0 && !supportsBFrames(capabilities)) {
+            maxBFrames = 0;
+        }
+        int intraRefreshPeriod = this.intraRefreshPeriod;
+        // FEATURE_IntraRefresh is API 24, back to periodic I-frames if not supported
+        if (intraRefreshPeriod > 0 && (Build.VERSION.SDK_INT < Build.VERSION_CODES.N
+                || !capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh))) {
+            intraRefreshPeriod = 0;
+        }
+        if (latency == this.latency && priority == this.priority
+                && operatingRate == this.operatingRate && maxBFrames == this.maxBFrames
+                && bitrateMode == this.bitrateMode && quality == this.quality
+                && intraRefreshPeriod == this.intraRefreshPeriod) {
+            return this;
+        }
+        VideoEncodeConfig config = new VideoEncodeConfig(this, width, height, bitrate, framerate);
+        config.intraRefreshPeriod = intraRefreshPeriod;
+        config.bitrateMode = bitrateMode;
+        config.quality = quality;
+        config.latency = latency;
+        config.priority = priority;
+        config.operatingRate = operatingRate;
+        config.maxBFrames = maxBFrames;
+        return config;
+    }
+
+    private boolean supportsBFrames(MediaCodecInfo.CodecCapabilities capabilities) {
+        if (!ScreenRecorder.VIDEO_AVC.equals(mimeType)) return true;
+        int profile = codecProfileLevel == null ? 0 : codecProfileLevel.profile;
+        if (profile != 0) {
+            return isAvcProfileWithBFrames(profile);
+        }
+        // default profile, maybe any of the supported
+        for (MediaCodecInfo.CodecProfileLevel pl : capabilities.profileLevels) {
+            if (isAvcProfileWithBFrames(pl.profile)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isAvcProfileWithBFrames(int profile) {
+        return profile != MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline
+                && profile != MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline;
+    }
+
     MediaFormat toFormat() {
         MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iframeInterval);
+        // the encoder runs in capture time, not in playback time
+        float timelapse = getTimelapseFactor();
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getEncoderBitrate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.max(Math.round(framerate / timelapse), 1));
+        int iframeInterval = Math.round(this.iframeInterval * timelapse);
+        if (intraRefreshPeriod > 0) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, intraRefreshPeriod);
+            // rows are refreshed continuously, I-frames are only for seeking now
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, Math.max(iframeInterval, INTRA_REFRESH_IFRAME_INTERVAL));
+        } else {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iframeInterval);
+        }
         if (codecProfileLevel != null && codecProfileLevel.profile != 0 && codecProfileLevel.level != 0) {
             format.setInteger(MediaFormat.KEY_PROFILE, codecProfileLevel.profile);
             format.setInteger("level", codecProfileLevel.level);
         }
+        if (captureFramerate > 0 || maxInputFramerate > 0) {
+            // MediaFormat.KEY_MAX_FPS_TO_ENCODER, extra frames are dropped before the encoder
+            format.setFloat("max-fps-to-encoder", captureFramerate > 0 ? captureFramerate : maxInputFramerate);
+        }
+        if (bitrateMode >= 0) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+        if (quality >= 0) {
+            format.setInteger(MediaFormat.KEY_QUALITY, quality);
+        }
+        if (latency > 0) {
+            // MediaFormat.KEY_LATENCY
+            format.setInteger("latency", latency);
+        }
+        if (priority >= 0) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, priority);
+        }
+        if (operatingRate > 0) {
+            format.setFloat(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+        }
+        if (maxBFrames >= 0) {
+            // MediaFormat.KEY_MAX_B_FRAMES, vendor encoders may read it before Q
+            format.setInteger("max-bframes", maxBFrames);
+        }
         // maybe useful
         // format.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 10_000_000);
         return format;
@@ -80,6 +473,15 @@ public class VideoEncodeConfig {
                 ", codecName='" + codecName + '\'' +
                 ", mimeType='" + mimeType + '\'' +
                 ", codecProfileLevel=" + (codecProfileLevel == null ? "" : Utils.avcProfileLevelToString(codecProfileLevel)) +
+                ", maxInputFramerate=" + maxInputFramerate +
+                ", latency=" + latency +
+                ", priority=" + priority +
+                ", operatingRate=" + operatingRate +
+                ", maxBFrames=" + maxBFrames +
+                ", bitrateMode=" + bitrateMode +
+                ", quality=" + quality +
+                ", intraRefreshPeriod=" + intraRefreshPeriod +
+                ", captureFramerate=" + captureFramerate +
                 '}';
     }
 }
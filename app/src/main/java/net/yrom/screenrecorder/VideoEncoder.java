@@ -17,7 +17,9 @@
 package net.yrom.screenrecorder;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
@@ -40,6 +42,10 @@ class VideoEncoder extends BaseEncoder {
 
     @Override
     protected void onEncoderConfigured(MediaCodec encoder) {
+        if (mSurface != null) {
+            // configured again after a failed start
+            mSurface.release();
+        }
         mSurface = encoder.createInputSurface();
         if (VERBOSE) Log.i("@@", "VideoEncoder create input surface: " + mSurface);
     }
@@ -49,6 +55,31 @@ class VideoEncoder extends BaseEncoder {
         return mConfig.toFormat();
     }
 
+    @Override
+    protected MediaFormat adjustMediaFormat(MediaCodecInfo.CodecCapabilities capabilities, MediaFormat format) {
+        VideoEncodeConfig adapted = mConfig.adaptTo(capabilities);
+        if (adapted == mConfig) return format;
+        Log.i("@@", "VideoEncoder adapted to codec: " + adapted);
+        mConfig = adapted;
+        return adapted.toFormat();
+    }
+
+    @Override
+    protected MediaFormat createFallbackMediaFormat() {
+        if (!mConfig.hasTuning()) return null;
+        // latency, priority, etc. are hints, rather go without them than fail
+        mConfig = mConfig.withoutTuning();
+        return mConfig.toFormat();
+    }
+
+    /**
+     * @return Returns the config actually configured, may differ from the one passed to constructor
+     * if the codec doesn't support some of it.
+     */
+    VideoEncodeConfig getConfig() {
+        return mConfig;
+    }
+
     /**
      * @throws NullPointerException if prepare() not call
      */
@@ -56,6 +87,38 @@ class VideoEncoder extends BaseEncoder {
         return Objects.requireNonNull(mSurface, "doesn't prepare()");
     }
 
+    /**
+     * @throws NullPointerException if prepare() not call
+     * @see MediaCodec#signalEndOfInputStream()
+     */
+    void signalEndOfInputStream() {
+        getEncoder().signalEndOfInputStream();
+    }
+
+    /**
+     * Changes target bitrate on the fly.
+     *
+     * @throws NullPointerException if prepare() not call
+     * @see MediaCodec#PARAMETER_KEY_VIDEO_BITRATE
+     */
+    void setBitrate(int bitrate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        getEncoder().setParameters(params);
+    }
+
+    /**
+     * Asks the encoder to make next frame a key (sync) frame.
+     *
+     * @throws NullPointerException if prepare() not call
+     * @see MediaCodec#PARAMETER_KEY_REQUEST_SYNC_FRAME
+     */
+    void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        getEncoder().setParameters(params);
+    }
+
     @Override
     public void release() {
         if (mSurface != null) {
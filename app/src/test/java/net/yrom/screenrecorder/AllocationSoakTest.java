@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives the muxing path for hours of simulated recording and fails if it allocates more
+ * than {@link #BUDGET_BYTES_PER_FRAME} per encoded frame, a long recording must not make
+ * the GC busy. The codecs and the muxer here allocate nothing themselves.
+ * <p>
+ * Length of each run is {@code -Dsoak.hours}, 3 by default.
+ */
+public class AllocationSoakTest {
+    /**
+     * Per-second bitrate of the session grows with its length, amortized to ~0.5 byte per frame
+     */
+    private static final double BUDGET_BYTES_PER_FRAME = 2;
+    private static final long VIDEO_FRAME_US = 33_333;
+    private static final long AUDIO_FRAME_US = 1024 * 1_000_000L / 44100;
+
+    private com.sun.management.ThreadMXBean mThreads;
+    private float mHours;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mHours = Float.parseFloat(System.getProperty("soak.hours", "3"));
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void steadyRecording() throws Exception {
+        Soak soak = new Soak(true);
+        soak.run(10_000_000);
+        long frames = soak.mVideoFrames;
+        long begin = allocatedBytes();
+        soak.run((long) (mHours * 3600_000_000L));
+        assertBudget(allocatedBytes() - begin, soak.mVideoFrames - frames);
+        // all but the frame written before the audio format came were muxed
+        assertTrue(soak.mVideoFrames - soak.mMuxer.getVideoBitrate().getFrames() <= 1);
+    }
+
+    @Test
+    public void pausesAndSegments() throws Exception {
+        Soak soak = new Soak(true);
+        soak.run(10_000_000);
+        long frames = soak.mVideoFrames;
+        long begin = allocatedBytes();
+        long endUs = (long) (mHours * 3600_000_000L);
+        int segments = 0;
+        while (soak.mNowUs < endUs) {
+            // a minute recording, a second paused, a new segment every ten minutes
+            soak.run(soak.mNowUs + 60_000_000);
+            soak.pause();
+            soak.run(soak.mNowUs + 1_000_000);
+            soak.resume();
+            if (++segments % 10 == 0) soak.cut();
+        }
+        assertBudget(allocatedBytes() - begin, soak.mVideoFrames - frames);
+    }
+
+    private static void assertBudget(long bytes, long frames) {
+        double perFrame = bytes / (double) frames;
+        System.out.println(String.format("%d frames, %d bytes allocated, %.3f bytes/frame", frames, bytes, perFrame));
+        assertTrue(String.format("%.3f bytes allocated per frame, budget %.1f", perFrame, BUDGET_BYTES_PER_FRAME),
+                perFrame <= BUDGET_BYTES_PER_FRAME);
+    }
+
+    /**
+     * A video and an audio encoder muxed in the order of their timestamps, as ScreenRecorder does.
+     */
+    private static final class Soak {
+        final SegmentMuxer mMuxer = new SegmentMuxer("soak.mp4", path -> new NullMuxer());
+        final PooledEncoder mVideo = new PooledEncoder(MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720), 64 * 1024);
+        final PooledEncoder mAudio = new PooledEncoder(MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 1), 1024);
+        long mNowUs = 0;
+        long mVideoFrames = 0;
+        long mNextVideoUs = 0;
+        long mNextAudioUs = 0;
+
+        Soak(boolean metrics) throws Exception {
+            if (metrics) mMuxer.setMetrics(new PipelineMetrics());
+            mMuxer.setVideoEncoder(mVideo);
+            mMuxer.setAudioEncoder(mAudio);
+            mMuxer.open();
+            // video comes before the audio format, kept pending
+            mMuxer.setVideoFormat(mVideo.mFormat);
+        }
+
+        void run(long untilUs) {
+            while (true) {
+                boolean video = mNextVideoUs <= mNextAudioUs;
+                long pts = video ? mNextVideoUs : mNextAudioUs;
+                if (pts >= untilUs) break;
+                mNowUs = pts;
+                if (mMuxer.getAudioFormat() == null && pts >= 100_000) {
+                    mMuxer.setAudioFormat(mAudio.mFormat);
+                    mMuxer.startIfReady();
+                }
+                if (video) {
+                    // a key frame per second
+                    boolean key = mVideoFrames % 30 == 0;
+                    int index = mVideo.output(key ? 40_000 : 4_000, pts,
+                            key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                    mMuxer.writeVideo(index, mVideo.mInfos[index]);
+                    mVideoFrames++;
+                    mNextVideoUs += VIDEO_FRAME_US;
+                } else {
+                    int index = mAudio.output(371, pts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                    mMuxer.writeAudio(index, mAudio.mInfos[index]);
+                    mNextAudioUs += AUDIO_FRAME_US;
+                }
+            }
+        }
+
+        void pause() {
+            mMuxer.pause(mNowUs, mNowUs);
+        }
+
+        void resume() {
+            mMuxer.resume(mNowUs, mNowUs);
+        }
+
+        void cut() throws Exception {
+            // as if the audio encoder was recreated, video pending until its format comes
+            mMuxer.resetAudioFormat();
+            mMuxer.setNextVideoFormat(mVideo.mFormat);
+            mMuxer.nextSegment();
+            mMuxer.waitForVideoKeyFrame();
+        }
+    }
+
+    /**
+     * Output buffers and infos of a fixed pool, reused round robin like a codec does.
+     */
+    private static final class PooledEncoder implements Encoder {
+        private static final int BUFFERS = 8;
+        final MediaFormat mFormat;
+        final ByteBuffer[] mBuffers = new ByteBuffer[BUFFERS];
+        final MediaCodec.BufferInfo[] mInfos = new MediaCodec.BufferInfo[BUFFERS];
+        private final boolean[] mDequeued = new boolean[BUFFERS];
+        private int mNext = 0;
+
+        PooledEncoder(MediaFormat format, int capacity) {
+            mFormat = format;
+            for (int i = 0; i < BUFFERS; i++) {
+                mBuffers[i] = ByteBuffer.allocateDirect(capacity);
+                mInfos[i] = new MediaCodec.BufferInfo();
+            }
+        }
+
+        int output(int size, long ptsUs, int flags) {
+            int index = mNext;
+            if (mDequeued[index]) throw new IllegalStateException("Buffer " + index + " not released");
+            mNext = (mNext + 1) % BUFFERS;
+            mDequeued[index] = true;
+            mInfos[index].set(0, size, ptsUs, flags);
+            return index;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mBuffers[index];
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mDequeued[index] = false;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+        }
+    }
+
+    private static final class NullMuxer implements Muxer {
+        private int mTracks = 0;
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
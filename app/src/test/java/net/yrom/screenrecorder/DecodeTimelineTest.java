@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecodeTimelineTest {
+    private static final long FRAME_US = 33_333;
+
+    /**
+     * @param order presented frame numbers in decode order
+     */
+    private static long[] frames(int... order) {
+        long[] pts = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            pts[i] = order[i] * FRAME_US;
+        }
+        return pts;
+    }
+
+    private static void assertValid(long[] pts, long[] dts) {
+        assertEquals(pts.length, dts.length);
+        for (int i = 0; i < dts.length; i++) {
+            assertTrue("frame " + i + " decoded at " + dts[i] + " after presented at " + pts[i],
+                    dts[i] <= pts[i]);
+            if (i > 0) {
+                assertTrue("dts of frame " + i + " not increasing", dts[i] > dts[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void acceptsIbbp() {
+        // I0 P3 B1 B2 P6 B4 B5 P9 B7 B8
+        long[] pts = frames(0, 3, 1, 2, 6, 4, 5, 9, 7, 8);
+        DecodeTimeline timeline = new DecodeTimeline(2, true);
+        for (long t : pts) {
+            assertEquals(DecodeTimeline.ACCEPTED, timeline.push(t));
+        }
+        assertArrayEquals(pts, timeline.getPresentationTimes());
+
+        long[] dts = timeline.getDecodeTimes();
+        assertValid(pts, dts);
+        // one frame of reorder delay
+        assertEquals(-FRAME_US, dts[0]);
+        long[] offsets = DecodeTimeline.toCompositionOffsets(pts, dts);
+        assertArrayEquals(frames(1, 3, 0, 0, 3, 0, 0, 3, 0, 0), offsets);
+    }
+
+    @Test
+    public void noReorderWithoutBFrames() {
+        long[] pts = frames(0, 1, 2, 3, 4);
+        long[] dts = DecodeTimeline.toDecodeTimes(pts);
+        assertArrayEquals(pts, dts);
+        assertArrayEquals(new long[5], DecodeTimeline.toCompositionOffsets(pts, dts));
+
+        DecodeTimeline timeline = new DecodeTimeline(0, false);
+        for (long t : pts) {
+            assertEquals(DecodeTimeline.ACCEPTED, timeline.push(t));
+        }
+        // going back is not allowed without reordering
+        assertEquals(DecodeTimeline.REJECTED, timeline.push(3 * FRAME_US + 1));
+        assertEquals(1, timeline.getRejectedCount());
+    }
+
+    @Test
+    public void irregularFrameIntervals() {
+        // screen content, the P-frame came long after its B-frames
+        long[] pts = {0, 100_000, 10_000, 20_000, 400_000, 150_000, 390_000};
+        DecodeTimeline timeline = new DecodeTimeline(2, true);
+        for (long t : pts) {
+            assertEquals(DecodeTimeline.ACCEPTED, timeline.push(t));
+        }
+        long[] dts = timeline.getDecodeTimes();
+        assertValid(pts, dts);
+        for (long offset : DecodeTimeline.toCompositionOffsets(pts, dts)) {
+            assertTrue(offset >= 0);
+        }
+    }
+
+    @Test
+    public void rejectsReorderDeeperThanAllowed() {
+        DecodeTimeline timeline = new DecodeTimeline(2, true);
+        // I0 P4 B1 B2 B3, three B-frames but at most two allowed
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(0));
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(4 * FRAME_US));
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(FRAME_US));
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(2 * FRAME_US));
+        // presented before P4, decoded three frames earlier
+        assertEquals(DecodeTimeline.REJECTED, timeline.push(3 * FRAME_US));
+        assertEquals(1, timeline.getRejectedCount());
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(5 * FRAME_US));
+        assertValid(timeline.getPresentationTimes(), timeline.getDecodeTimes());
+    }
+
+    @Test
+    public void rejectsBeforeKeyFrame() {
+        DecodeTimeline timeline = new DecodeTimeline(1, false);
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(FRAME_US));
+        assertEquals(DecodeTimeline.ACCEPTED, timeline.push(3 * FRAME_US));
+        // I1 has left the window
+        assertEquals(DecodeTimeline.REJECTED, timeline.push(0));
+    }
+
+    @Test
+    public void repairsDuplicates() {
+        DecodeTimeline timeline = new DecodeTimeline(2, true);
+        // I0 P3 B1 B1
+        timeline.push(0);
+        timeline.push(3 * FRAME_US);
+        timeline.push(FRAME_US);
+        assertEquals(DecodeTimeline.REPAIRED, timeline.push(FRAME_US));
+        assertEquals(FRAME_US + 1, timeline.getLastPtsUs());
+        assertEquals(1, timeline.getRepairedCount());
+
+        long[] pts = timeline.getPresentationTimes();
+        assertArrayEquals(new long[]{0, 3 * FRAME_US, FRAME_US, FRAME_US + 1}, pts);
+        assertValid(pts, timeline.getDecodeTimes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void timestampsNotKept() {
+        DecodeTimeline timeline = new DecodeTimeline(2, false);
+        timeline.push(0);
+        timeline.getDecodeTimes();
+    }
+}
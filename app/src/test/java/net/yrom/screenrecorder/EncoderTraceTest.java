@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class EncoderTraceTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        FakeEncoder video = FakeEncoder.video();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EncoderTrace.Writer writer = new EncoderTrace.Writer(bytes, false);
+        writer.writeFormat(EncoderTrace.TRACK_VIDEO, 10, video.getOutputFormat());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int index = video.dequeueOutputBuffer(info);
+        writer.writeSample(EncoderTrace.TRACK_VIDEO, 20, info, video.getOutputBuffer(index));
+        // direct buffers of the codec, from an offset
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.putInt(8, 42);
+        info.set(8, 8, 33_333, 0);
+        writer.writeSample(EncoderTrace.TRACK_VIDEO, 30, info, direct);
+        info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        writer.writeSample(EncoderTrace.TRACK_VIDEO, 40, info, ByteBuffer.allocate(0));
+        writer.close();
+
+        EncoderTrace.Reader reader = new EncoderTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertFalse(reader.hasAudio());
+        EncoderTrace.Event event = reader.next();
+        assertEquals(EncoderTrace.TYPE_FORMAT, event.type);
+        assertEquals(10, event.timeUs);
+        MediaFormat format = event.format;
+        assertEquals(MediaFormat.MIMETYPE_VIDEO_AVC, format.getString(MediaFormat.KEY_MIME));
+        assertEquals(1280, format.getInteger(MediaFormat.KEY_WIDTH));
+        assertEquals(video.getOutputFormat().getByteBuffer("csd-0"), format.getByteBuffer("csd-0"));
+
+        event = reader.next();
+        assertEquals(EncoderTrace.TYPE_SAMPLE, event.type);
+        assertEquals(20, event.timeUs);
+        assertEquals(1_000_000, event.info.presentationTimeUs);
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, event.info.flags);
+        assertEquals(20_000, event.info.size);
+        assertEquals(0, event.data.getInt(0));
+
+        event = reader.next();
+        assertEquals(8, event.info.size);
+        assertEquals(0, event.info.offset);
+        assertEquals(42, event.data.getInt(0));
+
+        event = reader.next();
+        assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, event.info.flags);
+        assertEquals(0, event.info.size);
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void replayMuxesAsLive() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FakeMuxer.Factory live = new FakeMuxer.Factory();
+        record(live, new EncoderTrace.Writer(bytes, true));
+
+        assertReplayedAsLive(bytes.toByteArray(), live);
+    }
+
+    @Test
+    public void replaysSwitchAndRecoveryAsLive() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FakeMuxer.Factory live = new FakeMuxer.Factory();
+        int firstEncoderFrames = recordSwitchAndRecovery(live, new EncoderTrace.Writer(bytes, true));
+        // switched, then recovered
+        assertEquals(3, live.created.size());
+        FakeMuxer first = live.get(0);
+        List<FakeMuxer.Sample> video = first.samplesOf(first.trackOf("video/"));
+        // all of the old encoder, the tail drained after the new one started included
+        assertEquals(firstEncoderFrames, video.size());
+        assertEquals(firstEncoderFrames - 1, video.get(video.size() - 1).tag);
+
+        assertReplayedAsLive(bytes.toByteArray(), live);
+    }
+
+    private static void assertReplayedAsLive(byte[] trace, FakeMuxer.Factory live) throws Exception {
+        FakeMuxer.Factory replayed = new FakeMuxer.Factory();
+        EncoderTrace.Reader reader = new EncoderTrace.Reader(new ByteArrayInputStream(trace));
+        int samples = new TraceReplayer(reader, new SegmentMuxer("replay.mp4", replayed)).replay();
+
+        assertTrue(samples > 0);
+        assertEquals(live.created.size(), replayed.created.size());
+        for (int i = 0; i < live.created.size(); i++) {
+            List<FakeMuxer.Sample> expected = live.get(i).samples;
+            List<FakeMuxer.Sample> actual = replayed.get(i).samples;
+            assertEquals(expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                FakeMuxer.Sample e = expected.get(j), a = actual.get(j);
+                assertEquals(e.track, a.track);
+                assertEquals(e.ptsUs, a.ptsUs);
+                assertEquals(e.flags, a.flags);
+                assertEquals(e.size, a.size);
+                assertEquals(e.tag, a.tag);
+            }
+            assertTrue(replayed.get(i).isStopped());
+        }
+    }
+
+    /**
+     * Muxes 2 seconds of fake encoders as ScreenRecorder does, tapping them into {@code trace}.
+     */
+    private static void record(Muxer.Factory factory, EncoderTrace.Writer trace) throws IOException {
+        FakeEncoder video = FakeEncoder.video().bFrames(2).latency(40_000);
+        FakeEncoder audio = FakeEncoder.audio().latency(20_000);
+        SegmentMuxer muxer = new SegmentMuxer("live.mp4", factory);
+        muxer.setVideoEncoder(video);
+        muxer.setAudioEncoder(audio);
+        muxer.setMaxReorder(2);
+        muxer.open();
+        MediaFormat videoFormat = video.getOutputFormat();
+        trace.writeFormat(EncoderTrace.TRACK_VIDEO, 0, videoFormat);
+        muxer.setVideoFormat(videoFormat);
+        while (true) {
+            long videoUs = video.nextOutputTimeUs();
+            long audioUs = audio.nextOutputTimeUs();
+            long nowUs = Math.min(videoUs, audioUs);
+            if (nowUs >= 3_000_000) break;
+            if (audio.getFramesOut() == 3 && muxer.getAudioFormat() == null) {
+                // video pending until the audio format comes
+                MediaFormat audioFormat = audio.getOutputFormat();
+                trace.writeFormat(EncoderTrace.TRACK_AUDIO, nowUs, audioFormat);
+                muxer.setAudioFormat(audioFormat);
+                muxer.startIfReady();
+            }
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            if (videoUs <= audioUs) {
+                int index = video.dequeueOutputBuffer(info);
+                trace.writeSample(EncoderTrace.TRACK_VIDEO, nowUs, info, video.getOutputBuffer(index));
+                muxer.writeVideo(index, info);
+            } else {
+                int index = audio.dequeueOutputBuffer(info);
+                trace.writeSample(EncoderTrace.TRACK_AUDIO, nowUs, info, audio.getOutputBuffer(index));
+                muxer.writeAudio(index, info);
+            }
+        }
+        trace.close();
+        muxer.finish();
+    }
+
+    private static final int RETIRING_TAIL = 3;
+
+    /**
+     * Muxes 3 seconds of fake encoders as ScreenRecorder does, switching the video encoder at 1s
+     * and recovering the audio encoder at 2s, tapping them into {@code trace}.
+     *
+     * @return Returns frames output by the first video encoder
+     */
+    private static int recordSwitchAndRecovery(Muxer.Factory factory, EncoderTrace.Writer trace) throws IOException {
+        FakeEncoder video = FakeEncoder.video().latency(40_000);
+        FakeEncoder audio = FakeEncoder.audio().latency(20_000);
+        FakeEncoder retiring = null;
+        int retiringLeft = 0;
+        int firstEncoderFrames = 0;
+        boolean audioFormatPending = false;
+        SegmentMuxer muxer = new SegmentMuxer("live.mp4", factory);
+        muxer.setVideoEncoder(video);
+        muxer.setAudioEncoder(audio);
+        muxer.open();
+        trace.writeFormat(EncoderTrace.TRACK_VIDEO, 0, video.getOutputFormat());
+        muxer.setVideoOutputFormat(video.getOutputFormat());
+        trace.writeFormat(EncoderTrace.TRACK_AUDIO, 0, audio.getOutputFormat());
+        muxer.setAudioFormat(audio.getOutputFormat());
+        muxer.startIfReady();
+        while (true) {
+            long videoUs = video.nextOutputTimeUs();
+            long audioUs = audio.nextOutputTimeUs();
+            long retiringUs = retiring == null ? Long.MAX_VALUE : retiring.nextOutputTimeUs();
+            long nowUs = Math.min(Math.min(videoUs, audioUs), retiringUs);
+            if (nowUs >= 3_000_000) break;
+            if (muxer.getSegmentPaths().size() == 1 && retiring == null && nowUs >= 1_000_000) {
+                // rotated, the old encoder drains a few frames more
+                retiring = video;
+                retiringLeft = RETIRING_TAIL;
+                video = FakeEncoder.video().latency(40_000)
+                        .startAt(retiring.presentationTimeOf(retiring.getFramesOut() + RETIRING_TAIL));
+                trace.writeSegment(EncoderTrace.SEGMENT_SWITCH_VIDEO, nowUs);
+                muxer.beginVideoSwitch(video);
+                trace.writeFormat(EncoderTrace.TRACK_VIDEO, nowUs, video.getOutputFormat());
+                muxer.setVideoOutputFormat(video.getOutputFormat());
+                continue;
+            }
+            if (muxer.getSegmentPaths().size() == 2 && !audioFormatPending && nowUs >= 2_000_000) {
+                audio = FakeEncoder.audio().latency(20_000).startAt(nowUs);
+                audioFormatPending = true;
+                trace.writeSegment(EncoderTrace.SEGMENT_RECOVER_AUDIO, nowUs);
+                muxer.recoverAudio(audio);
+                video.requestKeyFrame();
+                continue;
+            }
+            if (audioFormatPending && audio.getFramesOut() == 2 && muxer.getAudioFormat() == null) {
+                trace.writeFormat(EncoderTrace.TRACK_AUDIO, nowUs, audio.getOutputFormat());
+                muxer.setAudioFormat(audio.getOutputFormat());
+                muxer.startIfReady();
+            }
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            if (retiringUs == nowUs) {
+                int index = retiringLeft-- > 0 ? retiring.dequeueOutputBuffer(info) : retiring.signalEndOfStream(info);
+                trace.writeSample(EncoderTrace.TRACK_RETIRING_VIDEO, nowUs, info, retiring.getOutputBuffer(index));
+                muxer.writeRetiringVideo(retiring, index, info);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    firstEncoderFrames = retiring.getFramesOut();
+                    retiring = null;
+                    trace.writeSegment(EncoderTrace.SEGMENT_CUT, nowUs);
+                    muxer.endVideoSwitch();
+                    muxer.startIfReady();
+                }
+            } else if (videoUs == nowUs) {
+                int index = video.dequeueOutputBuffer(info);
+                trace.writeSample(EncoderTrace.TRACK_VIDEO, nowUs, info, video.getOutputBuffer(index));
+                muxer.writeVideo(index, info);
+            } else {
+                int index = audio.dequeueOutputBuffer(info);
+                trace.writeSample(EncoderTrace.TRACK_AUDIO, nowUs, info, audio.getOutputBuffer(index));
+                muxer.writeAudio(index, info);
+            }
+        }
+        trace.close();
+        muxer.finish();
+        return firstEncoderFrames;
+    }
+
+    @Test
+    public void replaysInRealTime() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FakeEncoder video = FakeEncoder.video();
+        EncoderTrace.Writer writer = new EncoderTrace.Writer(bytes, false);
+        writer.writeFormat(EncoderTrace.TRACK_VIDEO, 1_000_000, video.getOutputFormat());
+        for (int i = 0; i < 3; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int index = video.dequeueOutputBuffer(info);
+            writer.writeSample(EncoderTrace.TRACK_VIDEO, 1_000_000 + i * 100_000, info, video.getOutputBuffer(index));
+        }
+        writer.close();
+
+        EncoderTrace.Reader reader = new EncoderTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        TraceReplayer replayer = new TraceReplayer(reader, new SegmentMuxer("replay.mp4", new FakeMuxer.Factory()));
+        long begin = System.nanoTime();
+        assertEquals(3, replayer.setSpeed(2).replay());
+        // 200ms traced in double speed
+        assertTrue((System.nanoTime() - begin) / 1000_000 >= 100);
+    }
+
+    /**
+     * Traces of real devices, {@link ScreenRecorder#getTracePath()}, put in {@code src/test/resources/traces}
+     * are replayed against the muxer contract.
+     */
+    @Test
+    public void replaysDeviceTraces() throws Exception {
+        URL dir = getClass().getClassLoader().getResource("traces");
+        File[] traces = dir == null ? null : new File(dir.toURI()).listFiles((d, name) -> name.endsWith(".trace"));
+        assumeTrue(traces != null && traces.length > 0);
+        for (File file : traces) {
+            FakeMuxer.Factory factory = new FakeMuxer.Factory();
+            SegmentMuxer muxer = new SegmentMuxer(file.getName() + ".mp4", factory);
+            try (EncoderTrace.Reader reader = new EncoderTrace.Reader(new FileInputStream(file))) {
+                assertTrue(file.getName(), new TraceReplayer(reader, muxer).replay() > 0);
+            }
+            assertFalse(file.getName(), factory.created.isEmpty());
+            assertEquals(file.getName(), 0, muxer.getRejectedVideoPts());
+        }
+    }
+}
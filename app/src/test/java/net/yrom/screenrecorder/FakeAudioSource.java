@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSource} of silence, reads return what the test scripted.
+ */
+final class FakeAudioSource implements AudioSource {
+    private boolean mRecording = false;
+    private boolean mReleased = false;
+    private int[] mReads = new int[0];
+    private int mReadCount = 0;
+
+    /**
+     * @param results returned by reads in turn, a negative one is an error code, 0 or
+     *                anything beyond means the full size asked
+     */
+    FakeAudioSource reads(int... results) {
+        mReads = results;
+        return this;
+    }
+
+    int getReadCount() {
+        return mReadCount;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    @Override
+    public void startRecording() {
+        if (mReleased) throw new IllegalStateException("released");
+        mRecording = true;
+    }
+
+    @Override
+    public void stop() {
+        mRecording = false;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (!mRecording) throw new IllegalStateException("not recording");
+        int scripted = mReadCount < mReads.length ? mReads[mReadCount] : 0;
+        mReadCount++;
+        if (scripted < 0) return scripted;
+        int read = scripted == 0 ? size : Math.min(scripted, size);
+        for (int i = 0; i < read; i++) {
+            buffer.put(buffer.position() + i, (byte) 0);
+        }
+        return read;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        mRecording = false;
+    }
+}
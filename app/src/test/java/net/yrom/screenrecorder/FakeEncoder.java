@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Deterministic stand-in of an encoder, outputs are pulled by the test with
+ * {@link #dequeueOutputBuffer(MediaCodec.BufferInfo)} instead of coming on a codec thread.
+ * <p>
+ * Frames are numbered in presentation order from 0, the number is the first int of the payload.
+ * With B-frames they come out in decode order, e.g. {@code 0 3 1 2 6 4 5} of 2 B-frames.
+ */
+final class FakeEncoder implements Encoder {
+    static final int INFO_TRY_AGAIN_LATER = MediaCodec.INFO_TRY_AGAIN_LATER;
+
+    private final String mMime;
+    private int mKeyFrameSize = 20_000;
+    private int mFrameSize = 2_000;
+    private long mStartUs = 1_000_000;
+    private long mFrameIntervalUs = 33_333;
+    private long mLatencyUs = 0;
+    // in frames, a multiple of B-frames + 1
+    private int mKeyFrameInterval = 30;
+    private int mBFrames = 0;
+    private int mFailAtFrame = -1;
+
+    private Callback mCallback;
+    private final Map<Integer, ByteBuffer> mOutputBuffers = new HashMap<>();
+    private int mNextIndex = 0;
+    // in decode order
+    private int mFrame = 0;
+    // the latest captured of frames out
+    private int mLatestFrame = 0;
+    private int mKeyFrameRequests = 0;
+    private boolean mEndOfStream = false;
+    private boolean mFailed = false;
+    private boolean mStopped = false;
+    private boolean mReleased = false;
+
+    private FakeEncoder(String mime) {
+        mMime = mime;
+    }
+
+    /**
+     * 30 fps, a key frame per second
+     */
+    static FakeEncoder video() {
+        return new FakeEncoder(MediaFormat.MIMETYPE_VIDEO_AVC);
+    }
+
+    /**
+     * AAC frames of 1024 samples at 44.1kHz
+     */
+    static FakeEncoder audio() {
+        return new FakeEncoder(MediaFormat.MIMETYPE_AUDIO_AAC)
+                .frameSize(371, 371)
+                .frameInterval(1024 * 1_000_000L / 44100)
+                .keyFrameInterval(1);
+    }
+
+    FakeEncoder frameSize(int keyFrame, int frame) {
+        mKeyFrameSize = keyFrame;
+        mFrameSize = frame;
+        return this;
+    }
+
+    /**
+     * @param startUs timestamp of the first frame, of the capture clock
+     */
+    FakeEncoder startAt(long startUs) {
+        mStartUs = startUs;
+        return this;
+    }
+
+    FakeEncoder frameInterval(long us) {
+        mFrameIntervalUs = us;
+        return this;
+    }
+
+    /**
+     * @param us from capture of a frame to its output
+     */
+    FakeEncoder latency(long us) {
+        mLatencyUs = us;
+        return this;
+    }
+
+    FakeEncoder keyFrameInterval(int frames) {
+        mKeyFrameInterval = frames;
+        return this;
+    }
+
+    FakeEncoder bFrames(int bFrames) {
+        mBFrames = bFrames;
+        return this;
+    }
+
+    /**
+     * {@link Callback#onError(Encoder, Exception)} instead of outputting the {@code n}th frame.
+     */
+    FakeEncoder failAtFrame(int n) {
+        mFailAtFrame = n;
+        return this;
+    }
+
+    MediaFormat getOutputFormat() {
+        MediaFormat format = mMime.startsWith("video/")
+                ? MediaFormat.createVideoFormat(mMime, 1280, 720)
+                : MediaFormat.createAudioFormat(mMime, 44100, 1);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[]{0, 0, 0, 1}));
+        return format;
+    }
+
+    /**
+     * @return Returns presentation index of the {@code decodeIndex}th output
+     */
+    int presentationIndexOf(int decodeIndex) {
+        if (decodeIndex == 0 || mBFrames == 0) return decodeIndex;
+        int group = mBFrames + 1;
+        int k = (decodeIndex - 1) / group;
+        int r = (decodeIndex - 1) % group;
+        int anchor = k * group + group;
+        return r == 0 ? anchor : anchor - group + r;
+    }
+
+    long presentationTimeOf(int frame) {
+        return mStartUs + frame * mFrameIntervalUs;
+    }
+
+    /**
+     * @return Returns when the next output comes out, of the capture clock,
+     * or {@link Long#MAX_VALUE} if never after an error
+     */
+    long nextOutputTimeUs() {
+        if (mFailed) return Long.MAX_VALUE;
+        // a reference frame is not out before the B-frames in front of it are captured
+        int frame = presentationIndexOf(mFrame);
+        return presentationTimeOf(Math.max(frame, mLatestFrame)) + mLatencyUs;
+    }
+
+    int getFramesOut() {
+        return mFrame;
+    }
+
+    int getPendingOutputBuffers() {
+        return mOutputBuffers.size();
+    }
+
+    int getKeyFrameRequests() {
+        return mKeyFrameRequests;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Next key frame is the next reference frame.
+     */
+    void requestKeyFrame() {
+        mKeyFrameRequests++;
+    }
+
+    /**
+     * @return Returns index of the output buffer filled to {@code info},
+     * or {@link #INFO_TRY_AGAIN_LATER} if failed
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info) {
+        if (mStopped || mEndOfStream || mFailed) throw new IllegalStateException("stopped");
+        if (mFrame == mFailAtFrame) {
+            mFailed = true;
+            if (mCallback != null) mCallback.onError(this, new IllegalStateException("fake codec error"));
+            return INFO_TRY_AGAIN_LATER;
+        }
+        int frame = presentationIndexOf(mFrame);
+        boolean anchor = frame >= mLatestFrame;
+        boolean key = frame % mKeyFrameInterval == 0 || (anchor && mKeyFrameRequests > 0);
+        if (key) mKeyFrameRequests = 0;
+        int size = key ? mKeyFrameSize : mFrameSize;
+        ByteBuffer data = ByteBuffer.allocate(Math.max(size, 4));
+        data.putInt(0, frame);
+        int index = mNextIndex++;
+        mOutputBuffers.put(index, data);
+        info.set(0, size, presentationTimeOf(frame), key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mFrame++;
+        mLatestFrame = Math.max(mLatestFrame, frame);
+        return index;
+    }
+
+    /**
+     * @return Returns index of the output buffer of the end of stream
+     */
+    int signalEndOfStream(MediaCodec.BufferInfo info) {
+        if (mEndOfStream) throw new IllegalStateException("already ended");
+        mEndOfStream = true;
+        int index = mNextIndex++;
+        mOutputBuffers.put(index, ByteBuffer.allocate(0));
+        info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return index;
+    }
+
+    /**
+     * @return Returns index of the codec config output, which comes before all frames
+     */
+    int dequeueCodecConfig(MediaCodec.BufferInfo info) {
+        int index = mNextIndex++;
+        mOutputBuffers.put(index, ByteBuffer.allocate(4));
+        info.set(0, 4, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        return index;
+    }
+
+    @Override
+    public void prepare() throws IOException {
+    }
+
+    @Override
+    public void stop() {
+        if (mReleased) throw new IllegalStateException("released");
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        mOutputBuffers.clear();
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        ByteBuffer buffer = mOutputBuffers.get(index);
+        if (buffer == null) throw new IllegalStateException("Buffer " + index + " is not dequeued");
+        return buffer;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        if (mOutputBuffers.remove(index) == null) {
+            throw new IllegalStateException("Buffer " + index + " is not dequeued");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Muxer} which keeps what is written, and fails like {@link android.media.MediaMuxer}
+ * does on calls out of its state machine.
+ */
+final class FakeMuxer implements Muxer {
+    private static final int INITIALIZED = 0, STARTED = 1, STOPPED = 2, RELEASED = 3;
+
+    static final class Sample {
+        final int track;
+        final long ptsUs;
+        final int flags;
+        final int size;
+        // first int of the payload, the frame number of FakeEncoder
+        final int tag;
+
+        Sample(int track, long ptsUs, int flags, int size, int tag) {
+            this.track = track;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+            this.size = size;
+            this.tag = tag;
+        }
+
+        boolean isKeyFrame() {
+            return (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        }
+
+        boolean isEndOfStream() {
+            return (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        }
+    }
+
+    final String path;
+    final List<MediaFormat> tracks = new ArrayList<>();
+    final List<Sample> samples = new ArrayList<>();
+    private int mState = INITIALIZED;
+    private boolean mStopped = false;
+    private int mFailAtWrite = -1;
+    private long[] mLastPtsUs = new long[0];
+
+    FakeMuxer(String path) {
+        this.path = path;
+    }
+
+    /**
+     * The {@code n}th write throws, as if the storage is full.
+     */
+    void failAtWrite(int n) {
+        mFailAtWrite = n;
+    }
+
+    boolean isStarted() {
+        return mState >= STARTED;
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    boolean isReleased() {
+        return mState == RELEASED;
+    }
+
+    List<Sample> samplesOf(int track) {
+        List<Sample> list = new ArrayList<>();
+        for (Sample s : samples) {
+            if (s.track == track && !s.isEndOfStream()) list.add(s);
+        }
+        return list;
+    }
+
+    int trackOf(String mimePrefix) {
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).getString(MediaFormat.KEY_MIME).startsWith(mimePrefix)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mState != INITIALIZED) throw new IllegalStateException("Muxer is not initialized.");
+        if (format == null) throw new IllegalArgumentException("format must not be null.");
+        tracks.add(format);
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (mState != INITIALIZED || tracks.isEmpty()) {
+            throw new IllegalStateException("Can't start due to wrong state.");
+        }
+        mLastPtsUs = new long[tracks.size()];
+        for (int i = 0; i < mLastPtsUs.length; i++) mLastPtsUs[i] = -1;
+        mState = STARTED;
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (track < 0 || track >= tracks.size()) {
+            throw new IllegalArgumentException("trackIndex is invalid");
+        }
+        if (data == null) throw new IllegalArgumentException("byteBuffer must not be null");
+        if (mState != STARTED) throw new IllegalStateException("Can't write, muxer is not started");
+        if (info.size < 0 || info.offset < 0 || info.offset + info.size > data.capacity()
+                || info.presentationTimeUs < 0) {
+            throw new IllegalArgumentException("bufferInfo must specify a valid buffer offset, size and presentation time");
+        }
+        if (samples.size() == mFailAtWrite) {
+            throw new IllegalStateException("writeSampleData returned an error");
+        }
+        boolean eos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        boolean video = tracks.get(track).getString(MediaFormat.KEY_MIME).startsWith("video/");
+        if (!eos && !video && info.presentationTimeUs < mLastPtsUs[track]) {
+            // decode time of audio is its presentation time, must not go back
+            throw new IllegalStateException("timestampUs " + info.presentationTimeUs
+                    + " < lastTimestampUs " + mLastPtsUs[track] + " for Audio track");
+        }
+        if (!eos) mLastPtsUs[track] = info.presentationTimeUs;
+        int tag = data.remaining() >= 4 ? data.getInt(data.position()) : -1;
+        samples.add(new Sample(track, info.presentationTimeUs, info.flags, info.size, tag));
+    }
+
+    @Override
+    public void stop() {
+        if (mState != STARTED) throw new IllegalStateException("Can't stop due to wrong state.");
+        mState = STOPPED;
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mState = RELEASED;
+    }
+
+    /**
+     * Keeps the muxers it created, in order.
+     */
+    static final class Factory implements Muxer.Factory {
+        final List<FakeMuxer> created = new ArrayList<>();
+        private int mFailAtCreate = -1;
+
+        /**
+         * The {@code n}th muxer can't be created, e.g. the storage is gone.
+         */
+        void failAtCreate(int n) {
+            mFailAtCreate = n;
+        }
+
+        FakeMuxer get(int i) {
+            return created.get(i);
+        }
+
+        @Override
+        public Muxer create(String path) throws IOException {
+            if (created.size() == mFailAtCreate) throw new IOException("Can't open " + path);
+            FakeMuxer muxer = new FakeMuxer(path);
+            created.add(muxer);
+            return muxer;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FramePacingAnalyzerTest {
+    private static final long FRAME_US = 33_333;
+
+    private static long pts(int frame) {
+        return frame * 1_000_000L / 30;
+    }
+
+    @Test
+    public void steadyInDecodeOrder() {
+        FramePacingAnalyzer analyzer = new FramePacingAnalyzer(30);
+        // I P B B, presentation order 0 3 1 2
+        int[] gop = {0, 3, 1, 2};
+        for (int i = 0; i < 300; i += 4) {
+            for (int offset : gop) analyzer.add(pts(i + offset));
+        }
+        analyzer.flush();
+        assertEquals(300, analyzer.getFrames());
+        assertEquals(0, analyzer.getDuplicates());
+        assertEquals(0, analyzer.getDropped());
+        assertEquals(1f, analyzer.getIntervalQuantile(0.99f), 0);
+        assertEquals(FRAME_US, analyzer.getMeanIntervalUs(), 1);
+        assertEquals(0, analyzer.getJitterUs(), 1);
+    }
+
+    @Test
+    public void stallAndDuplicate() {
+        FramePacingAnalyzer analyzer = new FramePacingAnalyzer(30);
+        for (int i = 0; i < 30; i++) analyzer.add(pts(i));
+        // nothing for 10 frames
+        for (int i = 40; i < 60; i++) analyzer.add(pts(i));
+        analyzer.add(pts(59) + 5_000);
+        analyzer.flush();
+        assertEquals(51, analyzer.getFrames());
+        assertEquals(10, analyzer.getDropped());
+        assertEquals(1, analyzer.getDuplicates());
+        assertEquals(pts(40) - pts(29), analyzer.getLongestStallUs());
+        assertEquals(pts(29), analyzer.getLongestStallAtUs());
+        assertEquals(1f, analyzer.getIntervalQuantile(0.5f), 0);
+    }
+
+    @Test
+    public void timelinesAppended() {
+        FramePacingAnalyzer analyzer = new FramePacingAnalyzer(30);
+        for (int i = 0; i < 30; i++) analyzer.add(pts(i));
+        analyzer.newTimeline();
+        // a new segment at half the framerate
+        analyzer.setFramerate(15);
+        for (int i = 0; i < 30; i += 2) analyzer.add(pts(i));
+        analyzer.add(pts(40));
+        analyzer.flush();
+        assertEquals(46, analyzer.getFrames());
+        assertEquals(0, analyzer.getDuplicates());
+        // 28 -> 40 is 6 frames at 15 fps
+        assertEquals(5, analyzer.getDropped());
+        assertEquals(pts(40) - pts(28), analyzer.getLongestStallUs());
+        // after the 30 frames of the first timeline
+        assertEquals(pts(29) + Math.round(1_000_000d / 30) + pts(28), analyzer.getLongestStallAtUs());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyFrameIndexTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void lookupsAcrossCheckpoints() throws IOException {
+        int count = 1000;
+        long[] pts = new long[count];
+        long[] offsets = new long[count];
+        int[] sizes = new int[count];
+        long offset = 48;
+        for (int i = 0; i < count; i++) {
+            // about a second apart, not evenly
+            pts[i] = i * 1_000_000L + (i % 7) * 33_333;
+            sizes[i] = 20_000 + i * 13 % 5000;
+            offsets[i] = offset;
+            // audio and other frames in between, 5 GB in total
+            offset += 5_000_000 + i % 3;
+        }
+        File file = mFolder.newFile("rec.keyframes");
+        KeyFrameIndex.write(file, pts, offsets, sizes, count);
+        try (KeyFrameIndex.Reader reader = KeyFrameIndex.Reader.open(file)) {
+            assertEquals(count, reader.size());
+            for (int i = 0; i < count; i++) {
+                KeyFrameIndex.Entry entry = reader.get(i);
+                assertEquals(pts[i], entry.ptsUs);
+                assertEquals(offsets[i], entry.offset);
+                assertEquals(sizes[i], entry.size);
+                assertEquals(i, reader.floorIndex(pts[i]));
+                assertEquals(i, reader.floorIndex(pts[i] + 1));
+                assertEquals(i - 1, reader.floorIndex(pts[i] - 1));
+            }
+            assertNull(reader.floor(-1));
+            assertEquals(pts[0], reader.nearest(-1).ptsUs);
+            assertEquals(pts[count - 1], reader.floor(Long.MAX_VALUE).ptsUs);
+            assertEquals(pts[count - 1], reader.nearest(Long.MAX_VALUE).ptsUs);
+            assertEquals(pts[64], reader.nearest(pts[64] - 10).ptsUs);
+            assertEquals(pts[63], reader.nearest(pts[63] + 10).ptsUs);
+        }
+        // varints of about 10 bytes an entry, instead of 20 of fixed width
+        assertTrue(file.length() < count * 12);
+    }
+
+    @Test
+    public void offsetsFromSampleTable() throws IOException {
+        // 10 samples in chunks of 3, 3, 4, sync samples 1, 5 and 9
+        int[] sizes = {100, 10, 11, 12, 200, 20, 21, 22, 300, 30};
+        long[] chunks = {1000, 2000, 3000};
+        File mp4 = mFolder.newFile("rec.mp4");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mp4))) {
+            out.write(box("ftyp", new byte[8]));
+            // sound track first, skipped
+            out.write(box("moov",
+                    box("trak", box("mdia", hdlr("soun"))),
+                    box("trak", box("mdia", hdlr("vide"), box("minf", box("stbl",
+                            fullBox("stsz", 0, sizes.length, sizes),
+                            fullBox("stsc", 2, 1, 3, 1, 3, 4, 1),
+                            fullBox("stco", chunks.length, 1000, 2000, 3000),
+                            fullBox("stss", 3, 1, 5, 9)))))));
+        }
+        Mp4SampleTable table = Mp4SampleTable.readVideoSyncSamples(mp4);
+        assertEquals(3, table.syncOffsets.length);
+        assertEquals(1000, table.syncOffsets[0]);
+        assertEquals(2000 + 12, table.syncOffsets[1]);
+        assertEquals(3000 + 21 + 22, table.syncOffsets[2]);
+        assertEquals(300, table.syncSizes[2]);
+
+        KeyFrameIndex index = new KeyFrameIndex();
+        index.add(0, 100);
+        index.add(133_333, 200);
+        index.add(266_666, 300);
+        index.save(mp4.getPath());
+        try (KeyFrameIndex.Reader reader = KeyFrameIndex.Reader.open(new File(KeyFrameIndex.pathOf(mp4.getPath())))) {
+            KeyFrameIndex.Entry entry = reader.floor(200_000);
+            assertEquals(133_333, entry.ptsUs);
+            assertEquals(2012, entry.offset);
+            assertEquals(200, entry.size);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void mismatchedKeyFrames() throws IOException {
+        File mp4 = mFolder.newFile("rec.mp4");
+        try (FileOutputStream out = new FileOutputStream(mp4)) {
+            out.write(box("moov", box("trak", box("mdia", hdlr("vide"), box("minf", box("stbl",
+                    fullBox("stsz", 0, 2, 100, 10),
+                    fullBox("stsc", 1, 1, 2, 1),
+                    fullBox("stco", 1, 8),
+                    fullBox("stss", 1, 1)))))));
+        }
+        KeyFrameIndex index = new KeyFrameIndex();
+        index.add(0, 100);
+        index.add(33_333, 10);
+        index.save(mp4.getPath());
+    }
+
+    private static byte[] hdlr(String handler) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        new DataOutputStream(content).writeLong(0);
+        content.write(handler.getBytes("US-ASCII"));
+        content.write(new byte[12 + 1]);
+        return box("hdlr", content.toByteArray());
+    }
+
+    private static byte[] fullBox(String type, int... values) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(content);
+        out.writeInt(0); // version and flags
+        for (int value : values) out.writeInt(value);
+        return box(type, content.toByteArray());
+    }
+
+    private static byte[] fullBox(String type, int fixedSize, int count, int[] sizes) throws IOException {
+        int[] values = new int[2 + sizes.length];
+        values[0] = fixedSize;
+        values[1] = count;
+        System.arraycopy(sizes, 0, values, 2, sizes.length);
+        return fullBox(type, values);
+    }
+
+    private static byte[] box(String type, byte[]... children) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] child : children) content.write(child);
+        ByteArrayOutputStream box = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(box);
+        out.writeInt(8 + content.size());
+        out.writeBytes(type);
+        content.writeTo(out);
+        return box.toByteArray();
+    }
+}
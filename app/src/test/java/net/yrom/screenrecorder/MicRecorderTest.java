@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.AudioRecord;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class MicRecorderTest {
+
+    @Test
+    public void readsUpToLimit() {
+        FakeAudioSource mic = new FakeAudioSource().reads(0, 1000);
+        mic.startRecording();
+        ByteBuffer frame = ByteBuffer.allocate(4096);
+        assertEquals(4096, MicRecorder.readInput(mic, frame));
+        assertEquals(1000, MicRecorder.readInput(mic, frame));
+    }
+
+    @Test
+    public void errorReadsAsSilence() {
+        FakeAudioSource mic = new FakeAudioSource().reads(AudioRecord.ERROR_INVALID_OPERATION, AudioRecord.ERROR_DEAD_OBJECT);
+        mic.startRecording();
+        ByteBuffer frame = ByteBuffer.allocate(4096);
+        assertEquals(0, MicRecorder.readInput(mic, frame));
+        assertEquals(0, MicRecorder.readInput(mic, frame));
+    }
+
+    @Test
+    public void endsOnceStopped() {
+        FakeAudioSource mic = new FakeAudioSource();
+        mic.startRecording();
+        ByteBuffer frame = ByteBuffer.allocate(4096);
+        MicRecorder.readInput(mic, frame);
+        mic.stop();
+        assertEquals(-1, MicRecorder.readInput(mic, frame));
+        assertEquals(1, mic.getReadCount());
+    }
+
+    @Test
+    public void resetTimesNextFrameByClock() {
+        // 2048 samples of 16 bit mono at 44.1kHz, 46439us
+        int frameBits = 2048 << 4;
+        long frameUs = 2048 * 1000_000L / 44_100;
+        AudioPtsCalculator calculator = new AudioPtsCalculator(44_100);
+        long first = calculator.calculate(frameBits, 1_000_000);
+        assertEquals(1_000_000 - frameUs, first);
+        // read a bit late, still evenly spaced
+        assertEquals(first + frameUs, calculator.calculate(frameBits, 1_060_000));
+        calculator.reset();
+        // e.g. resumed, starts over from the clock
+        assertEquals(1_200_000 - frameUs, calculator.calculate(frameBits, 1_200_000));
+    }
+}
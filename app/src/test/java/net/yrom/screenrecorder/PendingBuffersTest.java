@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PendingBuffersTest {
+
+    private static void add(PendingBuffers pending, int i) {
+        pending.add(i, i + 1, i * 100, i * 33_333L, i & 1);
+    }
+
+    private static void assertPolled(PendingBuffers pending, int i) {
+        assertEquals(i, pending.poll());
+        assertEquals(i + 1, pending.getPolledOffset());
+        assertEquals(i * 100, pending.getPolledSize());
+        assertEquals(i * 33_333L, pending.getPolledPresentationTimeUs());
+        assertEquals(i & 1, pending.getPolledFlags());
+    }
+
+    @Test
+    public void firstInFirstOutAcrossWrap() {
+        PendingBuffers pending = new PendingBuffers(4);
+        int next = 0, polled = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) add(pending, next++);
+            for (int i = 0; i < 3; i++) assertPolled(pending, polled++);
+        }
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    public void growsInOrder() {
+        PendingBuffers pending = new PendingBuffers(4);
+        // head in the middle of the ring when it grows
+        add(pending, 0);
+        add(pending, 1);
+        assertPolled(pending, 0);
+        for (int i = 2; i < 40; i++) add(pending, i);
+        assertEquals(39, pending.size());
+        for (int i = 1; i < 40; i++) assertPolled(pending, i);
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pollEmpty() {
+        PendingBuffers pending = new PendingBuffers();
+        add(pending, 0);
+        pending.clear();
+        pending.poll();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PtsRebaserTest {
+    private static final long FRAME_US = 33_333;
+
+    @Test
+    public void startsFromZero() {
+        PtsRebaser rebaser = new PtsRebaser();
+        assertEquals(0, rebaser.rebase(5_000_000));
+        assertEquals(FRAME_US, rebaser.rebase(5_000_000 + FRAME_US));
+    }
+
+    @Test
+    public void monotonicAcrossPauseCycles() {
+        PtsRebaser rebaser = new PtsRebaser();
+        long clock = 1_000_000_000L;
+        long last = -1;
+        for (int cycle = 0; cycle < 10; cycle++) {
+            for (int i = 0; i < 30; i++) {
+                long pts = rebaser.rebase(clock);
+                assertTrue("cycle " + cycle + " frame " + i + ": " + pts + " <= " + last, pts > last);
+                last = pts;
+                clock += FRAME_US;
+            }
+            rebaser.pause(clock);
+            clock += 3_000_000 + cycle * 1000; // paused for ~3s
+            rebaser.resume(clock);
+        }
+        // 300 frames without the pauses
+        assertEquals(299 * FRAME_US, last);
+    }
+
+    @Test
+    public void collapsesGapOfPause() {
+        PtsRebaser rebaser = new PtsRebaser();
+        rebaser.rebase(0);
+        rebaser.rebase(FRAME_US);
+        rebaser.pause(2 * FRAME_US);
+        rebaser.resume(2 * FRAME_US + 10_000_000);
+        assertEquals(2 * FRAME_US, rebaser.rebase(2 * FRAME_US + 10_000_000));
+    }
+
+    @Test
+    public void keepsFramesInFlightBeforePause() {
+        PtsRebaser rebaser = new PtsRebaser();
+        rebaser.rebase(0);
+        rebaser.pause(2 * FRAME_US);
+        rebaser.resume(2 * FRAME_US + 10_000_000);
+        // encoded before pause, but came out of encoder after resume
+        assertEquals(FRAME_US, rebaser.rebase(FRAME_US));
+        assertEquals(2 * FRAME_US, rebaser.rebase(2 * FRAME_US + 10_000_000));
+    }
+
+    @Test
+    public void dropsFramesCapturedWhilePaused() {
+        PtsRebaser rebaser = new PtsRebaser();
+        rebaser.rebase(0);
+        rebaser.pause(FRAME_US);
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(2 * FRAME_US));
+        rebaser.resume(10 * FRAME_US);
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(5 * FRAME_US));
+        assertEquals(FRAME_US, rebaser.rebase(10 * FRAME_US));
+    }
+
+    @Test
+    public void pauseBeforeFirstFrame() {
+        PtsRebaser rebaser = new PtsRebaser();
+        rebaser.pause(0);
+        rebaser.resume(1_000_000);
+        assertEquals(0, rebaser.rebase(1_000_000));
+        assertEquals(FRAME_US, rebaser.rebase(1_000_000 + FRAME_US));
+    }
+
+    @Test
+    public void resetStartsFromZeroAgain() {
+        PtsRebaser rebaser = new PtsRebaser();
+        rebaser.rebase(0);
+        rebaser.pause(FRAME_US);
+        rebaser.resume(2_000_000);
+        rebaser.reset();
+        assertEquals(0, rebaser.rebase(3_000_000));
+    }
+
+    @Test
+    public void keepsReorderedFrames() {
+        PtsRebaser rebaser = new PtsRebaser();
+        // I0 P3 B1 B2 in decode order
+        assertEquals(0, rebaser.rebase(1_000_000));
+        assertEquals(3 * FRAME_US, rebaser.rebase(1_000_000 + 3 * FRAME_US));
+        assertEquals(FRAME_US, rebaser.rebase(1_000_000 + FRAME_US));
+        assertEquals(2 * FRAME_US, rebaser.rebase(1_000_000 + 2 * FRAME_US));
+        // presented before the first frame
+        assertEquals(PtsRebaser.DROP, rebaser.rebase(1_000_000 - FRAME_US));
+    }
+}
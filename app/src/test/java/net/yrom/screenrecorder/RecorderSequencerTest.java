@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static net.yrom.screenrecorder.RecorderSequencer.TRACK_AUDIO;
+import static net.yrom.screenrecorder.RecorderSequencer.TRACK_VIDEO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stopping and codec recovery of {@link ScreenRecorder} on the JVM. The host does what
+ * ScreenRecorder does with {@link FakeEncoder}s and {@link SegmentMuxer}, the scheduled
+ * deadline and recoveries are fired by the test.
+ */
+public class RecorderSequencerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeMuxer.Factory mFactory = new FakeMuxer.Factory();
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<Encoder> mRecoveries = new ArrayList<>();
+    private final List<Long> mRecoveryDelays = new ArrayList<>();
+    private SegmentMuxer mMuxer;
+    private RecorderSequencer mSequencer;
+    private FakeEncoder mVideo;
+    private FakeEncoder mAudio;
+    private long mStopDeadlineMs = -1;
+    private Boolean mStoppedDrained;
+    private Exception mStopError;
+
+    @Before
+    public void setUp() throws Exception {
+        mMuxer = new SegmentMuxer(new File(mFolder.getRoot(), "rec.mp4").getPath(), mFactory);
+        mMuxer.setListener(new SegmentMuxer.Listener() {
+            @Override
+            public void onVideoSample(MediaCodec.BufferInfo info, boolean pending) {
+            }
+
+            @Override
+            public void onAudioSample(MediaCodec.BufferInfo info, ByteBuffer data) {
+            }
+
+            @Override
+            public void onFirstSample() {
+            }
+
+            @Override
+            public void onEndOfStream(boolean video) {
+                mSequencer.onTrackDrained(video ? TRACK_VIDEO : TRACK_AUDIO);
+            }
+        });
+        mSequencer = new RecorderSequencer(new RecorderSequencer.Host() {
+            @Override
+            public void signalEndOfStream() {
+                mEvents.add("signalEOS");
+            }
+
+            @Override
+            public void scheduleStopDeadline(long delayMs) {
+                mStopDeadlineMs = delayMs;
+            }
+
+            @Override
+            public void scheduleRecovery(Encoder codec, long delayMs) {
+                mRecoveries.add(codec);
+                mRecoveryDelays.add(delayMs);
+            }
+
+            @Override
+            public void recover(Encoder codec) throws Exception {
+                // what ScreenRecorder#recoverCodec does
+                if (codec == mVideo) {
+                    mVideo.release();
+                    mVideo = FakeEncoder.video().startAt(mVideo.nextOutputTimeUs());
+                    mMuxer.recoverVideo(mVideo);
+                    mMuxer.setVideoFormat(mVideo.getOutputFormat());
+                } else if (codec == mAudio) {
+                    mAudio.release();
+                    mAudio = FakeEncoder.audio().startAt(mAudio.nextOutputTimeUs());
+                    mMuxer.recoverAudio(mAudio);
+                    mMuxer.setAudioFormat(mAudio.getOutputFormat());
+                } else {
+                    return;
+                }
+                mEvents.add("recovered");
+                mMuxer.startIfReady();
+            }
+
+            @Override
+            public void stop(boolean drained, Exception error) {
+                assertNull("stopped twice", mStoppedDrained);
+                mStoppedDrained = drained;
+                mStopError = error;
+            }
+        });
+        mVideo = FakeEncoder.video();
+        mAudio = FakeEncoder.audio();
+        mMuxer.setVideoEncoder(mVideo);
+        mMuxer.setAudioEncoder(mAudio);
+        mMuxer.open();
+        mMuxer.setVideoFormat(mVideo.getOutputFormat());
+        mMuxer.setAudioFormat(mAudio.getOutputFormat());
+        assertTrue(mMuxer.startIfReady());
+    }
+
+    /**
+     * What MSG_STOP of ScreenRecorder does, which is posted by the stop of the host.
+     */
+    private void handleStop() {
+        if (mStoppedDrained == null || !mMuxer.isOpened()) return;
+        if (!mStoppedDrained) mMuxer.signalEndOfStream();
+        mMuxer.finish();
+    }
+
+    private void run(long untilUs) {
+        while (mStoppedDrained == null) {
+            long videoUs = mVideo.nextOutputTimeUs();
+            long audioUs = mAudio.nextOutputTimeUs();
+            if (Math.min(videoUs, audioUs) >= untilUs) return;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            if (videoUs <= audioUs) {
+                int index = mVideo.dequeueOutputBuffer(info);
+                if (index >= 0) mMuxer.writeVideo(index, info);
+            } else {
+                int index = mAudio.dequeueOutputBuffer(info);
+                if (index >= 0) mMuxer.writeAudio(index, info);
+            }
+        }
+        handleStop();
+    }
+
+    private void videoEndOfStream() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mMuxer.writeVideo(mVideo.signalEndOfStream(info), info);
+        handleStop();
+    }
+
+    private void audioEndOfStream() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mMuxer.writeAudio(mAudio.signalEndOfStream(info), info);
+        handleStop();
+    }
+
+    private static int endOfStreamSamples(FakeMuxer muxer) {
+        int count = 0;
+        for (FakeMuxer.Sample s : muxer.samples) {
+            if (s.isEndOfStream()) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void stopsOnceAllTracksDrained() {
+        run(3_000_000);
+        mSequencer.requestStop(TRACK_VIDEO | TRACK_AUDIO);
+        assertEquals(Collections.singletonList("signalEOS"), mEvents);
+        assertEquals(RecorderSequencer.STOP_DEADLINE_MS, mStopDeadlineMs);
+
+        videoEndOfStream();
+        assertFalse(mSequencer.isStopped());
+        audioEndOfStream();
+        assertTrue(mSequencer.isStopped());
+        assertEquals(Boolean.TRUE, mStoppedDrained);
+        assertNull(mStopError);
+
+        // fires anyway, the message is removed on stop only
+        mSequencer.onStopDeadline();
+        assertFalse(mSequencer.isStopDeadlineHit());
+        // stopping again is ignored
+        mSequencer.requestStop(TRACK_VIDEO);
+        assertEquals(1, mEvents.size());
+        FakeMuxer muxer = mFactory.get(0);
+        assertTrue(muxer.isStopped());
+        assertEquals(2, endOfStreamSamples(muxer));
+    }
+
+    @Test
+    public void stopsAtDeadlineIfATrackNeverDrains() {
+        run(3_000_000);
+        mSequencer.requestStop(TRACK_VIDEO | TRACK_AUDIO);
+        videoEndOfStream();
+        // the audio encoder is stuck
+        mSequencer.onStopDeadline();
+        handleStop();
+
+        assertTrue(mSequencer.isStopDeadlineHit());
+        assertEquals(Boolean.FALSE, mStoppedDrained);
+        assertNull(mStopError);
+        FakeMuxer muxer = mFactory.get(0);
+        assertTrue(muxer.isStopped());
+        // the muxer ended the audio track itself
+        assertEquals(2, endOfStreamSamples(muxer));
+        assertEquals(mAudio.getFramesOut(), muxer.samplesOf(muxer.trackOf("audio/")).size());
+    }
+
+    @Test
+    public void stopsRightAwayWithNothingToDrain() {
+        mSequencer.requestStop(0);
+        assertTrue(mSequencer.isStopped());
+        assertEquals(Boolean.FALSE, mStoppedDrained);
+        assertTrue(mEvents.isEmpty());
+        assertEquals(-1, mStopDeadlineMs);
+        mSequencer.onStopDeadline();
+        assertFalse(mSequencer.isStopDeadlineHit());
+    }
+
+    @Test
+    public void stopsWhenACodecEndsByItself() {
+        run(2_000_000);
+        // not requested, the video codec gave up
+        videoEndOfStream();
+        assertTrue(mSequencer.isStopped());
+        // audio has not ended, the muxer does
+        assertEquals(Boolean.FALSE, mStoppedDrained);
+        assertEquals(2, endOfStreamSamples(mFactory.get(0)));
+    }
+
+    @Test
+    public void givesUpOnErrorsNotOfCodec() {
+        mVideo.failAtFrame(10);
+        mVideo.setCallback(new Encoder.Callback() {
+            @Override
+            public void onError(Encoder encoder, Exception exception) {
+                mSequencer.onCodecError(encoder, exception);
+            }
+        });
+        run(2_000_000);
+        assertTrue(mSequencer.isStopped());
+        assertTrue(mStopError instanceof IllegalStateException);
+        assertTrue(mRecoveries.isEmpty());
+        FakeMuxer muxer = mFactory.get(0);
+        assertTrue(muxer.isStopped());
+        assertEquals(10, muxer.samplesOf(muxer.trackOf("video/")).size());
+    }
+
+    @Test
+    public void givesUpOnFatalCodecErrors() {
+        Exception e = new IllegalStateException("fatal");
+        mSequencer.onCodecError(mVideo, e, false, false);
+        assertSame(e, mStopError);
+        assertTrue(mRecoveries.isEmpty());
+    }
+
+    @Test
+    public void recoversVideoAndAudioIntoNewSegments() {
+        run(2_000_000);
+        Encoder failed = mVideo;
+        mSequencer.onCodecError(failed, new IllegalStateException("transient"), true, false);
+        assertEquals(Collections.singletonList(failed), mRecoveries);
+        assertEquals(Collections.singletonList(RecorderSequencer.TRANSIENT_ERROR_RETRY_MS), mRecoveryDelays);
+        mSequencer.recover(failed);
+        assertTrue(((FakeEncoder) failed).isReleased());
+        run(3_000_000);
+
+        failed = mAudio;
+        mSequencer.onCodecError(failed, new IllegalStateException("recoverable"), false, true);
+        assertEquals(Long.valueOf(0), mRecoveryDelays.get(1));
+        mSequencer.recover(failed);
+        run(4_000_000);
+        // recovered already, released and replaced
+        mSequencer.recover(failed);
+
+        assertEquals(Arrays.asList("recovered", "recovered"), mEvents);
+        assertEquals(2, mSequencer.getCodecRecoveries());
+        assertFalse(mSequencer.isStopped());
+        mSequencer.requestStop(TRACK_VIDEO | TRACK_AUDIO);
+        videoEndOfStream();
+        audioEndOfStream();
+        assertEquals(Boolean.TRUE, mStoppedDrained);
+        assertEquals(3, mMuxer.getSegmentPaths().size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mFactory.get(i).isStopped());
+        }
+    }
+
+    @Test
+    public void givesUpAfterMaxRecoveries() {
+        for (int i = 0; i < RecorderSequencer.MAX_CODEC_RECOVERIES; i++) {
+            mSequencer.onCodecError(mVideo, new IllegalStateException(), true, true);
+            mSequencer.recover(mVideo);
+        }
+        assertFalse(mSequencer.isStopped());
+        Exception e = new IllegalStateException("again");
+        mSequencer.onCodecError(mVideo, e, true, true);
+        assertSame(e, mStopError);
+        assertEquals(RecorderSequencer.MAX_CODEC_RECOVERIES, mRecoveries.size());
+    }
+
+    @Test
+    public void keepsWhatHasBeenMuxedIfACodecFailsWhileStopping() {
+        run(2_000_000);
+        mSequencer.requestStop(TRACK_VIDEO | TRACK_AUDIO);
+        videoEndOfStream();
+        mSequencer.onCodecError(mAudio, new IllegalStateException(), true, true);
+        handleStop();
+        assertTrue(mRecoveries.isEmpty());
+        assertEquals(Boolean.FALSE, mStoppedDrained);
+        assertNull(mStopError);
+        assertEquals(2, endOfStreamSamples(mFactory.get(0)));
+    }
+
+    @Test
+    public void dropsRecoveryScheduledBeforeStop() {
+        run(2_000_000);
+        mSequencer.onCodecError(mVideo, new IllegalStateException(), true, false);
+        mSequencer.requestStop(TRACK_AUDIO);
+        mSequencer.recover(mVideo);
+        assertFalse(mVideo.isReleased());
+        audioEndOfStream();
+        assertEquals(Boolean.TRUE, mStoppedDrained);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.yrom.screenrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SceneChangeDetectorTest {
+    private static final int FRAME = 2000;
+    // way over any average the detector may have learned
+    private static final int HUGE = 1 << 28;
+
+    private static SceneChangeDetector warmedUp(int minIntervalFrames) {
+        return warmUp(new SceneChangeDetector(SceneChangeDetector.DEFAULT_THRESHOLD, 1000, minIntervalFrames));
+    }
+
+    /**
+     * Feeds a key frame and steady frames of {@link #FRAME} bytes, past the warmup and cooldown.
+     */
+    private static SceneChangeDetector warmUp(SceneChangeDetector detector) {
+        assertFalse(detector.onFrame(FRAME * 10, true));
+        for (int i = 0; i < 40; i++) {
+            assertFalse(detector.onFrame(FRAME, false));
+        }
+        return detector;
+    }
+
+    private static VideoEncodeConfig config(int bitrate, int framerate) {
+        return new VideoEncodeConfig(1280, 720, bitrate, framerate, 1, null, "video/avc", null);
+    }
+
+    @Test
+    public void firesOnlyOverThreshold() {
+        assertFalse(warmedUp(0).onFrame(FRAME * 4, false));
+        assertTrue(warmedUp(0).onFrame(FRAME * 4 + 1, false));
+    }
+
+    @Test
+    public void ignoresJumpsOfSmallFrames() {
+        SceneChangeDetector detector = new SceneChangeDetector(SceneChangeDetector.DEFAULT_THRESHOLD, 1000, 0);
+        for (int i = 0; i < 20; i++) {
+            assertFalse(detector.onFrame(100, false));
+        }
+        // 9x but still tiny, e.g. a cursor blinking on a static screen
+        assertFalse(detector.onFrame(900, false));
+    }
+
+    @Test
+    public void waitsForWarmup() {
+        SceneChangeDetector detector = new SceneChangeDetector(SceneChangeDetector.DEFAULT_THRESHOLD, 1000, 0);
+        assertFalse(detector.onFrame(FRAME, false));
+        for (int i = 0; i < 9; i++) {
+            assertFalse(detector.onFrame(HUGE, false));
+        }
+        assertTrue(detector.onFrame(HUGE, false));
+    }
+
+    @Test
+    public void coolsDownAfterSceneChange() {
+        SceneChangeDetector detector = warmedUp(5);
+        assertTrue(detector.onFrame(HUGE, false));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(detector.onFrame(HUGE, false));
+        }
+        assertTrue(detector.onFrame(HUGE, false));
+    }
+
+    @Test
+    public void coolsDownAfterKeyFrame() {
+        SceneChangeDetector detector = warmedUp(5);
+        assertFalse(detector.onFrame(HUGE, true));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(detector.onFrame(HUGE, false));
+        }
+        assertTrue(detector.onFrame(HUGE, false));
+    }
+
+    @Test
+    public void derivesLimitsFromConfig() {
+        // 10000 bytes per frame at 2.4Mbps, 30fps
+        VideoEncodeConfig config = config(2400_000, 30);
+        assertFalse(warmUp(SceneChangeDetector.of(config)).onFrame(9000, false));
+        SceneChangeDetector detector = warmUp(SceneChangeDetector.of(config));
+        assertTrue(detector.onFrame(10_000, false));
+        // at most one per second
+        for (int i = 0; i < 30; i++) {
+            assertFalse(detector.onFrame(HUGE, false));
+        }
+        assertTrue(detector.onFrame(HUGE, false));
+    }
+
+    @Test
+    public void startsOverForNewConfig() {
+        // what ScreenRecorder does on switching video config
+        SceneChangeDetector detector = warmedUp(0);
+        int larger = FRAME * 5;
+        assertTrue(detector.onFrame(larger, false));
+
+        detector = SceneChangeDetector.of(config(4000_000, 30));
+        // the first key frame of the new encoder, then frames larger than before
+        assertFalse(detector.onFrame(larger * 10, true));
+        for (int i = 0; i < 40; i++) {
+            assertFalse(detector.onFrame(larger, false));
+        }
+        assertTrue(detector.onFrame(larger * 5, false));
+    }
+}
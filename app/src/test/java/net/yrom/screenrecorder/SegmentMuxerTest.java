@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The muxing path end to end on the JVM, {@link FakeEncoder}s feed {@link SegmentMuxer}
+ * writing into {@link FakeMuxer}s, in the order a real pipeline would deliver outputs.
+ */
+public class SegmentMuxerTest {
+    private static final long FRAME_US = 33_333;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeMuxer.Factory mFactory = new FakeMuxer.Factory();
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<Boolean> mVideoSamplesPending = new ArrayList<>();
+    private String mPath;
+    private SegmentMuxer mMuxer;
+    private FakeEncoder mVideo;
+    private FakeEncoder mAudio;
+
+    @Before
+    public void setUp() {
+        mPath = new File(mFolder.getRoot(), "rec.mp4").getPath();
+        mMuxer = new SegmentMuxer(mPath, mFactory);
+        mMuxer.setListener(new SegmentMuxer.Listener() {
+            @Override
+            public void onVideoSample(MediaCodec.BufferInfo info, boolean pending) {
+                mVideoSamplesPending.add(pending);
+            }
+
+            @Override
+            public void onAudioSample(MediaCodec.BufferInfo info, ByteBuffer data) {
+            }
+
+            @Override
+            public void onFirstSample() {
+            }
+
+            @Override
+            public void onEndOfStream(boolean video) {
+                mEvents.add(video ? "videoEOS" : "audioEOS");
+            }
+        });
+    }
+
+    private void open(FakeEncoder video, FakeEncoder audio) throws Exception {
+        mVideo = video;
+        mAudio = audio;
+        mMuxer.setVideoEncoder(video);
+        mMuxer.setAudioEncoder(audio);
+        mMuxer.open();
+    }
+
+    private void formats() {
+        mMuxer.setVideoFormat(mVideo.getOutputFormat());
+        if (mAudio != null) mMuxer.setAudioFormat(mAudio.getOutputFormat());
+        mMuxer.startIfReady();
+    }
+
+    private void video(int frames) {
+        for (int i = 0; i < frames; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int index = mVideo.dequeueOutputBuffer(info);
+            if (index >= 0) mMuxer.writeVideo(index, info);
+        }
+    }
+
+    /**
+     * Delivers outputs of both encoders in the order they come out, until {@code untilUs}
+     * of the capture clock.
+     */
+    private void run(long untilUs) {
+        while (true) {
+            long videoUs = mVideo.nextOutputTimeUs();
+            long audioUs = mAudio == null ? Long.MAX_VALUE : mAudio.nextOutputTimeUs();
+            if (Math.min(videoUs, audioUs) >= untilUs) return;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            if (videoUs <= audioUs) {
+                int index = mVideo.dequeueOutputBuffer(info);
+                if (index >= 0) mMuxer.writeVideo(index, info);
+            } else {
+                int index = mAudio.dequeueOutputBuffer(info);
+                if (index >= 0) mMuxer.writeAudio(index, info);
+            }
+        }
+    }
+
+    private void endOfStream() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mMuxer.writeVideo(mVideo.signalEndOfStream(info), info);
+        if (mAudio != null) {
+            info = new MediaCodec.BufferInfo();
+            mMuxer.writeAudio(mAudio.signalEndOfStream(info), info);
+        }
+    }
+
+    private static List<Long> ptsOf(List<FakeMuxer.Sample> samples) {
+        List<Long> list = new ArrayList<>();
+        for (FakeMuxer.Sample s : samples) list.add(s.ptsUs);
+        return list;
+    }
+
+    private static List<Integer> tagsOf(List<FakeMuxer.Sample> samples) {
+        List<Integer> list = new ArrayList<>();
+        for (FakeMuxer.Sample s : samples) list.add(s.tag);
+        return list;
+    }
+
+    @Test
+    public void muxesLongSessionWithoutLeakingBuffers() throws Exception {
+        open(FakeEncoder.video().latency(50_000), FakeEncoder.audio().latency(20_000));
+        formats();
+        long startUs = 1_000_000;
+        run(startUs + 10 * 60 * 1_000_000L);
+        endOfStream();
+        assertTrue(mMuxer.finish());
+
+        FakeMuxer muxer = mFactory.get(0);
+        assertTrue(muxer.isStopped());
+        assertTrue(muxer.isReleased());
+        List<FakeMuxer.Sample> video = muxer.samplesOf(muxer.trackOf("video/"));
+        List<FakeMuxer.Sample> audio = muxer.samplesOf(muxer.trackOf("audio/"));
+        assertEquals(mVideo.getFramesOut(), video.size());
+        assertEquals(mAudio.getFramesOut(), audio.size());
+        assertEquals(0, video.get(0).ptsUs);
+        assertEquals((video.size() - 1) * FRAME_US, video.get(video.size() - 1).ptsUs);
+        assertEquals(30f, mMuxer.getAchievedFramerate(), 0.1f);
+        // every output buffer went back to its encoder
+        assertEquals(0, mVideo.getPendingOutputBuffers());
+        assertEquals(0, mAudio.getPendingOutputBuffers());
+        assertEquals(Arrays.asList("videoEOS", "audioEOS"), mEvents);
+    }
+
+    @Test
+    public void keepsOutputsPendingUntilAllFormatsKnown() throws Exception {
+        open(FakeEncoder.video(), FakeEncoder.audio());
+        MediaCodec.BufferInfo config = new MediaCodec.BufferInfo();
+        mMuxer.writeVideo(mVideo.dequeueCodecConfig(config), config);
+        mMuxer.setVideoFormat(mVideo.getOutputFormat());
+        assertFalse(mMuxer.startIfReady());
+        // the mic is slow to start
+        video(5);
+        assertFalse(mMuxer.isStarted());
+        assertEquals(6, mVideo.getPendingOutputBuffers());
+
+        mMuxer.setAudioFormat(mAudio.getOutputFormat());
+        assertTrue(mMuxer.startIfReady());
+        FakeMuxer muxer = mFactory.get(0);
+        List<FakeMuxer.Sample> video = muxer.samplesOf(muxer.trackOf("video/"));
+        // in order, without the codec config
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), tagsOf(video));
+        assertEquals(0, video.get(0).ptsUs);
+        assertEquals(0, mVideo.getPendingOutputBuffers());
+    }
+
+    @Test
+    public void startsOnceFormatsKnownInAnyOrder() throws Exception {
+        open(FakeEncoder.video(), FakeEncoder.audio());
+        mMuxer.setAudioFormat(mAudio.getOutputFormat());
+        assertFalse(mMuxer.startIfReady());
+        mMuxer.setVideoFormat(mVideo.getOutputFormat());
+        assertTrue(mMuxer.startIfReady());
+        assertFalse(mMuxer.startIfReady());
+        try {
+            mMuxer.setVideoFormat(mVideo.getOutputFormat());
+            fail("format changed after started");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void endsTracksWithoutEncoders() throws Exception {
+        open(FakeEncoder.video(), FakeEncoder.audio());
+        formats();
+        run(2_000_000);
+        // e.g. stopped on an error, encoders won't output the end of stream
+        mMuxer.signalEndOfStream();
+        mMuxer.signalEndOfStream();
+        FakeMuxer muxer = mFactory.get(0);
+        int eos = 0;
+        for (FakeMuxer.Sample s : muxer.samples) {
+            if (s.isEndOfStream()) eos++;
+        }
+        assertEquals(2, eos);
+        assertTrue(mEvents.isEmpty());
+        mMuxer.close();
+        assertTrue(mMuxer.finish());
+        assertTrue(muxer.isStopped());
+        assertEquals(Arrays.asList(mPath), mMuxer.getSegmentPaths());
+    }
+
+    @Test
+    public void deletesSegmentNothingWrittenInto() throws Exception {
+        assertTrue(new File(mPath).createNewFile());
+        open(FakeEncoder.video(), null);
+        // cancelled after prewarm
+        assertTrue(mMuxer.finish());
+        FakeMuxer muxer = mFactory.get(0);
+        assertFalse(muxer.isStopped());
+        assertTrue(muxer.isReleased());
+        assertFalse(new File(mPath).exists());
+        assertTrue(mMuxer.getSegmentPaths().isEmpty());
+        assertFalse(mMuxer.finish());
+    }
+
+    @Test
+    public void propagatesMuxerFailure() throws Exception {
+        open(FakeEncoder.video(), null);
+        formats();
+        mFactory.get(0).failAtWrite(10);
+        try {
+            video(30);
+            fail("muxer failure swallowed");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(10, mFactory.get(0).samples.size());
+        // what has been written is still finalized
+        assertTrue(mMuxer.finish());
+        assertTrue(mFactory.get(0).isStopped());
+    }
+
+    @Test
+    public void recoversFromVideoCodecErrorIntoNewSegment() throws Exception {
+        final List<Exception> errors = new ArrayList<>();
+        FakeEncoder video = FakeEncoder.video().failAtFrame(45);
+        video.setCallback((encoder, e) -> errors.add(e));
+        open(video, FakeEncoder.audio());
+        formats();
+        run(3_000_000);
+        assertEquals(1, errors.size());
+
+        // what ScreenRecorder does to recover
+        mVideo.release();
+        mVideo = FakeEncoder.video().startAt(3_000_000);
+        String path = mMuxer.recoverVideo(mVideo);
+        assertEquals(new File(mFolder.getRoot(), "rec-1.mp4").getPath(), path);
+        assertFalse(mMuxer.startIfReady());
+        mMuxer.setVideoFormat(mVideo.getOutputFormat());
+        assertTrue(mMuxer.startIfReady());
+        run(5_000_000);
+        endOfStream();
+        mMuxer.finish();
+
+        FakeMuxer first = mFactory.get(0);
+        assertTrue(first.isStopped());
+        assertEquals(45, first.samplesOf(first.trackOf("video/")).size());
+        FakeMuxer second = mFactory.get(1);
+        List<FakeMuxer.Sample> video2 = second.samplesOf(second.trackOf("video/"));
+        assertEquals(mVideo.getFramesOut(), video2.size());
+        assertTrue(video2.get(0).isKeyFrame());
+        // every segment starts from 0
+        assertEquals(0, video2.get(0).ptsUs);
+        assertEquals(0, second.samplesOf(second.trackOf("audio/")).get(0).ptsUs);
+        assertEquals(Arrays.asList(mPath, path), mMuxer.getSegmentPaths());
+    }
+
+    @Test
+    public void copiesKeyFramesIntoPreviewOfEachSegment() throws Exception {
+        mMuxer.setKeyFramePreviewEnabled(true);
+        open(FakeEncoder.video(), null);
+        formats();
+        video(95);
+        mMuxer.setNextVideoFormat(mMuxer.getVideoFormat());
+        mMuxer.nextSegment();
+        assertTrue(mMuxer.startIfReady());
+        video(35);
+        endOfStream();
+        assertTrue(mMuxer.finish());
+
+        FakeMuxer main = mFactory.get(0);
+        FakeMuxer preview = mFactory.get(1);
+        assertEquals(SegmentMuxer.previewPathOf(mPath), preview.path);
+        assertTrue(preview.isStopped());
+        List<FakeMuxer.Sample> keyFrames = preview.samplesOf(preview.trackOf("video/"));
+        assertEquals(Arrays.asList(0, 30, 60, 90), tagsOf(keyFrames));
+        List<FakeMuxer.Sample> video = main.samplesOf(main.trackOf("video/"));
+        for (FakeMuxer.Sample keyFrame : keyFrames) {
+            assertTrue(keyFrame.isKeyFrame());
+            assertEquals(video.get(keyFrame.tag).ptsUs, keyFrame.ptsUs);
+        }
+        FakeMuxer secondPreview = mFactory.get(3);
+        assertEquals(Arrays.asList(120), tagsOf(secondPreview.samplesOf(0)));
+        assertEquals(Arrays.asList(preview.path, secondPreview.path), mMuxer.getPreviewPaths());
+    }
+
+    @Test
+    public void dropsFailingPreviewOnly() throws Exception {
+        mMuxer.setKeyFramePreviewEnabled(true);
+        open(FakeEncoder.video(), null);
+        formats();
+        mFactory.get(1).failAtWrite(1);
+        video(90);
+        endOfStream();
+        assertTrue(mMuxer.finish());
+
+        assertEquals(90, mFactory.get(0).samplesOf(0).size());
+        assertTrue(mFactory.get(1).isReleased());
+        assertTrue(mMuxer.getPreviewPaths().isEmpty());
+    }
+
+    @Test
+    public void waitsForKeyFrameAfterCutInMiddleOfGop() throws Exception {
+        PipelineMetrics metrics = new PipelineMetrics();
+        mMuxer.setMetrics(metrics);
+        open(FakeEncoder.video(), FakeEncoder.audio());
+        formats();
+        video(10);
+
+        // the audio encoder failed, video goes on in the next segment
+        mAudio = FakeEncoder.audio().startAt(1_400_000);
+        mMuxer.recoverAudio(mAudio);
+        // in flight before the request
+        video(2);
+        mVideo.requestKeyFrame();
+        video(3);
+        mMuxer.setAudioFormat(mAudio.getOutputFormat());
+        assertTrue(mMuxer.startIfReady());
+
+        FakeMuxer second = mFactory.get(1);
+        List<FakeMuxer.Sample> video = second.samplesOf(second.trackOf("video/"));
+        assertEquals(Arrays.asList(12, 13, 14), tagsOf(video));
+        assertTrue(video.get(0).isKeyFrame());
+        assertEquals(0, video.get(0).ptsUs);
+        assertEquals(2, metrics.snapshot().counter(PipelineMetrics.VIDEO_DROPPED));
+    }
+
+    @Test
+    public void takesBFramesInDecodeOrder() throws Exception {
+        open(FakeEncoder.video().bFrames(2), null);
+        mMuxer.setMaxReorder(2);
+        formats();
+        video(31);
+        FakeMuxer muxer = mFactory.get(0);
+        List<FakeMuxer.Sample> video = muxer.samplesOf(muxer.trackOf("video/"));
+        assertEquals(Arrays.asList(0, 3, 1, 2, 6, 4, 5), tagsOf(video).subList(0, 7));
+        assertEquals(Arrays.asList(0L, 3 * FRAME_US, FRAME_US, 2 * FRAME_US), ptsOf(video).subList(0, 4));
+        assertEquals(0, mMuxer.getRejectedVideoPts());
+    }
+
+    @Test
+    public void dropsFramesReorderedDeeperThanExpected() throws Exception {
+        open(FakeEncoder.video().bFrames(2), null);
+        // the encoder was asked for no B-frames
+        mMuxer.setMaxReorder(0);
+        formats();
+        video(31);
+        FakeMuxer muxer = mFactory.get(0);
+        List<FakeMuxer.Sample> video = muxer.samplesOf(muxer.trackOf("video/"));
+        long last = -1;
+        for (FakeMuxer.Sample s : video) {
+            assertTrue(s.ptsUs > last);
+            last = s.ptsUs;
+        }
+        assertEquals(31 - video.size(), mMuxer.getRejectedVideoPts());
+        assertTrue(mMuxer.getRejectedVideoPts() > 0);
+    }
+
+    @Test
+    public void collapsesPauses() throws Exception {
+        open(FakeEncoder.video(), null);
+        formats();
+        video(30);
+        mMuxer.pause(mVideo.presentationTimeOf(30), 0);
+        // captured while paused
+        video(30);
+        mMuxer.resume(mVideo.presentationTimeOf(60), 0);
+        video(30);
+        FakeMuxer muxer = mFactory.get(0);
+        List<FakeMuxer.Sample> video = muxer.samplesOf(muxer.trackOf("video/"));
+        assertEquals(60, video.size());
+        for (int i = 0; i < video.size(); i++) {
+            assertEquals(i * FRAME_US, video.get(i).ptsUs);
+        }
+    }
+
+    @Test
+    public void cutsNothingBeforeStarted() throws Exception {
+        open(FakeEncoder.video(), null);
+        MediaFormat next = mVideo.getOutputFormat();
+        mMuxer.setNextVideoFormat(next);
+        // nothing written yet, the file is kept
+        assertNull(mMuxer.nextSegment());
+        assertEquals(1, mFactory.created.size());
+        assertEquals(next, mMuxer.getVideoFormat());
+    }
+
+    @Test
+    public void dropsRetiringVideoAfterTrackEnded() throws Exception {
+        open(FakeEncoder.video(), null);
+        formats();
+        video(10);
+        // stopped while the old encoder was still draining
+        mMuxer.signalEndOfStream();
+        FakeMuxer muxer = mFactory.get(0);
+        int written = muxer.samples.size();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        mMuxer.writeRetiringVideo(mVideo, mVideo.dequeueOutputBuffer(info), info);
+        assertEquals(written, muxer.samples.size());
+        assertEquals(0, mVideo.getPendingOutputBuffers());
+    }
+
+    @Test
+    public void tellsSamplesKeptPendingUntilStarted() throws Exception {
+        open(FakeEncoder.video(), null);
+        // encoded before the format is known
+        video(3);
+        assertTrue(mVideoSamplesPending.isEmpty());
+        formats();
+        video(2);
+        assertEquals(Arrays.asList(true, true, true, false, false), mVideoSamplesPending);
+    }
+
+    @Test
+    public void switchesVideoEncoderAfterOldOneDrained() throws Exception {
+        open(FakeEncoder.video(), null);
+        formats();
+        video(10);
+        FakeEncoder retiring = mVideo;
+        mVideo = FakeEncoder.video().startAt(retiring.presentationTimeOf(12));
+        mMuxer.beginVideoSwitch(mVideo);
+        mMuxer.setVideoOutputFormat(mVideo.getOutputFormat());
+        // the new encoder outputs before the old one drained
+        video(3);
+        for (int i = 0; i < 2; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            mMuxer.writeRetiringVideo(retiring, retiring.dequeueOutputBuffer(info), info);
+        }
+        MediaCodec.BufferInfo eos = new MediaCodec.BufferInfo();
+        mMuxer.writeRetiringVideo(retiring, retiring.signalEndOfStream(eos), eos);
+        assertTrue(mMuxer.isSwitchingVideo());
+        assertEquals(1, mFactory.created.size());
+
+        assertTrue(mMuxer.endVideoSwitch() != null);
+        assertFalse(mMuxer.isSwitchingVideo());
+        assertTrue(mMuxer.startIfReady());
+        video(2);
+
+        FakeMuxer first = mFactory.get(0);
+        // the tail of the old encoder is kept
+        assertEquals(12, first.samplesOf(first.trackOf("video/")).size());
+        assertTrue(first.isStopped());
+        FakeMuxer second = mFactory.get(1);
+        List<FakeMuxer.Sample> video = second.samplesOf(second.trackOf("video/"));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), tagsOf(video));
+        assertEquals(0, retiring.getPendingOutputBuffers());
+    }
+}
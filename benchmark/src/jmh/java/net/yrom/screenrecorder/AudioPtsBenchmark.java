@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.yrom.screenrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Timestamp of every PCM frame read from mic, see MicRecorder#feedAudioEncoder.
+ */
+@State(Scope.Thread)
+public class AudioPtsBenchmark {
+    private static final int FRAME_BITS = 2048 * 16;
+    // of 2048 samples at 44.1kHz, with some jitter
+    private static final long[] INTERVALS_US = {46_439, 46_000, 47_100, 46_439, 140_000};
+
+    private final AudioPtsCalculator mCalculator = new AudioPtsCalculator(44_100);
+    private long mNowUs = 1_000_000;
+    private int mFrame;
+
+    @Benchmark
+    public long calculate() {
+        mNowUs += INTERVALS_US[mFrame];
+        mFrame = (mFrame + 1) % INTERVALS_US.length;
+        return mCalculator.calculate(FRAME_BITS, mNowUs);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.yrom.screenrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedList;
+
+/**
+ * Output buffers queued in ScreenRecorder before the muxer starts, or while a segment is cut,
+ * then muxed in order. One op is a sample queued and polled, at a depth of {@code depth}.
+ */
+@State(Scope.Thread)
+public class PendingQueueBenchmark {
+    /**
+     * Stands for MediaCodec.BufferInfo, allocated by MediaCodec for every output buffer.
+     */
+    static final class Info {
+        int offset;
+        int size;
+        long presentationTimeUs;
+        int flags;
+    }
+
+    @Param({"1", "8", "64"})
+    public int depth;
+
+    private final LinkedList<Integer> mIndices = new LinkedList<>();
+    private final LinkedList<Info> mInfos = new LinkedList<>();
+    private final PendingBuffers mRing = new PendingBuffers();
+    private int mIndex;
+
+    @Benchmark
+    public long linkedLists() {
+        Info info = new Info();
+        info.size = 4096;
+        info.presentationTimeUs = mIndex * 33_333L;
+        // like a MediaCodec buffer index, cycling
+        mIndices.add(mIndex++ & 7);
+        mInfos.add(info);
+        if (mInfos.size() < depth) return 0;
+        Info polled = mInfos.poll();
+        return mIndices.poll() + polled.presentationTimeUs;
+    }
+
+    @Benchmark
+    public long ring() {
+        // copied from the codec's BufferInfo, no allocation once the ring fits the depth
+        mRing.add(mIndex++ & 7, 0, 4096, mIndex * 33_333L, 0);
+        if (mRing.size() < depth) return 0;
+        return mRing.poll() + mRing.getPolledPresentationTimeUs();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019 Yrom Wang <http://www.yrom.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.yrom.screenrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * What SegmentMuxer#writeSampleData does for each video sample besides writing it to the
+ * muxer: rebase, check decode order and count its bitrate, with or without metrics.
+ */
+@State(Scope.Thread)
+public class SampleBookkeepingBenchmark {
+    private static final long FRAME_US = 33_333;
+    // IBBP in decode order
+    private static final int[] FRAME_ORDER = {0, 3, 1, 2, 6, 4, 5, 9, 7, 8};
+
+    private PtsRebaser mRebaser;
+    private DecodeTimeline mTimeline;
+    private BitrateStats mBitrate;
+    private PipelineMetrics.Counter mFrames;
+    private PipelineMetrics.Counter mBytes;
+    private PipelineMetrics.Histogram mLatency;
+    private long mGop;
+    private int mFrame;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mRebaser = new PtsRebaser();
+        mTimeline = new DecodeTimeline(2, false);
+        // grows by seconds of the timeline, a new one for every iteration
+        mBitrate = new BitrateStats();
+        PipelineMetrics metrics = new PipelineMetrics();
+        mFrames = metrics.counter(PipelineMetrics.VIDEO_FRAMES);
+        mBytes = metrics.counter(PipelineMetrics.VIDEO_BYTES);
+        mLatency = metrics.histogram(PipelineMetrics.VIDEO_CAPTURE_TO_MUX_US);
+        mGop = 0;
+        mFrame = 0;
+    }
+
+    private long nextCaptureUs() {
+        if (mFrame == FRAME_ORDER.length) {
+            mFrame = 0;
+            mGop++;
+        }
+        return 1_000_000 + (mGop * FRAME_ORDER.length + FRAME_ORDER[mFrame++]) * FRAME_US;
+    }
+
+    @Benchmark
+    public long videoSample() {
+        long pts = mRebaser.rebase(nextCaptureUs());
+        if (mTimeline.push(pts) == DecodeTimeline.REJECTED) return -1;
+        pts = mTimeline.getLastPtsUs();
+        mBitrate.add(4096, pts);
+        return pts;
+    }
+
+    @Benchmark
+    public long videoSampleWithMetrics() {
+        long pts = videoSample();
+        mLatency.record(12_000 + (pts & 0xfff));
+        mFrames.increment();
+        mBytes.add(4096);
+        return pts;
+    }
+}